@@ -0,0 +1,140 @@
+package org.wahlzeit.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.wahlzeit.model.PhotoId;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares contended lookups of interned IDs in the {@link InternTable}, through PhotoId.getIdFromInt() and directly,
+ * with the array table with double-checked locking that PhotoId used before. Run with ./gradlew jmh.
+ *
+ * @review
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class InternTableBenchmark {
+
+	/**
+	 * Number of existing keys that are looked up
+	 */
+	@Param({"1000", "1000000"})
+	public int numberOfKeys;
+
+	/**
+	 *
+	 */
+	protected InternTable<Integer> internTable;
+	protected LockingInternTable lockingTable;
+
+	/**
+	 *
+	 */
+	@Setup(Level.Trial)
+	public void setUpTables() {
+		internTable = new IntegerInternTable();
+		lockingTable = new LockingInternTable(numberOfKeys);
+		PhotoId.setCurrentIdFromInt(numberOfKeys);
+		for (int i = 1; i <= numberOfKeys; i++) {
+			internTable.intern(i);
+			lockingTable.intern(i);
+			PhotoId.getIdFromInt(i);
+		}
+	}
+
+	@Benchmark
+	public Integer lookUpInInternTable(KeySequence keys) {
+		return internTable.intern(keys.next(numberOfKeys));
+	}
+
+	@Benchmark
+	public Object lookUpInLockingTable(KeySequence keys) {
+		return lockingTable.intern(keys.next(numberOfKeys));
+	}
+
+	@Benchmark
+	public PhotoId lookUpPhotoId(KeySequence keys) {
+		return PhotoId.getIdFromInt(keys.next(numberOfKeys));
+	}
+
+	/**
+	 * A pseudo-random key sequence per thread, so threads look up different keys
+	 */
+	@State(Scope.Thread)
+	public static class KeySequence {
+
+		protected int state = (int) System.nanoTime() | 1;
+
+		/**
+		 * Returns a key from 1 to bound, as 0 is the null ID; xorshift32
+		 */
+		public int next(int bound) {
+			state ^= state << 13;
+			state ^= state >>> 17;
+			state ^= state << 5;
+			return (state & Integer.MAX_VALUE) % bound + 1;
+		}
+	}
+
+	/**
+	 *
+	 */
+	protected static class IntegerInternTable extends InternTable<Integer> {
+		@Override
+		protected Integer create(int key) {
+			return new Integer(key);
+		}
+	}
+
+	/**
+	 * The lookup of the table PhotoId used before InternTable, copied as it was: an array sized by
+	 * setCurrentIdFromInt() and filled with double-checked locking on the array.
+	 */
+	protected static class LockingInternTable {
+
+		protected static final int BUFFER_SIZE_INCREMENT = 64;
+
+		protected int currentKey;
+		protected Object[] values;
+
+		public LockingInternTable(int currentKey) {
+			this.currentKey = currentKey;
+			this.values = new Object[currentKey + BUFFER_SIZE_INCREMENT];
+		}
+
+		public Object intern(int key) {
+			if (key < 0 || key > currentKey) {
+				return null;
+			}
+
+			Object result = values[key];
+			if (result == null) {
+				synchronized (values) {
+					result = values[key];
+					if (result == null) {
+						result = new Integer(key);
+						values[key] = result;
+					}
+				}
+			}
+			return result;
+		}
+	}
+}
@@ -80,11 +80,11 @@ public abstract class AbstractWebPartHandler implements WebPartHandler {
 	}
 
 	/**
-	 *
+	 * Returns the empty image as a placeholder while the photo has no scaled images yet.
 	 */
 	protected String getPhotoThumb(UserSession us, Photo photo) {
 		String result = null;
-		if (photo != null) {
+		if (photo != null && !photo.getStatus().isProcessing()) {
 			String imageLink = getPhotoAsRelativeResourcePathString(photo, PhotoSize.THUMB);
 			result = HtmlUtil.asImg(HtmlUtil.asPath(imageLink), photo.getThumbWidth(), photo.getThumbHeight());
 		} else {
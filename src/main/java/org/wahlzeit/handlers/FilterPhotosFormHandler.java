@@ -22,7 +22,6 @@ package org.wahlzeit.handlers;
 
 import org.wahlzeit.model.enums.AccessRights;
 import org.wahlzeit.model.PhotoFilter;
-import org.wahlzeit.model.Tags;
 import org.wahlzeit.model.users.UserSession;
 import org.wahlzeit.services.LogBuilder;
 import org.wahlzeit.utils.StringUtil;
@@ -53,7 +52,7 @@ public class FilterPhotosFormHandler extends AbstractWebFormHandler {
 		PhotoFilter filter = us.getPhotoFilter();
 
 		part.maskAndAddString(PhotoFilter.USER_NAME, filter.getUserName());
-		part.maskAndAddString(PhotoFilter.TAGS, filter.getTags().asString());
+		part.maskAndAddString(PhotoFilter.TAGS, filter.getTagsAsString());
 	}
 
 	/**
@@ -69,12 +68,12 @@ public class FilterPhotosFormHandler extends AbstractWebFormHandler {
 
 		String tags = us.getAsString(args, PhotoFilter.TAGS);
 		if (StringUtil.isLegalTagsString(tags)) {
-			filter.setTags(new Tags(tags));
+			filter.setTagsOrQuery(tags);
 		}
 
 		log.info(LogBuilder.createUserMessage().
 				addAction("Filter Photos").
-				addParameter("Tags", filter.getTags().asString()).toString());
+				addParameter("Tags", filter.getTagsAsString()).toString());
 
 
 		return PartUtil.SHOW_PHOTO_PAGE_NAME;
@@ -23,7 +23,6 @@ package org.wahlzeit.handlers;
 import org.wahlzeit.model.enums.AccessRights;
 import org.wahlzeit.services.config.ModelConfig;
 import org.wahlzeit.model.PhotoFilter;
-import org.wahlzeit.model.Tags;
 import org.wahlzeit.model.users.UserSession;
 import org.wahlzeit.utils.StringUtil;
 import org.wahlzeit.webparts.WebPart;
@@ -64,7 +63,7 @@ public class FilterPhotosPageHandler extends AbstractWebPageHandler {
 
 		String tags = us.getAsString(args, PhotoFilter.TAGS);
 		if (StringUtil.isLegalTagsString(tags)) {
-			filter.setTags(new Tags(tags));
+			filter.setTagsOrQuery(tags);
 		}
 
 		return PartUtil.SHOW_PHOTO_PAGE_NAME;
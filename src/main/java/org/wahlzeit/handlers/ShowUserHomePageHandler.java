@@ -22,6 +22,9 @@ package org.wahlzeit.handlers;
 
 import org.wahlzeit.model.enums.AccessRights;
 import org.wahlzeit.model.Photo;
+import org.wahlzeit.model.enums.PhotoSize;
+import org.wahlzeit.model.persistence.ImageCache;
+import org.wahlzeit.model.persistence.ImageKey;
 import org.wahlzeit.services.PhotoManager;
 import org.wahlzeit.model.users.User;
 import org.wahlzeit.model.users.UserSession;
@@ -30,6 +33,9 @@ import org.wahlzeit.webparts.WebPart;
 import org.wahlzeit.webparts.Writable;
 import org.wahlzeit.webparts.WritableList;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * A handler class for a specific web page.
  */
@@ -53,6 +59,7 @@ public class ShowUserHomePageHandler extends AbstractWebPageHandler {
 		Photo[] photos = user.getPhotos();
 		boolean wasEmpty = true;
 		if (photos.length != 0) {
+			preloadThumbs(photos);
 			WritableList list = new WritableList();
 			for (Photo photo : photos) {
 				// load it from the PhotoManager to make sure the same copy is used
@@ -71,6 +78,17 @@ public class ShowUserHomePageHandler extends AbstractWebPageHandler {
 		}
 	}
 
+	/**
+	 * Fetches the thumbnails of all photos in one batch, the browser requests them right after the page.
+	 */
+	protected void preloadThumbs(Photo[] photos) {
+		List<ImageKey> thumbs = new ArrayList<ImageKey>(photos.length);
+		for (Photo photo : photos) {
+			thumbs.add(new ImageKey(photo.getIdAsString(), PhotoSize.THUMB));
+		}
+		ImageCache.getInstance().preloadImages(thumbs);
+	}
+
 	/**
 	 *
 	 */
@@ -21,7 +21,6 @@
 package org.wahlzeit.handlers;
 
 import com.google.appengine.api.images.Image;
-import org.wahlzeit.agents.AsyncTaskExecutor;
 import org.wahlzeit.model.LandscapeType;
 import org.wahlzeit.model.Location;
 import org.wahlzeit.model.Photo;
@@ -33,8 +32,10 @@ import org.wahlzeit.model.users.UserSession;
 import org.wahlzeit.services.LandscapeTypeManager;
 import org.wahlzeit.services.LogBuilder;
 import org.wahlzeit.services.PhotoManager;
+import org.wahlzeit.services.UploadProcessor;
 import org.wahlzeit.services.config.ModelConfig;
 import org.wahlzeit.utils.StringUtil;
+import org.wahlzeit.utils.UploadedFile;
 import org.wahlzeit.webparts.WebPart;
 
 import java.util.Map;
@@ -103,12 +104,17 @@ public class UploadPhotoFormHandler extends AbstractWebFormHandler {
             return PartUtil.UPLOAD_PHOTO_PAGE_NAME;
         }
 
+        UploadedFile uploadedFile = (UploadedFile) args.get(UploadedFile.UPLOADED_FILE);
+        if (uploadedFile == null) {
+            us.setMessage(config.getPhotoUploadFailed());
+            return PartUtil.UPLOAD_PHOTO_PAGE_NAME;
+        }
+
         try {
             PhotoManager pm = PhotoManager.getInstance();
-            String fileName = us.getAsString(args, "fileName");
             User user = (User) us.getClient();
-            Image uploadedImage = user.getUploadedImage();
-            Photo photo = pm.createPhoto(fileName, uploadedImage);
+            Image uploadedImage = uploadedFile.toImage();
+            Photo photo = pm.createPhotoAsync(uploadedFile.getFileName(), uploadedImage);
 
             user.addPhoto(photo);
 
@@ -120,6 +126,7 @@ public class UploadPhotoFormHandler extends AbstractWebFormHandler {
 
             photo.setType(us.getAsString(args, "type"));
             photo.setTags(new Tags(tags));
+            UploadProcessor.getInstance().process(photo, uploadedImage);
 
             log.config(LogBuilder.createUserMessage().
                     addAction("Upload Photo").
@@ -127,12 +134,8 @@ public class UploadPhotoFormHandler extends AbstractWebFormHandler {
                     addParameter("tags", photo.getTags().asString()).
                     addParameter("location", String.valueOf(photo.getLocation())).toString());
 
+            // the UploadProcessor saves the photo once it has been processed
             us.setTwoLineMessage(config.getPhotoUploadSucceeded(), config.getKeepGoing());
-            log.config(LogBuilder.createSystemMessage().
-                    addAction("Calling async task to save Photo").
-                    addParameter("ID", photo.getId().asString()).toString());
-
-            AsyncTaskExecutor.savePhotoAsync(photo.getId().asString());
         } catch (Exception ex) {
             log.warning(LogBuilder.createSystemMessage().addException("uploading photo failed", ex).toString());
             us.setMessage(config.getPhotoUploadFailed());
@@ -20,15 +20,26 @@
 
 package org.wahlzeit.main;
 
+import com.google.appengine.api.ThreadManager;
 import org.wahlzeit.services.*;
+import org.wahlzeit.services.config.SysConfig;
+import org.wahlzeit.utils.ImageScaler;
+import org.wahlzeit.utils.ImageScalingPipeline;
+import org.wahlzeit.utils.ImagesServiceScaler;
+import org.wahlzeit.utils.Java2DImageScaler;
 import org.wahlzeit.utils.PhotoFactory;
 import org.wahlzeit.model.users.User;
 import org.wahlzeit.model.persistence.DatastoreAdapter;
+import org.wahlzeit.model.persistence.FileSystemImageStorage;
+import org.wahlzeit.model.persistence.ImageCache;
 import org.wahlzeit.model.persistence.ImageStorage;
 
 import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.logging.Logger;
 
 /**
@@ -46,7 +57,29 @@ public abstract class ModelMain extends AbstractMain {
 		log.info("AbstractMain.startUp completed");
 
 		log.config(LogBuilder.createSystemMessage().addAction("load image storage").toString());
-		ImageStorage.setInstance(new DatastoreAdapter());
+		ImageStorage.setInstance(createImageStorage());
+		ImageCache.setInstance(new ImageCache(SysConfig.getImageCacheMaxBytes()));
+		ImageScalingPipeline.setInstance(createImageScalingPipeline());
+
+		int uploadProcessingThreads = SysConfig.getUploadProcessingThreads();
+		if (uploadProcessingThreads > 0) {
+			log.config(LogBuilder.createSystemMessage().
+					addAction("start upload processor").
+					addParameter("threads", uploadProcessingThreads).toString());
+			UploadProcessor.setInstance(new UploadProcessor(
+					Executors.newFixedThreadPool(uploadProcessingThreads, ThreadManager.backgroundThreadFactory())));
+		}
+
+		long writeBehindMaxDelay = SysConfig.getWriteBehindMaxDelayMillis();
+		if (writeBehindMaxDelay > 0) {
+			log.config(LogBuilder.createSystemMessage().
+					addAction("start write-behind queue").
+					addParameter("max delay (ms)", writeBehindMaxDelay).toString());
+			WriteBehindQueue writeBehindQueue =
+					new WriteBehindQueue(writeBehindMaxDelay, ThreadManager.backgroundThreadFactory());
+			writeBehindQueue.start();
+			ObjectManager.setWriteBehindQueue(writeBehindQueue);
+		}
 
 		log.config(LogBuilder.createSystemMessage().addAction("load globals").toString());
 		GlobalsManager.getInstance().loadGlobals();
@@ -58,7 +91,7 @@ public abstract class ModelMain extends AbstractMain {
 		PhotoFactory.initialize();
 
 		log.config(LogBuilder.createSystemMessage().addAction("load Photos").toString());
-		PhotoManager.getInstance().init();
+		PhotoManager.getInstance().init(ThreadManager.backgroundThreadFactory());
 
 		log.config(LogBuilder.createSystemMessage().addAction("load LandscapeTypes").toString());
 		LandscapeTypeManager.getInstance().loadDefaults();
@@ -69,11 +102,63 @@ public abstract class ModelMain extends AbstractMain {
 	 *
 	 */
 	protected void shutDown() throws Exception {
+		UploadProcessor.getInstance().shutDown();
 		saveAll();
 
+		WriteBehindQueue writeBehindQueue = ObjectManager.getWriteBehindQueue();
+		if (writeBehindQueue != null) {
+			log.config(LogBuilder.createSystemMessage().addAction("flush write-behind queue").toString());
+			ObjectManager.setWriteBehindQueue(null);
+			writeBehindQueue.shutDown();
+		}
+
+		ImageScalingPipeline.getInstance().shutDown();
+
 		super.shutDown();
 	}
 
+	/**
+	 * Creates the ImageStorage selected by the configuration.
+	 *
+	 * @methodtype factory
+	 */
+	protected ImageStorage createImageStorage() throws IOException {
+		String imageStorage = SysConfig.getImageStorage();
+		if (SysConfig.IMAGE_STORAGE_FILE_SYSTEM.equals(imageStorage)) {
+			return new FileSystemImageStorage(Paths.get(SysConfig.getImageStorageDir()));
+		} else if (!SysConfig.IMAGE_STORAGE_DATASTORE.equals(imageStorage)) {
+			log.warning(LogBuilder.createSystemMessage().
+					addParameter("unknown image storage, using datastore", imageStorage).toString());
+		}
+		return new DatastoreAdapter();
+	}
+
+	/**
+	 * Creates the ImageScalingPipeline with the ImageScaler and number of threads selected by the configuration.
+	 *
+	 * @methodtype factory
+	 */
+	protected ImageScalingPipeline createImageScalingPipeline() {
+		ImageScaler<?> scaler;
+		String imageScaler = SysConfig.getImageScaler();
+		if (SysConfig.IMAGE_SCALER_JAVA_2D.equals(imageScaler)) {
+			scaler = new Java2DImageScaler();
+		} else {
+			if (!SysConfig.IMAGE_SCALER_IMAGES_SERVICE.equals(imageScaler)) {
+				log.warning(LogBuilder.createSystemMessage().
+						addParameter("unknown image scaler, using images service", imageScaler).toString());
+			}
+			scaler = new ImagesServiceScaler();
+		}
+
+		ExecutorService executor = null;
+		int threads = SysConfig.getImageScalingThreads();
+		if (threads > 0) {
+			executor = Executors.newFixedThreadPool(threads, ThreadManager.backgroundThreadFactory());
+		}
+		return new ImageScalingPipeline(scaler, executor);
+	}
+
 	/**
 	 *
 	 */
@@ -21,6 +21,7 @@
 package org.wahlzeit.model;
 
 import org.wahlzeit.model.persistence.DataObject;
+import org.wahlzeit.services.IdAllocator;
 
 /**
  * A case is a user complaint, most notably about an inappropriate photo.
@@ -31,27 +32,34 @@ public abstract class Case extends DataObject {
 	/**
 	 * 0 is never returned, first value is 1
 	 */
-	protected static CaseId lastCaseId = CaseId.NULL_ID;
+	protected static volatile IdAllocator idAllocator = new IdAllocator(0);
 
 	/**
 	 * @methodtype get
 	 */
-	public static synchronized CaseId getLastCaseId() {
-		return lastCaseId;
+	public static CaseId getLastCaseId() {
+		return new CaseId((int) idAllocator.getLastId());
 	}
 
 	/**
 	 * @methodtype set
 	 */
-	public static synchronized void setLastCaseId(CaseId newId) {
-		lastCaseId = newId;
+	public static void setLastCaseId(CaseId newId) {
+		idAllocator = new IdAllocator(newId.asInt());
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public static void setIdAllocator(IdAllocator newIdAllocator) {
+		idAllocator = newIdAllocator;
 	}
 
 	/**
 	 * @methodtype idiom
 	 */
-	public static synchronized CaseId getNextCaseId() {
-		return lastCaseId = lastCaseId.getNextId();
+	public static CaseId getNextCaseId() {
+		return new CaseId((int) idAllocator.getNextId());
 	}
 
 }
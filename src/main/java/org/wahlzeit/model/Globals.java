@@ -7,6 +7,7 @@ import org.wahlzeit.model.persistence.DataObject;
 /**
  * Class that combines all global wahlzeit variables
  * that need to be stored to the datastore when the system is restarted.
+ * The ID counters hold the last ID that any instance has reserved, see IdAllocator.
  * 
  * @review
  */
@@ -16,6 +17,13 @@ public class Globals extends DataObject {
 	public static final String ID = "id";
 	public static final Long DEAULT_ID = 1L;
 
+	/**
+	 * The ID counters
+	 */
+	public enum Counter {
+		PHOTO, CLIENT, CASE, SESSION
+	}
+
 	@Id
 	private Long id;
 
@@ -65,6 +73,41 @@ public class Globals extends DataObject {
 		incWriteCount();
 	}
 
+	/**
+	 * @methodtype get
+	 */
+	public long getLastId(Counter counter) {
+		switch (counter) {
+			case PHOTO:
+				return lastPhotoId;
+			case CLIENT:
+				return lastUserId == null ? 0 : lastUserId;
+			case CASE:
+				return lastCaseId;
+			default:
+				return lastSessionId;
+		}
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public void setLastId(Counter counter, long lastId) {
+		switch (counter) {
+			case PHOTO:
+				setLastPhotoId((int) lastId);
+				break;
+			case CLIENT:
+				setLastUserId(lastId);
+				break;
+			case CASE:
+				setLastCaseId((int) lastId);
+				break;
+			default:
+				setLastSessionId((int) lastId);
+		}
+	}
+
 	public String asString() {
 		StringBuilder builder = new StringBuilder();
 		builder.append("Globals with ID ").append(id);
@@ -1,6 +1,5 @@
 package org.wahlzeit.model;
 
-import com.google.api.client.util.ArrayMap;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.images.Image;
 import com.google.common.base.MoreObjects;
@@ -9,25 +8,64 @@ import com.googlecode.objectify.annotation.Id;
 import com.googlecode.objectify.annotation.Ignore;
 import com.googlecode.objectify.annotation.Parent;
 import org.wahlzeit.model.enums.Language;
+import org.wahlzeit.model.enums.PhotoChange;
 import org.wahlzeit.model.enums.PhotoSize;
 import org.wahlzeit.model.enums.PhotoStatus;
 import org.wahlzeit.model.persistence.DataObject;
+import org.wahlzeit.model.persistence.ImageCache;
 import org.wahlzeit.services.ObjectManager;
 import org.wahlzeit.services.UserManager;
 import org.wahlzeit.services.config.ModelConfig;
 import org.wahlzeit.utils.PatternInstance;
+import org.wahlzeit.utils.PhotoUtil;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 @Entity
 @PatternInstance(name = "Abstract Factory", participants = "ConcreteProduct")
 public class LandscapePhoto extends DataObject implements Photo {
+    /**
+     * The registered fields of a photo with the aspects their changes affect. Each field has one bit in the dirty
+     * mask; IMAGES stands for the unsaved scaled images, which are not persisted with the photo itself.
+     */
+    public enum Field {
+        IMAGES(PhotoChange.IMAGES),
+        OWNER_ID(PhotoChange.TAGS, PhotoChange.OWNER_FIELDS),
+        OWNER_NOTIFY_ABOUT_PRAISE(PhotoChange.OWNER_FIELDS),
+        OWNER_EMAIL_ADDRESS(PhotoChange.OWNER_FIELDS),
+        OWNER_LANGUAGE(PhotoChange.OWNER_FIELDS),
+        WIDTH_AND_HEIGHT(PhotoChange.OWNER_FIELDS),
+        PRAISE(PhotoChange.OWNER_FIELDS),
+        NO_VOTES_AT_LAST_NOTIFICATION(PhotoChange.OWNER_FIELDS),
+        STATUS(PhotoChange.STATUS, PhotoChange.OWNER_FIELDS),
+        TAGS(PhotoChange.TAGS, PhotoChange.OWNER_FIELDS),
+        IMAGE_ETAGS;
+
+        private final PhotoChange[] changes;
+
+        Field(PhotoChange... changes) {
+            this.changes = changes;
+        }
+
+        public PhotoChange[] getChanges() {
+            return changes;
+        }
+    }
+
     /**
      * Each photo can be viewed in different sizes (XS, S, M, L, XL)
      * Images are pre-computed in these sizes to optimize bandwidth when requested.
+     * Only images that have not been persisted yet are held here, all others are loaded lazily via the ImageCache.
      */
     @Ignore
-    transient protected Map<PhotoSize, Image> images = new ArrayMap<>();
+    transient protected Map<PhotoSize, Image> images = new ConcurrentHashMap<PhotoSize, Image>();
+
     protected PhotoId id = null;
     protected String ownerId;
     protected boolean ownerNotifyAboutPraise = false;
@@ -42,6 +80,11 @@ public class LandscapePhoto extends DataObject implements Photo {
     protected int noVotes = 1;
     protected int noVotesAtLastNotification = 1;
     protected long creationTime = System.currentTimeMillis();
+    /**
+     * Content hashes of the scaled images by PhotoSize name, so clients can revalidate them without a read of the
+     * image. Replaced as a whole on change, so readers never see a map that is modified concurrently.
+     */
+    protected Map<String, String> imageETags = new HashMap<String, String>();
     protected Location location;
     protected String type;
     /**
@@ -50,28 +93,64 @@ public class LandscapePhoto extends DataObject implements Photo {
     protected String ending = "jpg";
     @Parent
     Key parent = ObjectManager.applicationRootKey;
-    //TODO: change it to a single long
+    /**
+     * The PhotoId value, so the key of a photo follows from its PhotoId; photos saved before were given an allocated
+     * ID, which is kept when they are loaded
+     */
     @Id
     private Long idLong;
 
     public LandscapePhoto() {
         id = PhotoId.getNextId();
+        idLong = (long) id.asInt();
         incWriteCount();
     }
 
     public LandscapePhoto(PhotoId myId) {
         id = myId;
+        idLong = (long) id.asInt();
         incWriteCount();
     }
 
     @Override
     public Image getImage(PhotoSize photoSize) {
+        Image result = images.get(photoSize);
+        if (result == null) {
+            result = ImageCache.getInstance().getImage(getIdAsString(), photoSize.asInt());
+        }
+        return result;
+    }
+
+    @Override
+    public Image getUnsavedImage(PhotoSize photoSize) {
         return images.get(photoSize);
     }
 
+    /**
+     * Setting null releases the in-memory image, e.g. after it has been persisted.
+     */
     @Override
     public void setImage(PhotoSize photoSize, Image image) {
-        this.images.put(photoSize, image);
+        if (image == null) {
+            this.images.remove(photoSize);
+        } else {
+            this.images.put(photoSize, image);
+            markDirty(Field.IMAGES);
+            setImageETag(photoSize, PhotoUtil.computeETag(ByteBuffer.wrap(image.getImageData())));
+        }
+    }
+
+    @Override
+    public String getImageETag(PhotoSize photoSize) {
+        return imageETags.get(photoSize.name());
+    }
+
+    @Override
+    public synchronized void setImageETag(PhotoSize photoSize, String eTag) {
+        Map<String, String> newImageETags = new HashMap<String, String>(imageETags);
+        newImageETags.put(photoSize.name(), eTag);
+        imageETags = newImageETags;
+        markDirty(Field.IMAGE_ETAGS);
     }
 
     @Override
@@ -92,7 +171,7 @@ public class LandscapePhoto extends DataObject implements Photo {
     @Override
     public void setOwnerId(String newName) {
         ownerId = newName;
-        incWriteCount();
+        markDirty(Field.OWNER_ID);
     }
 
     @Override
@@ -114,7 +193,7 @@ public class LandscapePhoto extends DataObject implements Photo {
     @Override
     public void setOwnerNotifyAboutPraise(boolean newNotifyAboutPraise) {
         ownerNotifyAboutPraise = newNotifyAboutPraise;
-        incWriteCount();
+        markDirty(Field.OWNER_NOTIFY_ABOUT_PRAISE);
     }
 
     @Override
@@ -125,7 +204,7 @@ public class LandscapePhoto extends DataObject implements Photo {
     @Override
     public void setOwnerLanguage(Language newLanguage) {
         ownerLanguage = newLanguage;
-        incWriteCount();
+        markDirty(Field.OWNER_LANGUAGE);
     }
 
     @Override
@@ -141,7 +220,7 @@ public class LandscapePhoto extends DataObject implements Photo {
     @Override
     public void setOwnerEmailAddress(EmailAddress newEmailAddress) {
         ownerEmailAddress = newEmailAddress;
-        incWriteCount();
+        markDirty(Field.OWNER_EMAIL_ADDRESS);
     }
 
     @Override
@@ -176,7 +255,7 @@ public class LandscapePhoto extends DataObject implements Photo {
 
         maxPhotoSize = PhotoSize.getFromWidthHeight(width, height);
 
-        incWriteCount();
+        markDirty(Field.WIDTH_AND_HEIGHT);
     }
 
     @Override
@@ -203,7 +282,7 @@ public class LandscapePhoto extends DataObject implements Photo {
     public void addToPraise(int value) {
         praiseSum += value;
         noVotes += 1;
-        incWriteCount();
+        markDirty(Field.PRAISE);
     }
 
     @Override
@@ -219,7 +298,7 @@ public class LandscapePhoto extends DataObject implements Photo {
     @Override
     public void setStatus(PhotoStatus newStatus) {
         status = newStatus;
-        incWriteCount();
+        markDirty(Field.STATUS);
     }
 
     @Override
@@ -235,7 +314,7 @@ public class LandscapePhoto extends DataObject implements Photo {
     @Override
     public void setTags(Tags newTags) {
         tags = newTags;
-        incWriteCount();
+        markDirty(Field.TAGS);
     }
 
     @Override
@@ -261,7 +340,7 @@ public class LandscapePhoto extends DataObject implements Photo {
     @Override
     public void setNoNewPraise() {
         noVotesAtLastNotification = noVotes;
-        incWriteCount();
+        markDirty(Field.NO_VOTES_AT_LAST_NOTIFICATION);
     }
 
     @Override
@@ -274,6 +353,24 @@ public class LandscapePhoto extends DataObject implements Photo {
         this.location = location;
     }
 
+    /**
+     * Maps a dirty mask, as taken before the photo was written, to the aspects its changes affect. An unspecified
+     * change, e.g. of a new photo, affects all of them.
+     */
+    @Override
+    public Set<PhotoChange> getChanges(long dirtyFields) {
+        if ((dirtyFields & UNSPECIFIED_FIELD) != 0) {
+            return EnumSet.allOf(PhotoChange.class);
+        }
+        Set<PhotoChange> result = EnumSet.noneOf(PhotoChange.class);
+        for (Field field : Field.values()) {
+            if ((dirtyFields & asFieldMask(field)) != 0) {
+                result.addAll(Arrays.asList(field.getChanges()));
+            }
+        }
+        return result;
+    }
+
     public String getType() {
         return type;
     }
@@ -22,6 +22,7 @@ package org.wahlzeit.model;
 
 import com.google.appengine.api.images.Image;
 import com.googlecode.objectify.annotation.Entity;
+import org.wahlzeit.model.enums.PhotoChange;
 import org.wahlzeit.model.enums.PhotoSize;
 import org.wahlzeit.model.enums.PhotoStatus;
 import org.wahlzeit.model.persistence.Persistent;
@@ -29,6 +30,8 @@ import org.wahlzeit.services.config.ModelConfig;
 import org.wahlzeit.model.enums.Language;
 import org.wahlzeit.utils.PatternInstance;
 
+import java.util.Set;
+
 /**
  * A photo represents a user-provided (uploaded) photo.
  */
@@ -56,10 +59,26 @@ public interface Photo extends Persistent {
     int MAX_THUMB_PHOTO_WIDTH = 105;
     int MAX_THUMB_PHOTO_HEIGHT = 150;
 
+    /**
+     * Returns the image in the given size, loading it via the ImageCache into a fresh heap copy if it is not held in
+     * memory. Only for cold paths; images are served from the ImageCache without copying.
+     */
     Image getImage(PhotoSize photoSize);
 
+    /**
+     * Returns the image only if it is held in memory, i.e. it has not been persisted yet. Never loads the image.
+     */
+    Image getUnsavedImage(PhotoSize photoSize);
+
     void setImage(PhotoSize photoSize, Image image);
 
+    /**
+     * Returns the content hash of the image in the given size, or null if it is not known yet.
+     */
+    String getImageETag(PhotoSize photoSize);
+
+    void setImageETag(PhotoSize photoSize, String eTag);
+
     String getIdAsString();
 
     PhotoId getId();
@@ -137,6 +156,11 @@ public interface Photo extends Persistent {
 
     void setLocation(Location location);
 
+    /**
+     * Returns the aspects affected by the fields of the given dirty mask.
+     */
+    Set<PhotoChange> getChanges(long dirtyFields);
+
     String getType();
     void setType(String type);
 }
@@ -24,6 +24,7 @@ import com.googlecode.objectify.annotation.Entity;
 import com.googlecode.objectify.annotation.Id;
 import org.wahlzeit.model.enums.FlagReason;
 import org.wahlzeit.model.enums.PhotoStatus;
+import org.wahlzeit.services.PhotoManager;
 
 /**
  * A photo case is a case where someone flagged a photo as inappropriate.
@@ -40,6 +41,14 @@ public class PhotoCase extends Case {
 	public static final String CREATED_ON = "createdOn";
 	public static final String WAS_DECIDED = "wasDecided";
 	public static final String DECIDED_ON = "decidedOn";
+
+	/**
+	 * The registered persistent fields, one bit each in the dirty mask
+	 */
+	public enum Field {
+		FLAGGER, REASON, EXPLANATION, DECIDED
+	}
+
 	protected CaseId id = CaseId.NULL_ID; // case id
 	protected int applicationId = 0; // application id (unused on Java level)
 	protected LandscapePhoto photo = null; // photo id -> photo
@@ -84,7 +93,7 @@ public class PhotoCase extends Case {
 	 *
 	 */
 	public Photo getPhoto() {
-		return photo;
+		return PhotoManager.getInstance().getCurrentPhoto(photo);
 	}
 
 	/**
@@ -106,7 +115,7 @@ public class PhotoCase extends Case {
 	 */
 	public void setFlagger(String newFlagger) {
 		flagger = newFlagger;
-		incWriteCount();
+		markDirty(Field.FLAGGER);
 	}
 
 	/**
@@ -121,7 +130,7 @@ public class PhotoCase extends Case {
 	 */
 	public void setReason(FlagReason newReason) {
 		reason = newReason;
-		incWriteCount();
+		markDirty(Field.REASON);
 	}
 
 	/**
@@ -136,7 +145,7 @@ public class PhotoCase extends Case {
 	 */
 	public void setExplanation(String newExplanation) {
 		explanation = newExplanation;
-		incWriteCount();
+		markDirty(Field.EXPLANATION);
 	}
 
 	/**
@@ -152,7 +161,7 @@ public class PhotoCase extends Case {
 	public void setDecided() {
 		wasDecided = true;
 		decidedOn = System.currentTimeMillis();
-		incWriteCount();
+		markDirty(Field.DECIDED);
 	}
 
 	/**
@@ -166,14 +175,14 @@ public class PhotoCase extends Case {
 	 *
 	 */
 	public String getPhotoOwnerName() {
-		return photo.getOwnerId();
+		return getPhoto().getOwnerId();
 	}
 
 	/**
 	 *
 	 */
 	public PhotoStatus getPhotoStatus() {
-		return photo.getStatus();
+		return getPhoto().getStatus();
 	}
 
 }
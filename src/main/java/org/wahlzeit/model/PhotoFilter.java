@@ -22,12 +22,14 @@ package org.wahlzeit.model;
 
 import org.wahlzeit.services.LogBuilder;
 import org.wahlzeit.services.PhotoManager;
+import org.wahlzeit.services.PhotoQuery;
+import org.wahlzeit.services.PhotoTagIndex;
+import org.wahlzeit.utils.FeistelPermutation;
 import org.wahlzeit.utils.StringUtil;
 
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.LinkedList;
+import java.util.BitSet;
 import java.util.List;
 import java.util.Random;
 import java.util.logging.Logger;
@@ -35,40 +37,72 @@ import java.util.logging.Logger;
 /**
  * A class to specify a photo filter.
  * A photo filter captures selection ("filtering") criteria for photos.
+ *
+ * The filter hands out the matching photos in random order without repetition. When a range is started, the matching
+ * photos that have been neither handed out, processed nor skipped are taken from the {@link PhotoTagIndex} as a
+ * bitmap, and a seeded {@link FeistelPermutation} orders the positions of its set bits; a cursor into the permutation
+ * selects the next photo. So only matching photos are visited, however sparse they or the photo IDs are, and the
+ * session holds bitmaps instead of a list of candidates. Once a range is exhausted, the next range covers the photos
+ * that have started to match in the meantime, e.g. new uploads, but also older photos that have been re-tagged or
+ * made visible again. Handed out, processed and skipped photos are kept in bitmaps indexed by PhotoId.asInt().
  */
 public class PhotoFilter implements Serializable {
 
-	private static Logger log = Logger.getLogger(PhotoFilter.class.getName());
-
 	/**
 	 *
 	 */
 	public static final String USER_NAME = "userName";
 	public static final String TAGS = "tags";
 
+	private static final Logger log = Logger.getLogger(PhotoFilter.class.getName());
+
+	/**
+	 *
+	 */
+	protected static final Random seedGenerator = new Random();
+
+	/**
+	 * Number of bits of the range bitmap per entry of its rank directory
+	 */
+	protected static final int RANK_BLOCK_BITS = 1024;
+
 	/**
 	 *
 	 */
 	protected String userName = "";
 	protected Tags tags = Tags.EMPTY_TAGS;
+	protected PhotoQuery query = null;
 
 	/**
-	 *
+	 * random order of the set bits of rangePhotoIds, which holds the IDs of the photos that matched when the range was
+	 * started and had not been handed out yet
+	 */
+	protected FeistelPermutation permutation = new FeistelPermutation(0, 0);
+	protected BitSet rangePhotoIds = new BitSet();
+	protected int cursor = 0;
+
+	/**
+	 * photos handed out since the photo stream was started
 	 */
-	protected List<PhotoId> displayablePhotoIds;
-	protected List<PhotoId> processedPhotoIds = new LinkedList<PhotoId>();
-	protected List<PhotoId> skippedPhotoIds = new LinkedList<PhotoId>();
+	protected BitSet handedOutPhotoIds = new BitSet();
+
+	/**
+	 * number of set bits of rangePhotoIds before each block of RANK_BLOCK_BITS bits; null until needed
+	 */
+	protected transient int[] rangeRanks = null;
 
 	/**
 	 *
 	 */
-	protected Random randomNumber = new Random(System.currentTimeMillis());
+	protected BitSet processedPhotoIds = new BitSet();
+	protected BitSet skippedPhotoIds = new BitSet();
+	protected int lastSkippedPhotoId = -1;
 
 	/**
 	 *
 	 */
 	public PhotoFilter() {
-		resetDisplayablePhotoIds();
+		// do nothing
 	}
 
 	/**
@@ -84,7 +118,6 @@ public class PhotoFilter implements Serializable {
 	public void clear() {
 		setUserName("");
 		setTags(Tags.EMPTY_TAGS);
-		displayablePhotoIds.clear();
 		processedPhotoIds.clear();
 	}
 
@@ -93,7 +126,7 @@ public class PhotoFilter implements Serializable {
 	 */
 	public void setUserName(String newUserName) {
 		userName = newUserName;
-		resetDisplayablePhotoIds();
+		resetPhotoStream();
 	}
 
 	/**
@@ -108,7 +141,55 @@ public class PhotoFilter implements Serializable {
 	 */
 	public void setTags(Tags newTags) {
 		tags = newTags;
-		resetDisplayablePhotoIds();
+		query = null;
+		resetPhotoStream();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public PhotoQuery getQuery() {
+		return query;
+	}
+
+	/**
+	 * A boolean query replaces the plain tag list; see {@link PhotoQuery} for the syntax.
+	 *
+	 * @methodtype set
+	 */
+	public void setQuery(PhotoQuery newQuery) {
+		query = newQuery;
+		tags = Tags.EMPTY_TAGS;
+		resetPhotoStream();
+	}
+
+	/**
+	 * Sets a boolean query if the input is one, or else the plain tag list. An invalid query is logged and leaves the
+	 * filter unchanged.
+	 *
+	 * @methodtype set
+	 */
+	public void setTagsOrQuery(String tagsOrQuery) {
+		if (PhotoQuery.isQuery(tagsOrQuery)) {
+			try {
+				setQuery(PhotoQuery.parse(tagsOrQuery));
+			} catch (IllegalArgumentException ex) {
+				log.warning(LogBuilder.createUserMessage().
+						addParameter("query", tagsOrQuery).
+						addException("invalid photo query", ex).toString());
+			}
+		} else {
+			setTags(new Tags(tagsOrQuery));
+		}
+	}
+
+	/**
+	 * Returns the query or the tags as entered by the user.
+	 *
+	 * @methodtype get
+	 */
+	public String getTagsAsString() {
+		return query != null ? query.asString() : tags.asString();
 	}
 
 	/**
@@ -138,143 +219,189 @@ public class PhotoFilter implements Serializable {
 	}
 
 	/**
-	 * @methodtype command
-	 */
-	public void generateDisplayablePhotoIds() {
-		displayablePhotoIds = getFilteredPhotoIds();
-	}
-
-	/**
-	 * Get a random photo that has not been rated. If possible avoid skipped photos.
+	 * Returns the query including the user name condition, or null if the filter uses plain conditions.
+	 *
+	 * @methodtype get
 	 */
-	public PhotoId getRandomDisplayablePhotoId() {
-		if (!displayablePhotoIds.isEmpty()) {
-			int size = displayablePhotoIds.size();
-			int index = ((randomNumber.nextInt() % size) + size) / 2;
-			return displayablePhotoIds.get(index);
-		} else {
-			return PhotoId.NULL_ID;
+	protected PhotoQuery getEffectiveQuery() {
+		String un = getUserName();
+		if (query != null && !StringUtil.isNullOrEmptyString(un)) {
+			return query.or(PhotoQuery.USER_NAME_PREFIX + Tags.asTag(un));
 		}
+		return query;
 	}
 
 	/**
+	 * Starts a new random order, e.g. after the filter criteria changed.
 	 *
+	 * @methodtype command
 	 */
-	public List<PhotoId> getDisplayablePhotoIds() {
-		return displayablePhotoIds;
+	public void resetPhotoStream() {
+		permutation = new FeistelPermutation(0, 0);
+		rangePhotoIds = new BitSet();
+		rangeRanks = null;
+		cursor = 0;
+		handedOutPhotoIds = new BitSet();
+		lastSkippedPhotoId = -1;
 	}
 
 	/**
+	 * Returns the next matching photo that has been neither processed nor skipped. If there is none, the skipped
+	 * photos are handed out again in turn. Returns PhotoId.NULL_ID if no photo matches at all.
 	 *
+	 * @methodtype get
 	 */
-	public void setDisplayablePhotoIds(List<PhotoId> newPhotoIds) {
-		displayablePhotoIds = newPhotoIds;
+	public PhotoId getNextPhotoId() {
+		return getNextPhotoId(PhotoManager.getInstance().getPhotoTagIndex());
 	}
 
 	/**
-	 *
+	 * @methodtype get
 	 */
-	public void resetDisplayablePhotoIds() {
-		displayablePhotoIds = new ArrayList<PhotoId>();
+	public PhotoId getNextPhotoId(PhotoTagIndex index) {
+		PhotoQuery effectiveQuery = getEffectiveQuery();
+		List<String> filterConditions = getFilterConditions();
+
+		// a range started here holds only photos that matched just now, so one new range per call is enough
+		boolean isRangeStarted = false;
+		while (cursor < permutation.getSize() ||
+				(!isRangeStarted && (isRangeStarted = startNextRange(index, effectiveQuery, filterConditions)))) {
+			int id = getRangePhotoIdBit(permutation.get(cursor++));
+			// the photo may have been processed, skipped or changed since the range was started
+			if (!processedPhotoIds.get(id) && !skippedPhotoIds.get(id) &&
+					isMatchingPhotoId(index, id, effectiveQuery, filterConditions)) {
+				handedOutPhotoIds.set(id);
+				return PhotoId.getIdFromInt(id);
+			}
+		}
+
+		return getNextSkippedPhotoId(index, effectiveQuery, filterConditions);
 	}
 
 	/**
+	 * Continues with a new permutation over the matching photos that have been neither handed out, processed nor
+	 * skipped; returns false if there are none. These are the photos added since the last range as well as older
+	 * photos that did not match when it was started, e.g. because they were still being processed.
 	 *
+	 * @methodtype command
 	 */
-	public List<PhotoId> getProcessedPhotoIds() {
-		return processedPhotoIds;
+	protected boolean startNextRange(PhotoTagIndex index, PhotoQuery effectiveQuery, List<String> conditions) {
+		BitSet range = effectiveQuery != null ?
+				index.getVisiblePhotoIds(effectiveQuery) : index.getVisiblePhotoIds(conditions);
+		range.andNot(handedOutPhotoIds);
+		range.andNot(processedPhotoIds);
+		range.andNot(skippedPhotoIds);
+
+		permutation = new FeistelPermutation(seedGenerator.nextLong(), range.cardinality());
+		rangePhotoIds = range;
+		rangeRanks = null;
+		cursor = 0;
+		return permutation.getSize() > 0;
 	}
 
 	/**
+	 * Returns the index of the set bit of rangePhotoIds at the given position, i.e. the bit with position set bits
+	 * before it. A rank directory narrows the search to one block of RANK_BLOCK_BITS bits.
 	 *
+	 * @methodtype get
 	 */
-	public boolean isProcessedPhotoId(PhotoId photoId) {
-		log.info("photoId: " + photoId.asString());
-		for (PhotoId id : processedPhotoIds) {
-			log.info("Processed id: " + id.asString());
+	protected int getRangePhotoIdBit(int position) {
+		if (rangeRanks == null) {
+			rangeRanks = createRanks(rangePhotoIds);
 		}
-		return processedPhotoIds.contains(photoId);
+
+		int low = 0;
+		int high = rangeRanks.length - 1;
+		while (low < high) {
+			int middle = (low + high + 1) >>> 1;
+			if (rangeRanks[middle] <= position) {
+				low = middle;
+			} else {
+				high = middle - 1;
+			}
+		}
+
+		int result = rangePhotoIds.nextSetBit(low * RANK_BLOCK_BITS);
+		for (int i = rangeRanks[low]; i < position; i++) {
+			result = rangePhotoIds.nextSetBit(result + 1);
+		}
+		return result;
 	}
 
 	/**
-	 *
+	 * @methodtype factory
 	 */
-	public void addProcessedPhoto(Photo photo) {
-		PhotoId photoId = photo.getId();
-		processedPhotoIds.add(photoId);
-		skippedPhotoIds.remove(photoId);
-		if (displayablePhotoIds != null) {
-			displayablePhotoIds.remove(photoId);
+	protected static int[] createRanks(BitSet bits) {
+		int blocks = Math.max((bits.length() + RANK_BLOCK_BITS - 1) / RANK_BLOCK_BITS, 1);
+		int[] result = new int[blocks];
+		for (int i = 1; i < blocks; i++) {
+			result[i] = result[i - 1] + bits.get((i - 1) * RANK_BLOCK_BITS, i * RANK_BLOCK_BITS).cardinality();
 		}
+		return result;
 	}
 
-
 	/**
 	 * @methodtype get
 	 */
-	public List<PhotoId> getSkippedPhotoIds() {
-		return skippedPhotoIds;
+	protected PhotoId getNextSkippedPhotoId(PhotoTagIndex index, PhotoQuery effectiveQuery, List<String> conditions) {
+		if (skippedPhotoIds.isEmpty()) {
+			return PhotoId.NULL_ID;
+		}
+
+		int start = skippedPhotoIds.nextSetBit(lastSkippedPhotoId + 1);
+		for (int id = start; id >= 0; id = skippedPhotoIds.nextSetBit(id + 1)) {
+			if (isMatchingPhotoId(index, id, effectiveQuery, conditions)) {
+				lastSkippedPhotoId = id;
+				return PhotoId.getIdFromInt(id);
+			}
+		}
+		for (int id = skippedPhotoIds.nextSetBit(0); id >= 0 && id < start; id = skippedPhotoIds.nextSetBit(id + 1)) {
+			if (isMatchingPhotoId(index, id, effectiveQuery, conditions)) {
+				lastSkippedPhotoId = id;
+				return PhotoId.getIdFromInt(id);
+			}
+		}
+		return PhotoId.NULL_ID;
 	}
 
 	/**
-	 * @methodtype set
+	 * @methodtype boolean-query
 	 */
-	public void setSkippedPhotoIds(List<PhotoId> skippedPhotoIds) {
-		this.skippedPhotoIds = skippedPhotoIds;
+	protected boolean isMatchingPhotoId(PhotoTagIndex index, int id, PhotoQuery effectiveQuery,
+										List<String> conditions) {
+		if (effectiveQuery != null) {
+			return index.isVisiblePhoto(id, effectiveQuery);
+		}
+		return index.isVisiblePhoto(id, conditions);
 	}
 
 	/**
-	 * @methodtype set
+	 *
 	 */
-	public void addSkippedPhotoId(PhotoId skippedPhotoId) {
-		if (!skippedPhotoIds.contains(skippedPhotoId)) {
-			skippedPhotoIds.add(skippedPhotoId);
-		}
+	public boolean isProcessedPhotoId(PhotoId photoId) {
+		return processedPhotoIds.get(photoId.asInt());
 	}
 
 	/**
 	 *
 	 */
-	protected List<PhotoId> getFilteredPhotoIds() {
-		// get all tags that match the filter conditions
-		List<PhotoId> result = new LinkedList<PhotoId>();
-		int noFilterConditions = getFilterConditions().size();
-		log.config(LogBuilder.createSystemMessage().
-				addParameter("Number of filter conditions", String.valueOf(noFilterConditions)).toString());
-
-		Collection<PhotoId> candidates;
-		if (noFilterConditions == 0) {
-			candidates = PhotoManager.getInstance().getPhotoCache().keySet();
-		} else {
-			List<Tag> tags = new LinkedList<Tag>();
-			candidates = new LinkedList<PhotoId>();
-			for (String condition : getFilterConditions()) {
-				PhotoManager.getInstance().addTagsThatMatchCondition(tags, condition);
-			}
-			// get the list of all photo ids that correspond to the tags
-			for (Tag tag : tags) {
-				candidates.add(PhotoId.getIdFromString(tag.getPhotoId()));
-			}
-		}
-
-		int newPhotos = 0;
-		for (PhotoId candidateId : candidates) {
-			Photo photoCandidate = PhotoManager.getInstance().getPhoto(candidateId);
-			if (!processedPhotoIds.contains(candidateId) && !skippedPhotoIds.contains(candidateId) &&
-					photoCandidate.isVisible()) {
-				result.add(candidateId);
-				++newPhotos;
-			}
-		}
-		int skippedPhotos = skippedPhotoIds.size();
-		if (newPhotos == 0 && skippedPhotos > 0) {
-			result.addAll(skippedPhotoIds);
-			newPhotos = skippedPhotos;
-		}
+	public void addProcessedPhoto(Photo photo) {
+		int id = photo.getId().asInt();
+		processedPhotoIds.set(id);
+		skippedPhotoIds.clear(id);
+	}
 
-		log.config(LogBuilder.createSystemMessage().addParameter("Number of photos to show", newPhotos)
-				.toString());
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean isSkippedPhotoId(PhotoId photoId) {
+		return skippedPhotoIds.get(photoId.asInt());
+	}
 
-		return result;
+	/**
+	 * @methodtype set
+	 */
+	public void addSkippedPhotoId(PhotoId skippedPhotoId) {
+		skippedPhotoIds.set(skippedPhotoId.asInt());
 	}
 }
@@ -20,8 +20,12 @@
 
 package org.wahlzeit.model;
 
+import org.wahlzeit.services.IdAllocator;
+import org.wahlzeit.utils.InternTable;
+
 import java.io.Serializable;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A photo id identifies a photo with a unique number.
@@ -33,12 +37,7 @@ public class PhotoId implements Serializable {
 	/**
 	 * 0 is never returned from nextValue; first value is 1
 	 */
-	protected static int currentId = 0;
-
-	/**
-	 *
-	 */
-	public static final int BUFFER_SIZE_INCREMENT = 64;
+	protected static final AtomicInteger currentId = new AtomicInteger(0);
 
 	/**
 	 *
@@ -46,9 +45,14 @@ public class PhotoId implements Serializable {
 	public static final PhotoId NULL_ID = new PhotoId(0);
 
 	/**
-	 *
+	 * Interns the ids, so there is one PhotoId object per value
 	 */
-	protected static PhotoId[] ids = new PhotoId[BUFFER_SIZE_INCREMENT];
+	protected static final InternTable<PhotoId> ids = new InternTable<PhotoId>() {
+		@Override
+		protected PhotoId create(int id) {
+			return id == 0 ? NULL_ID : new PhotoId(id);
+		}
+	};
 
 	/**
 	 * What a hack :-)
@@ -64,56 +68,54 @@ public class PhotoId implements Serializable {
 		// do nothing, necessary for Objectify to load PhotoIds
 	}
 
+	/**
+	 * Hands out the id values, see GlobalsManager.loadGlobals()
+	 */
+	protected static volatile IdAllocator idAllocator = new IdAllocator(0);
+
 	/**
 	 *
 	 */
 	public static int getCurrentIdAsInt() {
-		return currentId;
+		return currentId.get();
 	}
 
 	/**
 	 *
 	 */
-	public static synchronized void setCurrentIdFromInt(int id) {
-		currentId = id;
-		ids = new PhotoId[currentId + BUFFER_SIZE_INCREMENT];
-		ids[0] = NULL_ID;
+	public static void setCurrentIdFromInt(int id) {
+		currentId.set(id);
+		idAllocator = new IdAllocator(id);
 	}
 
 	/**
-	 *
+	 * @methodtype set
 	 */
-	public static synchronized int getNextIdAsInt() {
-		currentId += 1;
-		if (currentId >= ids.length) {
-			PhotoId[] nids = new PhotoId[currentId + BUFFER_SIZE_INCREMENT];
-			System.arraycopy(ids, 0, nids, 0, currentId);
-			ids = nids;
-		}
-		return currentId;
+	public static void setIdAllocator(IdAllocator newIdAllocator) {
+		idAllocator = newIdAllocator;
 	}
 
 	/**
 	 *
 	 */
+	public static int getNextIdAsInt() {
+		int result = (int) idAllocator.getNextId();
+		int current;
+		do {
+			current = currentId.get();
+		} while (result > current && !currentId.compareAndSet(current, result));
+		return result;
+	}
+
+	/**
+	 * IDs above the current ID are valid as well, as other instances hand out IDs from their own blocks.
+	 */
 	public static PhotoId getIdFromInt(int id) {
-		if ((id < 0) || (id > currentId)) {
+		if (id < 0) {
 			return NULL_ID;
 		}
 
-		// @FIXME http://en.wikipedia.org/wiki/Double-checked_locking
-		PhotoId result = ids[id];
-		if (result == null) {
-			synchronized (ids) {
-				result = ids[id];
-				if (result == null) {
-					result = new PhotoId(id);
-					ids[id] = result;
-				}
-			}
-		}
-
-		return result;
+		return ids.intern(id);
 	}
 
 	/**
@@ -0,0 +1,15 @@
+package org.wahlzeit.model.enums;
+
+/**
+ * The aspects of a Photo that a change may affect. When a photo is saved, only the dependents of the changed aspects
+ * are written or updated: the scaled images, the Tag entities, the tag index, and the owner, whose entity embeds the
+ * photos.
+ */
+public enum PhotoChange {
+
+	/**
+	 *
+	 */
+	IMAGES, TAGS, STATUS, OWNER_FIELDS
+
+}
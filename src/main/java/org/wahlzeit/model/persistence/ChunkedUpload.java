@@ -0,0 +1,138 @@
+package org.wahlzeit.model.persistence;
+
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Index;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The manifest of a file uploaded in chunks of chunkSize bytes, each with its own request, see
+ * {@link org.wahlzeit.services.ChunkedUploadManager}. Each received chunk is an {@link UploadChunk} entity of its own,
+ * so chunks may arrive in any order, in parallel and on any instance, and the manifest is never written while chunks
+ * arrive.
+ *
+ * @review
+ */
+@Entity
+public class ChunkedUpload {
+
+    @Id
+    private String id;
+
+    @Index
+    private String ownerId;
+
+    private String fileName;
+    private long length;
+    private int chunkSize;
+    private int chunkCount;
+
+    @Index
+    private long creationTime;
+
+    public ChunkedUpload() {
+        // just for Objectify to load it from Datastore
+    }
+
+    public ChunkedUpload(String id, String ownerId, String fileName, long length, int chunkSize) {
+        if (length < 1 || chunkSize < 1) {
+            throw new IllegalArgumentException("length and chunkSize must be positive");
+        }
+        long count = (length + chunkSize - 1) / chunkSize;
+        if (count > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("too many chunks: " + count);
+        }
+
+        this.id = id;
+        this.ownerId = ownerId;
+        this.fileName = fileName;
+        this.length = length;
+        this.chunkSize = chunkSize;
+        this.chunkCount = (int) count;
+        this.creationTime = System.currentTimeMillis();
+    }
+
+    /**
+     * @methodtype get
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @methodtype get
+     */
+    public String getOwnerId() {
+        return ownerId;
+    }
+
+    /**
+     * @methodtype get
+     */
+    public String getFileName() {
+        return fileName;
+    }
+
+    /**
+     * @methodtype get
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * @methodtype get
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * @methodtype get
+     */
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    /**
+     * @methodtype get
+     */
+    public long getCreationTime() {
+        return creationTime;
+    }
+
+    /**
+     * @methodtype boolean-query
+     */
+    public boolean isValidIndex(int index) {
+        return index >= 0 && index < chunkCount;
+    }
+
+    /**
+     * @methodtype get
+     */
+    public int getChunkLength(int index) {
+        if (!isValidIndex(index)) {
+            throw new IllegalArgumentException("chunk index out of range: " + index);
+        }
+        return (int) Math.min(chunkSize, length - (long) index * chunkSize);
+    }
+
+    /**
+     * @methodtype get
+     */
+    public List<String> getChunkIds() {
+        List<String> result = new ArrayList<String>(chunkCount);
+        for (int i = 0; i < chunkCount; i++) {
+            result.add(UploadChunk.asChunkId(id, i));
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return id + " (" + fileName + ", " + length + " bytes in " + chunkCount + " chunks)";
+    }
+}
@@ -20,13 +20,16 @@
 
 package org.wahlzeit.model.persistence;
 
-import org.wahlzeit.model.persistence.Persistent;
+import com.googlecode.objectify.annotation.Ignore;
 
 import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
 /**
- * A simple abstract implementation of Persistent with write count and dirty bit.
- * Also defines (but does not use) the field "ID" for subclass use.
+ * A simple abstract implementation of Persistent with an atomic dirty bitmask.
+ * Subclasses register their persistent fields as an enum and mark the changed field with markDirty(field), so the
+ * mask tells which fields have changed since the object was last written. incWriteCount() marks an unspecified
+ * change. Also defines (but does not use) the field "ID" for subclass use.
  */
 public abstract class DataObject implements Persistent, Serializable {
 
@@ -35,30 +38,66 @@ public abstract class DataObject implements Persistent, Serializable {
 	 */
 	public static final String ID = "id";
 
+	/**
+	 * Bit for changes that are not attributed to a registered field
+	 */
+	public static final long UNSPECIFIED_FIELD = 1L << 63;
+
 	/**
 	 *
 	 */
-	protected transient int writeCount = 0;
+	private static final AtomicLongFieldUpdater<DataObject> dirtyFieldsUpdater =
+			AtomicLongFieldUpdater.newUpdater(DataObject.class, "dirtyFields");
+
+	/**
+	 * One bit per changed field, see asFieldMask()
+	 */
+	@Ignore
+	private transient volatile long dirtyFields = 0;
+
+	/**
+	 * @methodtype conversion
+	 */
+	public static long asFieldMask(Enum<?> field) {
+		if (field.ordinal() >= 63) {
+			throw new IllegalArgumentException("too many registered fields for a dirty mask: " + field);
+		}
+		return 1L << field.ordinal();
+	}
 
 	/**
 	 *
 	 */
 	public final boolean isDirty() {
-		return writeCount != 0;
+		return dirtyFields != 0;
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public final boolean isDirty(Enum<?> field) {
+		return (dirtyFields & asFieldMask(field)) != 0;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public final long getDirtyFields() {
+		return dirtyFields;
 	}
 
 	/**
 	 *
 	 */
 	public final void resetWriteCount() {
-		writeCount = 0;
+		dirtyFieldsUpdater.set(this, 0);
 	}
 
 	/**
 	 *
 	 */
 	public final void incWriteCount() {
-		writeCount++;
+		markDirty(UNSPECIFIED_FIELD);
 	}
 
 	/**
@@ -68,4 +107,30 @@ public abstract class DataObject implements Persistent, Serializable {
 		incWriteCount();
 	}
 
+	/**
+	 * @methodtype command
+	 */
+	protected final void markDirty(Enum<?> field) {
+		markDirty(asFieldMask(field));
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public final void markDirty(long fieldMask) {
+		long current;
+		do {
+			current = dirtyFields;
+		} while (!dirtyFieldsUpdater.compareAndSet(this, current, current | fieldMask));
+	}
+
+	/**
+	 * Returns the dirty mask and clears it in one atomic step, so changes made during a write are not lost.
+	 *
+	 * @methodtype command
+	 */
+	public final long takeDirtyFields() {
+		return dirtyFieldsUpdater.getAndSet(this, 0);
+	}
+
 }
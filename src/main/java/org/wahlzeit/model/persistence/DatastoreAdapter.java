@@ -21,6 +21,7 @@
 package org.wahlzeit.model.persistence;
 
 import com.google.appengine.api.images.Image;
+import com.googlecode.objectify.Key;
 import com.googlecode.objectify.ObjectifyService;
 import com.googlecode.objectify.Work;
 import org.wahlzeit.services.LogBuilder;
@@ -28,10 +29,17 @@ import org.wahlzeit.services.OfyService;
 import org.wahlzeit.utils.PatternInstance;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.logging.Logger;
 
 /**
- * Adapter for the Google Datastore. Use default constructor to create an instance.
+ * Adapter for the Google Datastore. Use default constructor to create an instance. Images larger than one entity are
+ * stored in chunks, see {@link ImageWrapper}.
  *
  * @review
  */
@@ -41,21 +49,66 @@ public class DatastoreAdapter extends ImageStorage {
     private static final Logger log = Logger.getLogger(DatastoreAdapter.class.getName());
 
 
+    /**
+     * Large images are written as chunks first and then as their manifest, see {@link ImageWrapper}. The chunks of the
+     * image that is replaced are deleted last, so a reader never gets chunks of two writes mixed.
+     * <p>
+     * The steps are not one transaction, as a transaction could not hold 64 chunks of 1 MB. So they are guarded
+     * instead: if the manifest can not be saved, the new chunks are deleted again. The chunks to be deleted are
+     * recorded in the new manifest, and if deleting them fails, the next write of the image deletes them. Only chunks
+     * whose manifest could neither be saved nor be deleted again, e.g. because the instance died in between, are left
+     * behind.
+     */
     @Override
     protected void doWriteImage(Serializable image, String photoIdAsString, int size) throws EntitySizeLimitExceededException {
         if (image instanceof Image) {
-            final ImageWrapper imageWrapper = new ImageWrapper(photoIdAsString + size);
-            imageWrapper.setImage((Image) image);
+            final ImageWrapper imageWrapper = new ImageWrapper(asWrapperId(photoIdAsString, size));
+            final List<ImageChunk> chunks = imageWrapper.setImage((Image) image);
 
-            ObjectifyService.run(new Work<Boolean>() {
+            int deletedChunks = ObjectifyService.run(new Work<Integer>() {
                 @Override
-                public Boolean run() {
-                    OfyService.ofy().save().entity(imageWrapper).now();
-                    return null;
+                public Integer run() {
+                    ImageWrapper previous =
+                            OfyService.ofy().load().type(ImageWrapper.class).id(imageWrapper.getId()).now();
+                    List<String> staleChunkIds = new ArrayList<String>();
+                    if (previous != null) {
+                        staleChunkIds.addAll(previous.getChunkIds());
+                        if (previous.getStaleChunkIds() != null) {
+                            staleChunkIds.addAll(previous.getStaleChunkIds());
+                        }
+                        staleChunkIds.removeAll(imageWrapper.getChunkIds());
+                    }
+                    imageWrapper.setStaleChunkIds(staleChunkIds);
+
+                    if (!chunks.isEmpty()) {
+                        OfyService.ofy().save().entities(chunks).now();
+                    }
+                    try {
+                        OfyService.ofy().save().entity(imageWrapper).now();
+                    } catch (RuntimeException ex) {
+                        deleteChunks(imageWrapper.getChunkIds());
+                        throw ex;
+                    }
+
+                    if (staleChunkIds.isEmpty() || !deleteChunks(staleChunkIds)) {
+                        return 0;
+                    }
+                    imageWrapper.setStaleChunkIds(new ArrayList<String>());
+                    try {
+                        OfyService.ofy().save().entity(imageWrapper).now();
+                    } catch (RuntimeException ex) {
+                        // the next write deletes the recorded chunks once more, which does no harm
+                        log.warning(LogBuilder.createSystemMessage().
+                                addException("Could not clear stale chunks of manifest", ex).toString());
+                    }
+                    return staleChunkIds.size();
                 }
             });
 
-            log.config(LogBuilder.createSystemMessage().addMessage("image successfully written").toString());
+            log.config(LogBuilder.createSystemMessage().
+                    addMessage("image successfully written").
+                    addParameter("chunks", chunks.size()).
+                    addParameter("stale chunks deleted", deletedChunks).toString());
         } else {
             log.warning(LogBuilder.createSystemMessage().
                     addMessage("did not get an Image type to store").
@@ -63,44 +116,143 @@ public class DatastoreAdapter extends ImageStorage {
         }
     }
 
+    /**
+     * @methodtype command
+     * <p>
+     * Deletes the chunks as a best effort; returns false if that fails, which is only logged.
+     */
+    protected boolean deleteChunks(List<String> chunkIds) {
+        if (chunkIds.isEmpty()) {
+            return true;
+        }
+        try {
+            OfyService.ofy().delete().type(ImageChunk.class).ids(chunkIds).now();
+            return true;
+        } catch (RuntimeException ex) {
+            log.warning(LogBuilder.createSystemMessage().
+                    addParameter("chunks", chunkIds.size()).
+                    addException("Could not delete chunks", ex).toString());
+            return false;
+        }
+    }
+
+    /**
+     * If the image is replaced while its chunks are read, the chunks of the manifest read may already be deleted; the
+     * manifest is then read once more.
+     */
     @Override
     protected Image doReadImage(final String photoIdAsString, final int size) {
         Image result = null;
+        for (int attempt = 0; attempt < 2 && result == null; attempt++) {
+            ImageWrapper imageWrapper = ObjectifyService.run(new Work<ImageWrapper>() {
+                @Override
+                public ImageWrapper run() {
+                    return OfyService.ofy().load().type(ImageWrapper.class).id(asWrapperId(photoIdAsString, size)).now();
+                }
+            });
 
-        ImageWrapper imageWrapper = ObjectifyService.run(new Work<ImageWrapper>() {
-            @Override
-            public ImageWrapper run() {
-                return OfyService.ofy().load().type(ImageWrapper.class).id(photoIdAsString + size).now();
+            if (imageWrapper == null) {
+                log.info(LogBuilder.createSystemMessage().addMessage("does not exist!").toString());
+                return null;
             }
-        });
 
-        if (imageWrapper == null) {
-            log.info(LogBuilder.createSystemMessage().addMessage("does not exist!").toString());
-        } else {
-            result = imageWrapper.getImage();
+            result = imageWrapper.getImage(readChunks(Collections.singletonList(imageWrapper)));
             if (result != null) {
                 log.config(LogBuilder.createSystemMessage().addMessage("image successfully read").toString());
-            } else {
-                log.warning(LogBuilder.createSystemMessage().addMessage("ImageWrapper contains no Image").toString());
+            } else if (!imageWrapper.isChunked()) {
+                break;
+            }
+        }
+        if (result == null) {
+            log.warning(LogBuilder.createSystemMessage().addMessage("ImageWrapper contains no Image").toString());
+        }
+        return result;
+    }
+
+    /**
+     * Reads all images with one multi-get instead of one datastore round trip per image, and the chunks of all large
+     * images with a second one.
+     */
+    @Override
+    protected Map<ImageKey, Serializable> doReadImages(Collection<ImageKey> imageKeys) {
+        Map<String, ImageKey> wrapperIds = new HashMap<String, ImageKey>();
+        for (ImageKey imageKey : imageKeys) {
+            wrapperIds.put(asWrapperId(imageKey.getPhotoIdAsString(), imageKey.getSize()), imageKey);
+        }
+
+        final List<String> ids = new ArrayList<String>(wrapperIds.keySet());
+        Map<String, ImageWrapper> imageWrappers = ObjectifyService.run(new Work<Map<String, ImageWrapper>>() {
+            @Override
+            public Map<String, ImageWrapper> run() {
+                return OfyService.ofy().load().type(ImageWrapper.class).ids(ids);
+            }
+        });
+        Map<String, ImageChunk> chunks = readChunks(imageWrappers.values());
+
+        Map<ImageKey, Serializable> result = new HashMap<ImageKey, Serializable>();
+        for (Map.Entry<String, ImageWrapper> entry : imageWrappers.entrySet()) {
+            Image image = entry.getValue().getImage(chunks);
+            if (image != null) {
+                result.put(wrapperIds.get(entry.getKey()), image);
             }
         }
+
+        log.config(LogBuilder.createSystemMessage().
+                addParameter("images requested", ids.size()).
+                addParameter("images read", result.size()).toString());
         return result;
     }
 
+    /**
+     * Reads the chunks of all chunked wrappers with one multi-get, whose keys the datastore looks up in parallel.
+     *
+     * @methodtype get
+     */
+    protected Map<String, ImageChunk> readChunks(Collection<ImageWrapper> imageWrappers) {
+        final List<String> chunkIds = new ArrayList<String>();
+        for (ImageWrapper imageWrapper : imageWrappers) {
+            chunkIds.addAll(imageWrapper.getChunkIds());
+        }
+        if (chunkIds.isEmpty()) {
+            return Collections.emptyMap();
+        }
+
+        return ObjectifyService.run(new Work<Map<String, ImageChunk>>() {
+            @Override
+            public Map<String, ImageChunk> run() {
+                return OfyService.ofy().load().type(ImageChunk.class).ids(chunkIds);
+            }
+        });
+    }
+
+    /**
+     * @methodtype conversion
+     */
+    protected String asWrapperId(String photoIdAsString, int size) {
+        return photoIdAsString + size;
+    }
+
+    /**
+     * Uses a keys-only query, so the image itself is neither transferred nor decoded. The query is an ancestor query on
+     * the key of the wrapper, which matches the wrapper itself; unlike a query filtering on the key, it is strongly
+     * consistent, so a freshly written image is never reported absent and cached as such.
+     */
     @Override
     protected boolean doDoesImageExist(String photoIdAsString, int size) {
-        Image image = null;
+        final Key<ImageWrapper> key = Key.create(ImageWrapper.class, asWrapperId(photoIdAsString, size));
         boolean result = false;
         try {
-            image = doReadImage(photoIdAsString, size);
+            result = ObjectifyService.run(new Work<Boolean>() {
+                @Override
+                public Boolean run() {
+                    return OfyService.ofy().load().type(ImageWrapper.class).ancestor(key).keys().first().now() != null;
+                }
+            });
         } catch (Exception e) {
             log.warning(
-                    LogBuilder.createSystemMessage().addException("IOException when checking for Image existance", e)
+                    LogBuilder.createSystemMessage().addException("Exception when checking for Image existance", e)
                             .toString());
         }
-        if (image != null) {
-            result = true;
-        }
         log.config(LogBuilder.createSystemMessage().addParameter("does image exist", result).toString());
         return result;
     }
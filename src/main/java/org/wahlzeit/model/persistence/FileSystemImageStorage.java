@@ -0,0 +1,187 @@
+package org.wahlzeit.model.persistence;
+
+import com.google.appengine.api.images.Image;
+import com.google.appengine.api.images.ImagesServiceFactory;
+import org.wahlzeit.services.LogBuilder;
+import org.wahlzeit.utils.PatternInstance;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Logger;
+
+/**
+ * Adapter for the local file system, e.g. for self-hosted deployments. Each image is one file in a directory tree
+ * that is sharded by the hash of the photo ID, so no directory grows too large. Images are written to a temporary file
+ * that is then moved into place, so readers never see a partially written image. Unlike the datastore, there is no
+ * size limit for images; large files are read through a memory mapping.
+ *
+ * @review
+ */
+@PatternInstance(name = "Adapter", participants = {"FileSystemImageStorage", "ImageStorage"})
+public class FileSystemImageStorage extends ImageStorage {
+
+    private static final Logger log = Logger.getLogger(FileSystemImageStorage.class.getName());
+
+    /**
+     * Files of at least this size are read through a memory mapping
+     */
+    public static final int MIN_MAPPED_FILE_SIZE = 64 * 1024;
+
+    /**
+     *
+     */
+    protected static final String FILE_ENDING = ".img";
+    protected static final String TEMP_FILE_ENDING = ".tmp";
+
+    /**
+     *
+     */
+    protected final Path rootDir;
+
+    /**
+     *
+     */
+    public FileSystemImageStorage(Path rootDir) throws IOException {
+        this.rootDir = Files.createDirectories(rootDir);
+    }
+
+    @Override
+    protected void doWriteImage(Serializable image, String photoIdAsString, int size) {
+        if (!(image instanceof Image)) {
+            log.warning(LogBuilder.createSystemMessage().
+                    addMessage("did not get an Image type to store").
+                    addParameter("image type", image.toString()).toString());
+            return;
+        }
+
+        Path file = asPath(photoIdAsString, size);
+        try {
+            Files.createDirectories(file.getParent());
+            Path tempFile = Files.createTempFile(file.getParent(), file.getFileName().toString(), TEMP_FILE_ENDING);
+            try {
+                writeFile(tempFile, ((Image) image).getImageData());
+                moveFile(tempFile, file);
+            } finally {
+                Files.deleteIfExists(tempFile);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("could not write image " + file, e);
+        }
+
+        log.config(LogBuilder.createSystemMessage().addParameter("image successfully written", file).toString());
+    }
+
+    /**
+     * @methodtype command
+     */
+    protected void writeFile(Path file, byte[] data) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Replaces target with source in one step where the file system supports it.
+     *
+     * @methodtype command
+     */
+    protected void moveFile(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    @Override
+    protected Image doReadImage(String photoIdAsString, int size) throws IOException {
+        ByteBuffer bytes = doReadImageBytes(photoIdAsString, size);
+        if (bytes == null) {
+            return null;
+        }
+
+        byte[] data = new byte[bytes.remaining()];
+        bytes.get(data);
+        return ImagesServiceFactory.makeImage(data);
+    }
+
+    /**
+     * Maps files of at least MIN_MAPPED_FILE_SIZE bytes instead of reading them, so their bytes are not copied to the
+     * heap.
+     */
+    @Override
+    protected ByteBuffer doReadImageBytes(String photoIdAsString, int size) throws IOException {
+        Path file = asPath(photoIdAsString, size);
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            log.info(LogBuilder.createSystemMessage().addParameter("does not exist", file).toString());
+            return null;
+        }
+
+        try {
+            long fileSize = channel.size();
+            if (fileSize > Integer.MAX_VALUE) {
+                throw new IOException("image file too large: " + file);
+            }
+
+            ByteBuffer result;
+            if (fileSize >= MIN_MAPPED_FILE_SIZE) {
+                result = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+            } else {
+                result = ByteBuffer.allocate((int) fileSize);
+                while (result.hasRemaining() && channel.read(result) >= 0) {
+                    // read until the buffer is full
+                }
+                result.flip();
+            }
+            log.config(LogBuilder.createSystemMessage().addParameter("image successfully read", file).toString());
+            return result.asReadOnlyBuffer();
+        } finally {
+            channel.close();
+        }
+    }
+
+    @Override
+    protected boolean doDoesImageExist(String photoIdAsString, int size) {
+        return Files.isRegularFile(asPath(photoIdAsString, size));
+    }
+
+    /**
+     * Returns rootDir/xx/yy/photoId-size.img, where xx and yy are taken from the hash of the photo ID. The photo ID is
+     * URL-encoded, so it can not leave the directory.
+     *
+     * @methodtype conversion
+     */
+    protected Path asPath(String photoIdAsString, int size) {
+        int hash = photoIdAsString.hashCode();
+        hash ^= (hash >>> 16);
+        String firstShard = String.format("%02x", hash & 0xff);
+        String secondShard = String.format("%02x", (hash >>> 8) & 0xff);
+        String fileName;
+        try {
+            fileName = URLEncoder.encode(photoIdAsString, "UTF-8") + "-" + size + FILE_ENDING;
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        return rootDir.resolve(firstShard).resolve(secondShard).resolve(fileName);
+    }
+}
@@ -0,0 +1,237 @@
+package org.wahlzeit.model.persistence;
+
+import com.google.appengine.api.images.Image;
+import com.google.appengine.api.images.ImagesServiceFactory;
+import com.google.common.cache.CacheStats;
+import org.wahlzeit.services.LogBuilder;
+import org.wahlzeit.utils.BufferHandle;
+import org.wahlzeit.utils.PatternInstance;
+import org.wahlzeit.utils.SlabByteStore;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Cache for scaled images that loads them lazily from the {@link ImageStorage}. The image bytes are kept off the Java
+ * heap in a {@link SlabByteStore} that is bounded by maxBytes; least recently used images are evicted first. Readers
+ * either get a short-lived Image or read the bytes in place through a handle.
+ *
+ * @review
+ */
+@PatternInstance(name = "Singleton")
+public class ImageCache {
+
+    /**
+     * 64 MB
+     */
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+    private static final Logger log = Logger.getLogger(ImageCache.class.getName());
+
+    private static ImageCache instance = null;
+
+    protected final SlabByteStore<ImageKey> imageBytes;
+
+    /**
+     * loads in progress, so concurrent requests for the same image share one read
+     */
+    protected final ConcurrentMap<ImageKey, FutureTask<ByteBuffer>> loads =
+            new ConcurrentHashMap<ImageKey, FutureTask<ByteBuffer>>();
+
+    /**
+     *
+     */
+    protected final AtomicLong loadSuccessCount = new AtomicLong();
+    protected final AtomicLong loadExceptionCount = new AtomicLong();
+    protected final AtomicLong totalLoadTime = new AtomicLong();
+
+    /**
+     *
+     */
+    public ImageCache(long maxBytes) {
+        imageBytes = new SlabByteStore<ImageKey>(maxBytes, (int) Math.min(SlabByteStore.DEFAULT_SLAB_SIZE, maxBytes));
+    }
+
+    /**
+     * @methodtype get
+     */
+    public static synchronized ImageCache getInstance() {
+        if (instance == null) {
+            log.config(LogBuilder.createSystemMessage().addAction("create default ImageCache").toString());
+            instance = new ImageCache(DEFAULT_MAX_BYTES);
+        }
+        return instance;
+    }
+
+    /**
+     * @methodtype set
+     */
+    public static synchronized void setInstance(ImageCache newInstance) {
+        instance = newInstance;
+    }
+
+    /**
+     * Returns the image of the photo in the given size. On a cache miss, the image is read from the ImageStorage;
+     * concurrent requests for the same image share one read. Returns null if the image does not exist.
+     * <p>
+     * An Image needs its bytes on the heap, so every call copies them out of the cache, hit or miss. This is meant for
+     * cold paths only, e.g. scaling a missing size; serving images must use acquireImageBytes().
+     *
+     * @methodtype get
+     */
+    public Image getImage(String photoIdAsString, int size) {
+        ImageKey imageKey = new ImageKey(photoIdAsString, size);
+        byte[] bytes = imageBytes.get(imageKey);
+        if (bytes == null) {
+            ByteBuffer loadedBytes = loadImageBytes(imageKey);
+            if (loadedBytes == null) {
+                return null;
+            }
+            bytes = new byte[loadedBytes.remaining()];
+            loadedBytes.duplicate().get(bytes);
+        }
+        return ImagesServiceFactory.makeImage(bytes);
+    }
+
+    /**
+     * Returns a handle to read the bytes of the image in place, or null if the image does not exist. The handle must
+     * be released after use. Images that are too large for the cache are returned in a handle of the buffer read from
+     * the ImageStorage, e.g. a mapped file, so they are not copied to the heap either.
+     *
+     * @methodtype get
+     */
+    public BufferHandle acquireImageBytes(String photoIdAsString, int size) {
+        ImageKey imageKey = new ImageKey(photoIdAsString, size);
+        BufferHandle result = imageBytes.acquire(imageKey);
+        if (result == null) {
+            ByteBuffer loadedBytes = loadImageBytes(imageKey);
+            if (loadedBytes != null) {
+                result = BufferHandle.wrap(loadedBytes);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Reads the bytes of the image from the ImageStorage and caches them, sharing the read with concurrent loads of
+     * the same image. The returned buffer is read-only and must not be modified.
+     *
+     * @methodtype get
+     */
+    protected ByteBuffer loadImageBytes(final ImageKey imageKey) {
+        FutureTask<ByteBuffer> load = new FutureTask<ByteBuffer>(new Callable<ByteBuffer>() {
+            @Override
+            public ByteBuffer call() throws Exception {
+                long startTime = System.nanoTime();
+                ByteBuffer result = doLoadImageBytes(imageKey.getPhotoIdAsString(), imageKey.getSize());
+                totalLoadTime.addAndGet(System.nanoTime() - startTime);
+                if (result != null) {
+                    imageBytes.put(imageKey, result);
+                }
+                return result;
+            }
+        });
+        FutureTask<ByteBuffer> runningLoad = loads.putIfAbsent(imageKey, load);
+        if (runningLoad == null) {
+            try {
+                load.run();
+            } finally {
+                loads.remove(imageKey, load);
+            }
+            runningLoad = load;
+        }
+
+        try {
+            ByteBuffer result = runningLoad.get();
+            if (runningLoad == load) {
+                loadSuccessCount.incrementAndGet();
+            }
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            if (runningLoad == load) {
+                loadExceptionCount.incrementAndGet();
+            }
+            log.warning(LogBuilder.createSystemMessage().
+                    addParameter("photo ID", imageKey.getPhotoIdAsString()).
+                    addParameter("size", imageKey.getSize()).
+                    addException("Could not load image", e.getCause()).toString());
+            return null;
+        }
+    }
+
+    /**
+     * @methodtype get
+     * @methodproperty primitive
+     */
+    protected ByteBuffer doLoadImageBytes(String photoIdAsString, int size) throws Exception {
+        return ImageStorage.getInstance().readImageBytes(photoIdAsString, size);
+    }
+
+    /**
+     * Reads all images that are not cached yet with one batch read from the ImageStorage, e.g. the thumbnails of a
+     * gallery page before the browser requests them one by one.
+     *
+     * @methodtype command
+     */
+    public void preloadImages(Collection<ImageKey> imageKeys) {
+        List<ImageKey> missing = new ArrayList<ImageKey>();
+        for (ImageKey imageKey : imageKeys) {
+            if (!imageBytes.contains(imageKey)) {
+                missing.add(imageKey);
+            }
+        }
+        if (missing.isEmpty()) {
+            return;
+        }
+
+        try {
+            Map<ImageKey, Serializable> rawImages = ImageStorage.getInstance().readImages(missing);
+            for (Map.Entry<ImageKey, Serializable> entry : rawImages.entrySet()) {
+                if (entry.getValue() instanceof Image) {
+                    imageBytes.put(entry.getKey(), ((Image) entry.getValue()).getImageData());
+                }
+            }
+        } catch (IOException e) {
+            log.warning(LogBuilder.createSystemMessage().
+                    addParameter("number of images", missing.size()).
+                    addException("Could not preload images", e).toString());
+        }
+    }
+
+    /**
+     * @methodtype set
+     */
+    public void putImage(String photoIdAsString, int size, Image image) {
+        imageBytes.put(new ImageKey(photoIdAsString, size), image.getImageData());
+    }
+
+    /**
+     * @methodtype command
+     */
+    public void invalidate(String photoIdAsString, int size) {
+        imageBytes.remove(new ImageKey(photoIdAsString, size));
+    }
+
+    /**
+     * @methodtype get
+     */
+    public CacheStats getStats() {
+        return new CacheStats(imageBytes.getHitCount(), imageBytes.getMissCount(), loadSuccessCount.get(),
+                loadExceptionCount.get(), totalLoadTime.get(), imageBytes.getEvictionCount());
+    }
+}
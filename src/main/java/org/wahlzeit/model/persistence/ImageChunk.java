@@ -0,0 +1,51 @@
+package org.wahlzeit.model.persistence;
+
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+
+/**
+ * One part of an image that is too large for a single entity, see {@link ImageWrapper}.
+ *
+ * @review
+ */
+@Entity
+public class ImageChunk {
+
+    @Id
+    private String id;
+
+    private byte[] data;
+
+    public ImageChunk() {
+        // just for Objectify to load it from Datastore
+    }
+
+    public ImageChunk(String id, byte[] data) {
+        this.id = id;
+        this.data = data;
+    }
+
+    /**
+     * @methodtype conversion
+     * <p>
+     * Each write of an image uses a new generation, so its chunks never overwrite those of a previous write that a
+     * reader may still be assembling.
+     */
+    public static String asChunkId(String wrapperId, long generation, int index) {
+        return wrapperId + "-" + Long.toHexString(generation) + "-" + index;
+    }
+
+    /**
+     * @methodtype get
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @methodtype get
+     */
+    public byte[] getData() {
+        return data;
+    }
+}
@@ -0,0 +1,69 @@
+package org.wahlzeit.model.persistence;
+
+import org.wahlzeit.model.enums.PhotoSize;
+
+/**
+ * Value object that identifies one stored image by the ID of its photo and its size.
+ *
+ * @review
+ */
+public class ImageKey {
+
+	private final String photoIdAsString;
+	private final int size;
+
+	/**
+	 *
+	 */
+	public ImageKey(String photoIdAsString, int size) {
+		this.photoIdAsString = photoIdAsString;
+		this.size = size;
+	}
+
+	/**
+	 *
+	 */
+	public ImageKey(String photoIdAsString, PhotoSize photoSize) {
+		this(photoIdAsString, photoSize.asInt());
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public String getPhotoIdAsString() {
+		return photoIdAsString;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	public String asString() {
+		return photoIdAsString + "/" + size;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof ImageKey)) {
+			return false;
+		}
+		ImageKey other = (ImageKey) o;
+		return size == other.size && photoIdAsString.equals(other.photoIdAsString);
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * photoIdAsString.hashCode() + size;
+	}
+
+	@Override
+	public String toString() {
+		return asString();
+	}
+}
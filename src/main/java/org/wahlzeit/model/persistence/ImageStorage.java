@@ -1,12 +1,19 @@
 package org.wahlzeit.model.persistence;
 
+import com.google.appengine.api.images.Image;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import org.wahlzeit.model.enums.PhotoSize;
 import org.wahlzeit.services.LogBuilder;
 import org.wahlzeit.utils.PatternInstance;
 
 import java.io.IOException;
 import java.io.Serializable;
-import java.security.InvalidParameterException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 /**
@@ -20,6 +27,27 @@ public abstract class ImageStorage {
 	private static final Logger log = Logger.getLogger(ImageStorage.class.getName());
 	private static ImageStorage instance = null;
 
+	/**
+	 * Bounds of the in-memory existence caches. Absent images expire as other instances may write them meanwhile.
+	 */
+	public static final int MAX_KNOWN_IMAGES = 100000;
+	public static final int ABSENT_IMAGES_EXPIRY_SECONDS = 60;
+
+	/**
+	 * Images that are known to exist; images are never deleted, so this never gets stale
+	 */
+	protected final Cache<ImageKey, Boolean> knownPresentImages = CacheBuilder.newBuilder().
+			maximumSize(MAX_KNOWN_IMAGES).
+			build();
+
+	/**
+	 * Images that have been confirmed to not exist recently
+	 */
+	protected final Cache<ImageKey, Boolean> knownAbsentImages = CacheBuilder.newBuilder().
+			maximumSize(MAX_KNOWN_IMAGES).
+			expireAfterWrite(ABSENT_IMAGES_EXPIRY_SECONDS, TimeUnit.SECONDS).
+			build();
+
 	/**
 	 * @methodtype get
 	 */
@@ -66,6 +94,7 @@ public abstract class ImageStorage {
 				addParameter("size", size).toString());
 
 		doWriteImage(image, photoIdAsString, size);
+		setImageExists(new ImageKey(photoIdAsString, size), true);
 	}
 
 	/**
@@ -97,7 +126,9 @@ public abstract class ImageStorage {
 				addParameter("photo id", photoIdAsString).
 				addParameter("size", size).toString());
 
-		return doReadImage(photoIdAsString, size);
+		Serializable result = doReadImage(photoIdAsString, size);
+		setImageExists(new ImageKey(photoIdAsString, size), result != null);
+		return result;
 	}
 
 	/**
@@ -109,11 +140,100 @@ public abstract class ImageStorage {
 	protected abstract Serializable doReadImage(String filename, int size)
 			throws IOException;
 
+	/**
+	 * Reads the encoded bytes of an image, e.g. to send them to a client without decoding them. When the image is not
+	 * found, null is returned. The buffer is read-only and may be backed by a mapped file.
+	 *
+	 * @methodtype get
+	 * @methodproperty convenience
+	 */
+	public ByteBuffer readImageBytes(String photoIdAsString, int size)
+			throws IllegalArgumentException, IOException {
+
+		assertValidPhotoId(photoIdAsString);
+		PhotoSize.assertIsValidPhotoSizeAsInt(size);
+
+		log.config(LogBuilder.createSystemMessage().
+				addAction("read image bytes from storage").
+				addParameter("photo id", photoIdAsString).
+				addParameter("size", size).toString());
+
+		ByteBuffer result = doReadImageBytes(photoIdAsString, size);
+		setImageExists(new ImageKey(photoIdAsString, size), result != null);
+		return result;
+	}
+
+	/**
+	 * Actually reads the bytes of the specified image. Reads the image itself; override if the storage can provide
+	 * the bytes directly.
+	 *
+	 * @methodtype get
+	 * @methodproperty hook
+	 */
+	protected ByteBuffer doReadImageBytes(String photoIdAsString, int size)
+			throws IOException {
+
+		Serializable image = doReadImage(photoIdAsString, size);
+		if (image instanceof Image) {
+			return ByteBuffer.wrap(((Image) image).getImageData()).asReadOnlyBuffer();
+		}
+		return null;
+	}
+
+	/**
+	 * Reads several images at once. Images that are not found are not contained in the result.
+	 *
+	 * @methodtype get
+	 * @methodproperty convenience
+	 */
+	public Map<ImageKey, Serializable> readImages(Collection<ImageKey> imageKeys)
+			throws IllegalArgumentException, IOException {
+
+		for (ImageKey imageKey : imageKeys) {
+			assertValidPhotoId(imageKey.getPhotoIdAsString());
+			PhotoSize.assertIsValidPhotoSizeAsInt(imageKey.getSize());
+		}
+
+		log.config(LogBuilder.createSystemMessage().
+				addAction("read images from storage").
+				addParameter("number of images", imageKeys.size()).toString());
+
+		if (imageKeys.isEmpty()) {
+			return new HashMap<ImageKey, Serializable>();
+		}
+		Map<ImageKey, Serializable> result = doReadImages(imageKeys);
+		for (ImageKey imageKey : imageKeys) {
+			setImageExists(imageKey, result.containsKey(imageKey));
+		}
+		return result;
+	}
+
+	/**
+	 * Actually reads the specified images from the storage. Reads one image after the other; override if the storage
+	 * can fetch several images in one round trip.
+	 *
+	 * @methodtype get
+	 * @methodproperty hook
+	 */
+	protected Map<ImageKey, Serializable> doReadImages(Collection<ImageKey> imageKeys)
+			throws IOException {
+
+		Map<ImageKey, Serializable> result = new HashMap<ImageKey, Serializable>();
+		for (ImageKey imageKey : imageKeys) {
+			Serializable image = doReadImage(imageKey.getPhotoIdAsString(), imageKey.getSize());
+			if (image != null) {
+				result.put(imageKey, image);
+			}
+		}
+		return result;
+	}
+
 
 	// exist method ----------------------------------------------------------------------------------------------------
 
 	/**
-	 * Checks if the specified image already exists in the storage
+	 * Checks if the specified image already exists in the storage. Images that have been written, read or checked
+	 * before are answered from memory without asking the storage.
 	 *
 	 * @methodtype boolean query
 	 * @methodproperty wrapper
@@ -124,17 +244,39 @@ public abstract class ImageStorage {
 		assertValidPhotoId(photoIdAsString);
 		PhotoSize.assertIsValidPhotoSizeAsInt(size);
 
+		ImageKey imageKey = new ImageKey(photoIdAsString, size);
+		if (knownPresentImages.getIfPresent(imageKey) != null) {
+			return true;
+		}
+		if (knownAbsentImages.getIfPresent(imageKey) != null) {
+			return false;
+		}
+
 		log.config(LogBuilder.createSystemMessage().
 				addAction("check if image exists in storage").
 				addParameter("photo id", photoIdAsString).
 				addParameter("size", size).toString());
 
-		return doDoesImageExist(photoIdAsString, size);
+		boolean result = doDoesImageExist(photoIdAsString, size);
+		setImageExists(imageKey, result);
+		return result;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	protected void setImageExists(ImageKey imageKey, boolean exists) {
+		if (exists) {
+			knownPresentImages.put(imageKey, Boolean.TRUE);
+			knownAbsentImages.invalidate(imageKey);
+		} else {
+			knownAbsentImages.put(imageKey, Boolean.TRUE);
+		}
 	}
 
 
 	/**
-	 * Actually checks if the specified image already exists in the storage
+	 * Actually checks if the specified image already exists in the storage. Should not read the image itself.
 	 *
 	 * @methodtype boolean query
 	 * @methodproperty hook
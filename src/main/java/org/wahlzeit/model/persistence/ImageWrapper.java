@@ -5,22 +5,54 @@ import com.google.appengine.api.images.ImagesServiceFactory;
 import com.googlecode.objectify.annotation.Entity;
 import com.googlecode.objectify.annotation.Id;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
 /**
  * Wrapper class to store {@link Image}s in the Google Datastore with Objectify.
+ * Images that fit into one entity are stored inline. Larger images are split into {@link ImageChunk}s and the wrapper
+ * is their manifest, so images are not limited by the maximum entity size of 1 MB.
  *
  * @review
  */
 @Entity
 public class ImageWrapper {
 
-    // see https://cloud.google.com/datastore/docs/tools/administration
-    public final int maxEntitySize = 1024 * 1024; // = 1 MB
+    /**
+     * Leaves room for the key and properties below the maximum entity size of the datastore, see
+     * https://cloud.google.com/datastore/docs/concepts/limits
+     */
+    public static final int MAX_CHUNK_SIZE = 1000 * 1024;
+
+    /**
+     * Bounds the number of chunks read with one multi-get
+     */
+    public static final int MAX_CHUNKS = 64;
 
     @Id
     private String id;
 
+    /**
+     * null if the image is stored in chunks
+     */
     private byte[] imageData;
 
+    private int chunkCount = 0;
+    private int length = 0;
+
+    /**
+     * identifies the chunks of one write, see ImageChunk.asChunkId
+     */
+    private long generation;
+
+    /**
+     * chunks of previous writes that are still to be deleted, see DatastoreAdapter.doWriteImage()
+     */
+    private List<String> staleChunkIds = new ArrayList<String>();
+
     public ImageWrapper() {
         // just for Objectify to load it from Datastore
     }
@@ -32,19 +64,123 @@ public class ImageWrapper {
     /**
      * @methodtype get
      */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @methodtype boolean-query
+     */
+    public boolean isChunked() {
+        return chunkCount > 0;
+    }
+
+    /**
+     * @methodtype get
+     */
+    public List<String> getChunkIds() {
+        List<String> result = new ArrayList<String>(chunkCount);
+        for (int i = 0; i < chunkCount; i++) {
+            result.add(ImageChunk.asChunkId(id, generation, i));
+        }
+        return result;
+    }
+
+    /**
+     * @methodtype get
+     * <p>
+     * Returns the inline image; chunked images have to be assembled with getImage(Map).
+     */
     public Image getImage() {
+        if (isChunked()) {
+            throw new IllegalStateException("image " + id + " is stored in chunks");
+        }
         return ImagesServiceFactory.makeImage(imageData);
     }
 
     /**
-     * @methodtype set <p> Can not handle images >= 1 MB because this is the upper limit of entities in Google
-     * Datastore. </p>
+     * @methodtype get
+     * <p>
+     * Assembles the image from its chunks, which are looked up by their ID. Returns null if a chunk is missing, e.g.
+     * because it was not written completely.
+     */
+    public Image getImage(Map<String, ImageChunk> chunks) {
+        if (!isChunked()) {
+            return getImage();
+        }
+
+        byte[] result = new byte[length];
+        int offset = 0;
+        for (String chunkId : getChunkIds()) {
+            ImageChunk chunk = chunks.get(chunkId);
+            if (chunk == null || offset + chunk.getData().length > length) {
+                return null;
+            }
+            System.arraycopy(chunk.getData(), 0, result, offset, chunk.getData().length);
+            offset += chunk.getData().length;
+        }
+        return offset == length ? ImagesServiceFactory.makeImage(result) : null;
+    }
+
+    /**
+     * @methodtype get
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @methodtype get
      */
-    public void setImage(Image image) throws EntitySizeLimitExceededException {
-        if (image.getImageData().length >= maxEntitySize) {
-            throw new EntitySizeLimitExceededException("Can not store images >= 1 MB in the Google Datastore.", image.getImageData().length, maxEntitySize);
+    public List<String> getStaleChunkIds() {
+        return staleChunkIds;
+    }
+
+    /**
+     * @methodtype set
+     */
+    public void setStaleChunkIds(List<String> staleChunkIds) {
+        this.staleChunkIds = staleChunkIds;
+    }
+
+    /**
+     * @methodtype set
+     * <p>
+     * Stores small images inline. Larger images are split into chunks of a new generation, which are returned and have
+     * to be saved before this manifest, so no reader finds the manifest without its chunks. The chunks of a previous
+     * manifest are left untouched and have to be deleted after this manifest has been saved.
+     */
+    public List<ImageChunk> setImage(Image image) throws EntitySizeLimitExceededException {
+        byte[] data = image.getImageData();
+        int maxSize = MAX_CHUNKS * MAX_CHUNK_SIZE;
+        if (data.length > maxSize) {
+            throw new EntitySizeLimitExceededException("Can not store images of more than " + MAX_CHUNKS +
+                    " chunks in the Google Datastore.", data.length, maxSize);
+        }
+
+        List<ImageChunk> result = new ArrayList<ImageChunk>();
+        length = data.length;
+        if (data.length <= MAX_CHUNK_SIZE) {
+            imageData = data;
+            chunkCount = 0;
         } else {
-            imageData = image.getImageData();
+            imageData = null;
+            generation = newGeneration();
+            for (int offset = 0; offset < data.length; offset += MAX_CHUNK_SIZE) {
+                byte[] chunkData = Arrays.copyOfRange(data, offset, Math.min(data.length, offset + MAX_CHUNK_SIZE));
+                result.add(new ImageChunk(ImageChunk.asChunkId(id, generation, result.size()), chunkData));
+            }
+            chunkCount = result.size();
         }
+        return result;
+    }
+
+    /**
+     * @methodtype factory
+     * <p>
+     * Random, so concurrent writers of one image do not pick the same generation.
+     */
+    protected static long newGeneration() {
+        return ThreadLocalRandom.current().nextLong();
     }
 }
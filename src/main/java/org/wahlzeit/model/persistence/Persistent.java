@@ -22,7 +22,7 @@ package org.wahlzeit.model.persistence;
 
 /**
  * A Persistent object is an object that can be read from and written to some storage.
- * Also, it has a write count, which serves as a dirty flag.
+ * Also, it has a mask of changed fields, which serves as a dirty flag.
  */
 public interface Persistent {
 
@@ -41,4 +41,14 @@ public interface Persistent {
 	 */
 	void resetWriteCount();
 
+	/**
+	 * Marks the fields of the mask as changed, e.g. to restore a mask after a failed write.
+	 */
+	void markDirty(long fieldMask);
+
+	/**
+	 * Returns the mask of changed fields and atomically marks the object as clean.
+	 */
+	long takeDirtyFields();
+
 }
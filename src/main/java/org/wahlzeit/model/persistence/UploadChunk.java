@@ -0,0 +1,48 @@
+package org.wahlzeit.model.persistence;
+
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+
+/**
+ * One received chunk of a {@link ChunkedUpload}.
+ *
+ * @review
+ */
+@Entity
+public class UploadChunk {
+
+    @Id
+    private String id;
+
+    private byte[] data;
+
+    public UploadChunk() {
+        // just for Objectify to load it from Datastore
+    }
+
+    public UploadChunk(String id, byte[] data) {
+        this.id = id;
+        this.data = data;
+    }
+
+    /**
+     * @methodtype conversion
+     */
+    public static String asChunkId(String uploadId, int index) {
+        return uploadId + "-" + index;
+    }
+
+    /**
+     * @methodtype get
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @methodtype get
+     */
+    public byte[] getData() {
+        return data;
+    }
+}
@@ -23,7 +23,6 @@ package org.wahlzeit.model.users;
 import com.google.appengine.api.datastore.Key;
 import com.googlecode.objectify.annotation.Entity;
 import com.googlecode.objectify.annotation.Id;
-import com.googlecode.objectify.annotation.Ignore;
 import com.googlecode.objectify.annotation.Parent;
 import org.wahlzeit.model.*;
 import org.wahlzeit.model.enums.AccessRights;
@@ -31,24 +30,32 @@ import org.wahlzeit.model.enums.Language;
 import org.wahlzeit.model.enums.PhotoSize;
 import org.wahlzeit.services.config.LanguageConfigs;
 import org.wahlzeit.services.config.ModelConfig;
-import org.wahlzeit.model.persistence.Persistent;
+import org.wahlzeit.model.persistence.DataObject;
 import org.wahlzeit.services.*;
 
-import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
 
 /**
  * A Client uses the system. It is an abstract superclass. This package defines guest, user, moderator, and
  * administrator clients.
+ * Changes are tracked per field, see Field.
  */
 @Entity
-public abstract class Client implements Serializable, Persistent {
+public abstract class Client extends DataObject {
 
 	public static final String ID = "id";
 	public static final String NICK_NAME = "nickName";
 	public static final String LANGUAGE = "language";
 
+	/**
+	 * The registered persistent fields of clients and users, one bit each in the dirty mask
+	 */
+	public enum Field {
+		NICK_NAME, ACCESS_RIGHTS, HTTP_SESSION_ID, LANGUAGE,
+		NOTIFY_ABOUT_PRAISE, GENDER, STATUS, USER_PHOTO, PHOTOS
+	}
+
 	@Id
 	protected String id;
 
@@ -67,9 +74,6 @@ public abstract class Client implements Serializable, Persistent {
 	 */
 	protected AccessRights accessRights = AccessRights.NONE;
 
-	@Ignore
-	protected int writeCount = 0;
-
 	private String httpSessionId;
 
 	protected Language language = Language.ENGLISH;
@@ -129,7 +133,7 @@ public abstract class Client implements Serializable, Persistent {
 	 */
 	public void setAccessRights(AccessRights newRights) {
 		accessRights = newRights;
-		incWriteCount();
+		markDirty(Field.ACCESS_RIGHTS);
 	}
 
 	/**
@@ -145,7 +149,7 @@ public abstract class Client implements Serializable, Persistent {
 	public void setNickName(String nickName) throws IllegalArgumentException {
 		UserManager.getInstance().changeNickname(this.nickName, nickName);
 		this.nickName = nickName;
-		incWriteCount();
+		markDirty(Field.NICK_NAME);
 	}
 
 	/**
@@ -190,33 +194,12 @@ public abstract class Client implements Serializable, Persistent {
 		return emailAddress;
 	}
 
-	/**
-	 *
-	 */
-	public boolean isDirty() {
-		return writeCount != 0;
-	}
-
-	/**
-	 *
-	 */
-	public void incWriteCount() {
-		writeCount++;
-	}
-
-	/**
-	 *
-	 */
-	public void resetWriteCount() {
-		writeCount = 0;
-	}
-
 	/**
 	 *
 	 */
 	public void removeHttpSessionId() {
 		httpSessionId = null;
-		incWriteCount();
+		markDirty(Field.HTTP_SESSION_ID);
 	}
 
 	public String getHttpSessionId() {
@@ -228,7 +211,7 @@ public abstract class Client implements Serializable, Persistent {
 	 */
 	public void setHttpSessionId(String httpSessionId) {
 		this.httpSessionId = httpSessionId;
-		incWriteCount();
+		markDirty(Field.HTTP_SESSION_ID);
 	}
 
 	/**
@@ -243,7 +226,7 @@ public abstract class Client implements Serializable, Persistent {
 	 */
 	public void setLanguage(Language newLanguage) {
 		language = newLanguage;
-		incWriteCount();
+		markDirty(Field.LANGUAGE);
 		doSetLanguage(newLanguage);
 	}
 
@@ -20,8 +20,6 @@
 
 package org.wahlzeit.model.users;
 
-import com.google.appengine.api.images.Image;
-import com.googlecode.objectify.annotation.Ignore;
 import com.googlecode.objectify.annotation.Subclass;
 import org.wahlzeit.model.LandscapePhoto;
 import org.wahlzeit.model.enums.AccessRights;
@@ -31,6 +29,7 @@ import org.wahlzeit.model.enums.UserStatus;
 import org.wahlzeit.model.EmailAddress;
 import org.wahlzeit.model.enums.Language;
 import org.wahlzeit.services.LogBuilder;
+import org.wahlzeit.services.PhotoManager;
 
 import java.util.Arrays;
 import java.util.Comparator;
@@ -81,8 +80,6 @@ public class User extends Client {
 	 *  To persist the "photo" in the GAE storage we unfortunately need to use the *actual* implementation
 	 */
 	protected Set<LandscapePhoto> photos = new HashSet<>();
-	@Ignore // only used as temporary variable
-	protected Image uploadedImage = null;
 
 	/**
 	 *
@@ -135,8 +132,7 @@ public class User extends Client {
 
 	@Override
 	protected void doSetLanguage(Language newLanguage) {
-		for (Iterator<LandscapePhoto> i = photos.iterator(); i.hasNext(); ) {
-			Photo photo = i.next();
+		for (Photo photo : getCurrentPhotos()) {
 			photo.setOwnerLanguage(language);
 		}
 	}
@@ -154,12 +150,11 @@ public class User extends Client {
 	public void setNotifyAboutPraise(boolean notify) {
 		notifyAboutPraise = notify;
 
-		for (Iterator<LandscapePhoto> i = photos.iterator(); i.hasNext(); ) {
-			Photo photo = i.next();
+		for (Photo photo : getCurrentPhotos()) {
 			photo.setOwnerNotifyAboutPraise(notifyAboutPraise);
 		}
 
-		incWriteCount();
+		markDirty(Field.NOTIFY_ABOUT_PRAISE);
 	}
 
 	/**
@@ -174,7 +169,7 @@ public class User extends Client {
 	 */
 	public void setGender(Gender newGender) {
 		gender = newGender;
-		incWriteCount();
+		markDirty(Field.GENDER);
 	}
 
 	/**
@@ -196,7 +191,7 @@ public class User extends Client {
 	 */
 	public void setStatus(UserStatus newStatus) {
 		status = newStatus;
-		incWriteCount();
+		markDirty(Field.STATUS);
 	}
 
 	/**
@@ -204,7 +199,6 @@ public class User extends Client {
 	 */
 	public void setConfirmed() {
 		setStatus(status.asConfirmed());
-		incWriteCount();
 	}
 
 	/**
@@ -218,7 +212,7 @@ public class User extends Client {
 	 * @methodtype get
 	 */
 	public Photo getUserPhoto() {
-		return userPhoto;
+		return PhotoManager.getInstance().getCurrentPhoto(userPhoto);
 	}
 
 	/**
@@ -227,7 +221,7 @@ public class User extends Client {
 	public void setUserPhoto(Photo newPhoto) {
 		userPhoto = (LandscapePhoto) newPhoto;
 		log.info("SetUserPhoto: " + newPhoto.getIdAsString());
-		incWriteCount();
+		markDirty(Field.USER_PHOTO);
 	}
 
 	/**
@@ -248,15 +242,20 @@ public class User extends Client {
 		newPhoto.setOwnerEmailAddress(emailAddress);
 		newPhoto.setOwnerLanguage(language);
 
-		incWriteCount();
+		markDirty(Field.PHOTOS);
 	}
 
 	/**
 	 * @methodtype set
 	 */
 	public void removePhoto(Photo notMyPhoto) {
-		photos.remove(notMyPhoto);
-		incWriteCount();
+		// the set may hold another instance of the photo, see getCurrentPhotos()
+		for (Iterator<LandscapePhoto> i = photos.iterator(); i.hasNext(); ) {
+			if (i.next().getId() == notMyPhoto.getId()) {
+				i.remove();
+			}
+		}
+		markDirty(Field.PHOTOS);
 	}
 
 	/**
@@ -277,11 +276,26 @@ public class User extends Client {
 	 * @methodtype conversion
 	 */
 	public Photo[] getPhotosReverseOrderedByPraise() {
-		Photo[] result = photos.toArray(new Photo[0]);
+		Photo[] result = getCurrentPhotos();
 		Arrays.sort(result, getPhotoByPraiseReverseComparator());
 		return result;
 	}
 
+	/**
+	 * Returns the photos as held by the PhotoManager. The photos in the set are the instances that were added or
+	 * loaded with the user; one that has been evicted from the photo cache meanwhile no longer receives changes.
+	 *
+	 * @methodtype get
+	 */
+	protected Photo[] getCurrentPhotos() {
+		Photo[] result = new Photo[photos.size()];
+		int i = 0;
+		for (Photo photo : photos) {
+			result[i++] = PhotoManager.getInstance().getCurrentPhoto(photo);
+		}
+		return result;
+	}
+
 	/**
 	 * @methodtype get
 	 */
@@ -302,18 +316,4 @@ public class User extends Client {
 			}
 		};
 	}
-
-	/**
-	 * @methodtype set
-	 */
-	public void setUploadedImage(Image image) {
-		uploadedImage = image;
-	}
-
-	/**
-	 * @methodtype get
-	 */
-	public Image getUploadedImage() {
-		return uploadedImage;
-	}
 }
@@ -0,0 +1,322 @@
+package org.wahlzeit.services;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.VoidWork;
+import com.googlecode.objectify.Work;
+import org.wahlzeit.model.persistence.ChunkedUpload;
+import org.wahlzeit.model.persistence.ImageWrapper;
+import org.wahlzeit.model.persistence.UploadChunk;
+import org.wahlzeit.services.config.SysConfig;
+import org.wahlzeit.utils.PatternInstance;
+import org.wahlzeit.utils.TooManyUploadsException;
+import org.wahlzeit.utils.UploadSizeLimitExceededException;
+import org.wahlzeit.utils.UploadedFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import static org.wahlzeit.services.OfyService.ofy;
+
+/**
+ * Keeps the resumable uploads in the datastore, so their chunks may be sent to any instance. Each upload is a
+ * {@link ChunkedUpload} manifest and one {@link UploadChunk} entity per received chunk; which chunks have been received
+ * is read from the keys of the chunk entities, so parallel chunk requests never write the same entity. Each upload has
+ * a random ID and belongs to the client that started it; no other client can see or change it. A client can have at
+ * most MAX_UPLOADS_PER_OWNER uploads open, and uploads older than MAX_AGE_MILLIS are discarded.
+ *
+ * @review
+ */
+@PatternInstance(name = "Singleton")
+public class ChunkedUploadManager {
+
+	private static final Logger log = Logger.getLogger(ChunkedUploadManager.class.getName());
+
+	private static ChunkedUploadManager instance = null;
+
+	/**
+	 * 1 day
+	 */
+	public static final long MAX_AGE_MILLIS = 24 * 60 * 60 * 1000;
+
+	/**
+	 *
+	 */
+	public static final int MAX_UPLOADS_PER_OWNER = 4;
+
+	/**
+	 * Bounds the number of expired uploads discarded when an upload is started
+	 */
+	protected static final int MAX_EXPIRED_UPLOADS_REMOVED = 20;
+
+	/**
+	 *
+	 */
+	protected static final int ID_BITS = 128;
+
+	/**
+	 *
+	 */
+	protected final int chunkSize;
+	protected final long maxSize;
+	protected final SecureRandom random = new SecureRandom();
+
+	/**
+	 * Chunks are stored as entities, so they are at most ImageWrapper.MAX_CHUNK_SIZE bytes.
+	 */
+	public ChunkedUploadManager(int chunkSize, long maxSize) {
+		this.chunkSize = Math.min(chunkSize, ImageWrapper.MAX_CHUNK_SIZE);
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public static synchronized ChunkedUploadManager getInstance() {
+		if (instance == null) {
+			instance = new ChunkedUploadManager(SysConfig.getUploadChunkSize(), SysConfig.getUploadMaxSize());
+		}
+		return instance;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public static synchronized void setInstance(ChunkedUploadManager newInstance) {
+		instance = newInstance;
+	}
+
+	/**
+	 * Starts an upload of length bytes for the owner. As the number of open uploads of the owner is read with an
+	 * eventually consistent query, the limit may be exceeded by uploads started at the same time.
+	 *
+	 * @methodtype factory
+	 */
+	public ChunkedUpload createUpload(final String ownerId, String fileName, long length) throws IOException {
+		if (length > maxSize) {
+			throw new UploadSizeLimitExceededException(fileName, maxSize);
+		}
+		removeExpiredUploads();
+
+		int openUploads = ObjectifyService.run(new Work<Integer>() {
+			@Override
+			public Integer run() {
+				return ofy().load().type(ChunkedUpload.class).filter("ownerId", ownerId).
+						limit(MAX_UPLOADS_PER_OWNER).keys().list().size();
+			}
+		});
+		if (openUploads >= MAX_UPLOADS_PER_OWNER) {
+			throw new TooManyUploadsException(ownerId, MAX_UPLOADS_PER_OWNER);
+		}
+
+		String id = new BigInteger(ID_BITS, random).toString(Character.MAX_RADIX);
+		final ChunkedUpload result = new ChunkedUpload(id, ownerId, fileName, length, chunkSize);
+		ObjectifyService.run(new VoidWork() {
+			@Override
+			public void vrun() {
+				ofy().save().entity(result).now();
+			}
+		});
+		log.config(LogBuilder.createSystemMessage().
+				addAction("start chunked upload").
+				addParameter("upload", result).toString());
+		return result;
+	}
+
+	/**
+	 * Returns the upload of the given ID, or null if there is none or it belongs to another owner.
+	 *
+	 * @methodtype get
+	 */
+	public ChunkedUpload getUpload(final String id, String ownerId) {
+		ChunkedUpload result = ObjectifyService.run(new Work<ChunkedUpload>() {
+			@Override
+			public ChunkedUpload run() {
+				return ofy().load().type(ChunkedUpload.class).id(id).now();
+			}
+		});
+		if (result == null || !result.getOwnerId().equals(ownerId) || isExpired(result)) {
+			return null;
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the indices of the chunks not received yet, in ascending order.
+	 *
+	 * @methodtype get
+	 */
+	public List<Integer> getMissingChunks(ChunkedUpload upload) {
+		final List<String> chunkIds = upload.getChunkIds();
+		List<Key<UploadChunk>> keys = new ArrayList<Key<UploadChunk>>();
+		for (String chunkId : chunkIds) {
+			keys.add(Key.create(UploadChunk.class, chunkId));
+		}
+
+		final List<Key<UploadChunk>> chunkKeys = keys;
+		Map<Key<UploadChunk>, UploadChunk> chunks = ObjectifyService.run(new Work<Map<Key<UploadChunk>, UploadChunk>>() {
+			@Override
+			public Map<Key<UploadChunk>, UploadChunk> run() {
+				return ofy().load().keys(chunkKeys);
+			}
+		});
+
+		List<Integer> result = new ArrayList<Integer>();
+		for (int i = 0; i < chunkKeys.size(); i++) {
+			if (!chunks.containsKey(chunkKeys.get(i))) {
+				result.add(i);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Stores the chunk of the given index from the input, which must hold exactly upload.getChunkLength(index) bytes,
+	 * and closes the input. Returns false if the input holds fewer or more bytes, or if the upload has been committed
+	 * or discarded meanwhile; the chunk is then not stored.
+	 *
+	 * @methodtype command
+	 */
+	public boolean writeChunk(final ChunkedUpload upload, int index, InputStream input) throws IOException {
+		byte[] data = new byte[upload.getChunkLength(index)];
+		try {
+			int offset = 0;
+			while (offset < data.length) {
+				int count = input.read(data, offset, data.length - offset);
+				if (count < 0) {
+					return false;
+				}
+				offset += count;
+			}
+			if (input.read() >= 0) {
+				return false; // more bytes than the chunk holds
+			}
+		} finally {
+			input.close();
+		}
+
+		final UploadChunk chunk = new UploadChunk(UploadChunk.asChunkId(upload.getId(), index), data);
+		return ObjectifyService.run(new Work<Boolean>() {
+			@Override
+			public Boolean run() {
+				ofy().save().entity(chunk).now();
+				// a commit or abort that ran meanwhile has not seen this chunk, so it is removed here
+				if (ofy().load().type(ChunkedUpload.class).id(upload.getId()).now() == null) {
+					ofy().delete().entity(chunk).now();
+					return false;
+				}
+				return true;
+			}
+		});
+	}
+
+	/**
+	 * Ends the complete upload and returns its bytes as an UploadedFile. Returns null if chunks are missing or the
+	 * upload has already been committed or discarded, e.g. by a concurrent request.
+	 *
+	 * @methodtype command
+	 */
+	public UploadedFile commitUpload(final ChunkedUpload upload) {
+		final List<String> chunkIds = upload.getChunkIds();
+		Map<String, UploadChunk> chunks = ObjectifyService.run(new Work<Map<String, UploadChunk>>() {
+			@Override
+			public Map<String, UploadChunk> run() {
+				return ofy().load().type(UploadChunk.class).ids(chunkIds);
+			}
+		});
+		if (chunks.size() < chunkIds.size()) {
+			return null;
+		}
+
+		byte[] data = new byte[(int) upload.getLength()];
+		int offset = 0;
+		for (String chunkId : chunkIds) {
+			byte[] chunkData = chunks.get(chunkId).getData();
+			System.arraycopy(chunkData, 0, data, offset, chunkData.length);
+			offset += chunkData.length;
+		}
+
+		if (!removeUpload(upload)) {
+			return null; // committed by another request
+		}
+		log.config(LogBuilder.createSystemMessage().
+				addAction("commit chunked upload").
+				addParameter("upload", upload).toString());
+		return UploadedFile.wrap(upload.getFileName(), data);
+	}
+
+	/**
+	 * Discards the upload; returns false if it has already been committed or discarded.
+	 *
+	 * @methodtype command
+	 */
+	public boolean abortUpload(ChunkedUpload upload) {
+		return removeUpload(upload);
+	}
+
+	/**
+	 * Deletes the manifest in a transaction, so only one request removes it, and then the chunks.
+	 *
+	 * @methodtype command
+	 */
+	protected boolean removeUpload(final ChunkedUpload upload) {
+		boolean result = ObjectifyService.run(new Work<Boolean>() {
+			@Override
+			public Boolean run() {
+				return ofy().transact(new Work<Boolean>() {
+					@Override
+					public Boolean run() {
+						if (ofy().load().type(ChunkedUpload.class).id(upload.getId()).now() == null) {
+							return false;
+						}
+						ofy().delete().entity(upload).now();
+						return true;
+					}
+				});
+			}
+		});
+
+		ObjectifyService.run(new VoidWork() {
+			@Override
+			public void vrun() {
+				ofy().delete().type(UploadChunk.class).ids(upload.getChunkIds()).now();
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Discards some of the uploads older than MAX_AGE_MILLIS.
+	 *
+	 * @methodtype command
+	 */
+	public void removeExpiredUploads() {
+		final long minCreationTime = System.currentTimeMillis() - MAX_AGE_MILLIS;
+		List<ChunkedUpload> expiredUploads = ObjectifyService.run(new Work<List<ChunkedUpload>>() {
+			@Override
+			public List<ChunkedUpload> run() {
+				return ofy().load().type(ChunkedUpload.class).filter("creationTime <", minCreationTime).
+						limit(MAX_EXPIRED_UPLOADS_REMOVED).list();
+			}
+		});
+		for (ChunkedUpload upload : expiredUploads) {
+			removeUpload(upload);
+			log.config(LogBuilder.createSystemMessage().
+					addAction("discard expired chunked upload").
+					addParameter("upload", upload).toString());
+		}
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	protected boolean isExpired(ChunkedUpload upload) {
+		return upload.getCreationTime() < System.currentTimeMillis() - MAX_AGE_MILLIS;
+	}
+}
@@ -20,7 +20,7 @@ public abstract class ClientManager extends ObjectManager {
 	/**
 	 *
 	 */
-	protected static Long lastClientId = 0L;
+	protected static volatile IdAllocator idAllocator = new IdAllocator(0);
 
 	/**
 	 * Maps IDs to user
@@ -140,6 +140,15 @@ public abstract class ClientManager extends ObjectManager {
 		updateObject(client);
 	}
 
+	/**
+	 * Saves the client at the end of the current unit of work, once for any number of calls.
+	 *
+	 * @methodtype command
+	 */
+	public void saveClientDeferred(Client client) {
+		updateObjectDeferred(client);
+	}
+
 
 	// save methods ----------------------------------------------------------------------------------------------------
 
@@ -166,21 +175,28 @@ public abstract class ClientManager extends ObjectManager {
 	 * @methodtype get
 	 */
 	public Long getLastClientId() {
-		return lastClientId;
+		return idAllocator.getLastId();
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public void setLastClientId(Long newId) {
+		idAllocator = new IdAllocator(newId);
 	}
 
 	/**
 	 * @methodtype set
 	 */
-	public synchronized void setLastClientId(Long newId) {
-		lastClientId = newId;
+	public void setIdAllocator(IdAllocator newIdAllocator) {
+		idAllocator = newIdAllocator;
 	}
 
 	/**
 	 * @methodtype get
 	 */
-	public synchronized Long getNextClientId() {
-		return ++lastClientId;
+	public Long getNextClientId() {
+		return idAllocator.getNextId();
 	}
 
 
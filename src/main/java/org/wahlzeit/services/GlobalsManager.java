@@ -6,6 +6,7 @@ import org.wahlzeit.model.Case;
 import org.wahlzeit.model.CaseId;
 import org.wahlzeit.model.Globals;
 import org.wahlzeit.model.PhotoId;
+import org.wahlzeit.services.config.SysConfig;
 import org.wahlzeit.servlets.AbstractServlet;
 import org.wahlzeit.utils.PatternInstance;
 
@@ -47,6 +48,37 @@ public class GlobalsManager extends ObjectManager {
 		PhotoId.setCurrentIdFromInt(globals.getLastPhotoId());
 		Case.setLastCaseId(new CaseId(globals.getLastCaseId()));
 		AbstractServlet.setLastSessionId(globals.getLastSessionId());
+
+		// from now on, IDs are handed out from blocks reserved in the datastore
+		int blockSize = SysConfig.getIdBlockSize();
+		UserManager.getInstance().setIdAllocator(new IdAllocator(Globals.Counter.CLIENT, blockSize));
+		// photo IDs index bitmaps, so they are reserved in small blocks to stay dense
+		PhotoId.setIdAllocator(new IdAllocator(Globals.Counter.PHOTO, SysConfig.getPhotoIdBlockSize()));
+		Case.setIdAllocator(new IdAllocator(Globals.Counter.CASE, blockSize));
+		AbstractServlet.setSessionIdAllocator(new IdAllocator(Globals.Counter.SESSION, blockSize));
+	}
+
+	/**
+	 * Reserves the next number IDs of the counter in one transaction and returns the first of them.
+	 *
+	 * @methodtype command
+	 */
+	public long reserveIds(final Globals.Counter counter, final int number) {
+		return ObjectifyService.run(new Work<Long>() {
+			@Override
+			public Long run() {
+				return ofy().transact(new Work<Long>() {
+					@Override
+					public Long run() {
+						Globals globals = readGlobals();
+						long firstId = globals.getLastId(counter) + 1;
+						globals.setLastId(counter, firstId + number - 1);
+						ofy().save().entity(globals).now();
+						return firstId;
+					}
+				});
+			}
+		});
 	}
 
 	/**
@@ -96,22 +128,51 @@ public class GlobalsManager extends ObjectManager {
 	}
 
 	/**
-	 * @methodtype command Saves all global variables.
+	 * @methodtype command Saves all global variables. Counters are only raised, never lowered, so IDs that other
+	 * instances have reserved in the meantime stay reserved; Globals is only written if a counter has changed.
 	 */
-	public synchronized void saveGlobals() {
-		final Globals globals = new Globals();
-		globals.setLastUserId(UserManager.getInstance().getLastClientId());
-		globals.setLastPhotoId(PhotoId.getCurrentIdAsInt());
-		globals.setLastCaseId(Case.getLastCaseId().asInt());
-		globals.setLastSessionId(AbstractServlet.getLastSessionId());
-		log.info(globals.asString());
-
+	public void saveGlobals() {
 		ObjectifyService.run(new Work<Void>() {
 			@Override
 			public Void run() {
-				writeObject(globals);
-				return null;
+				return ofy().transact(new Work<Void>() {
+					@Override
+					public Void run() {
+						Globals globals = readGlobals();
+						globals.resetWriteCount();
+						raiseLastId(globals, Globals.Counter.CLIENT, UserManager.getInstance().getLastClientId());
+						raiseLastId(globals, Globals.Counter.PHOTO, PhotoId.getCurrentIdAsInt());
+						raiseLastId(globals, Globals.Counter.CASE, Case.getLastCaseId().asInt());
+						raiseLastId(globals, Globals.Counter.SESSION, AbstractServlet.getLastSessionId());
+						if (globals.isDirty()) {
+							log.info(globals.asString());
+							ofy().save().entity(globals).now();
+						}
+						return null;
+					}
+				});
 			}
 		});
 	}
+
+	/**
+	 * @methodtype helper
+	 */
+	protected void raiseLastId(Globals globals, Globals.Counter counter, long lastId) {
+		if (lastId > globals.getLastId(counter)) {
+			globals.setLastId(counter, lastId);
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	protected Globals readGlobals() {
+		Globals result = readObject(Globals.class, Globals.DEAULT_ID);
+		if (result == null) {
+			result = new Globals();
+			result.setLastUserId(Globals.DEAULT_ID);
+		}
+		return result;
+	}
 }
@@ -0,0 +1,119 @@
+package org.wahlzeit.services;
+
+import org.wahlzeit.model.Globals;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Hands out the IDs of one counter with an atomic increment. A local allocator simply counts up from the last ID. A
+ * reserving allocator hands out IDs from blocks of consecutive IDs (hi/lo allocation): each block is reserved
+ * transactionally in the Globals entity, so several instances never hand out the same ID, and Globals is written
+ * once per block instead of once per ID. IDs left in the block of an instance that shuts down are skipped.
+ *
+ * @review
+ */
+public class IdAllocator {
+
+	private static final Logger log = Logger.getLogger(IdAllocator.class.getName());
+
+	/**
+	 * null for a local allocator
+	 */
+	protected final Globals.Counter counter;
+	protected final int blockSize;
+
+	/**
+	 * the block IDs are currently handed out from; replaced under the lock of this when exhausted
+	 */
+	protected volatile IdBlock block;
+
+	/**
+	 * Creates a local allocator whose first ID is lastId + 1.
+	 */
+	public IdAllocator(long lastId) {
+		this.counter = null;
+		this.blockSize = 0;
+		this.block = new IdBlock(lastId + 1, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Creates an allocator that reserves blocks of blockSize IDs of the counter; the first block is reserved on first
+	 * use.
+	 */
+	public IdAllocator(Globals.Counter counter, int blockSize) {
+		if (blockSize < 1) {
+			throw new IllegalArgumentException("blockSize must be positive");
+		}
+		this.counter = counter;
+		this.blockSize = blockSize;
+		this.block = new IdBlock(1, 0);
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getNextId() {
+		while (true) {
+			IdBlock current = block;
+			long id = current.nextId.getAndIncrement();
+			if (id <= current.lastId) {
+				return id;
+			}
+
+			synchronized (this) {
+				if (block == current) {
+					block = reserveBlock();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the last ID handed out, or the ID before the current block if none has been handed out from it yet.
+	 *
+	 * @methodtype get
+	 */
+	public long getLastId() {
+		IdBlock current = block;
+		return Math.min(current.nextId.get() - 1, current.lastId);
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean isReserving() {
+		return counter != null;
+	}
+
+	/**
+	 * @methodtype factory
+	 */
+	protected IdBlock reserveBlock() {
+		if (!isReserving()) {
+			throw new IllegalStateException("local ID counter overflow");
+		}
+
+		long firstId = GlobalsManager.getInstance().reserveIds(counter, blockSize);
+		log.config(LogBuilder.createSystemMessage().
+				addAction("reserve ID block").
+				addParameter("counter", counter).
+				addParameter("first ID", firstId).
+				addParameter("size", blockSize).toString());
+		return new IdBlock(firstId, firstId + blockSize - 1);
+	}
+
+	/**
+	 * A range of IDs from nextId to lastId
+	 */
+	protected static class IdBlock {
+
+		protected final AtomicLong nextId;
+		protected final long lastId;
+
+		protected IdBlock(long firstId, long lastId) {
+			this.nextId = new AtomicLong(firstId);
+			this.lastId = lastId;
+		}
+	}
+}
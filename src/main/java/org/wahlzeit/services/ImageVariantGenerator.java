@@ -0,0 +1,129 @@
+package org.wahlzeit.services;
+
+import com.google.appengine.api.images.Image;
+import com.google.appengine.api.images.ImagesServiceFactory;
+import org.wahlzeit.model.Photo;
+import org.wahlzeit.model.enums.PhotoSize;
+import org.wahlzeit.model.persistence.ImageKey;
+import org.wahlzeit.utils.ImageScalingPipeline;
+import org.wahlzeit.utils.PatternInstance;
+import org.wahlzeit.utils.PhotoUtil;
+
+import java.util.EnumSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Logger;
+
+/**
+ * Creates missing scaled images of a photo on their first request, from the largest stored size. Concurrent requests
+ * for the same image share one job. The created image is saved with the photo, so it is created only once.
+ *
+ * @review
+ */
+@PatternInstance(name = "Singleton")
+public class ImageVariantGenerator {
+
+	private static final Logger log = Logger.getLogger(ImageVariantGenerator.class.getName());
+
+	private static ImageVariantGenerator instance = null;
+
+	/**
+	 * jobs in progress, so concurrent requests for the same image share one
+	 */
+	protected final ConcurrentMap<ImageKey, FutureTask<Image>> jobs = new ConcurrentHashMap<ImageKey, FutureTask<Image>>();
+
+	/**
+	 * @methodtype get
+	 */
+	public static synchronized ImageVariantGenerator getInstance() {
+		if (instance == null) {
+			instance = new ImageVariantGenerator();
+		}
+		return instance;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public static synchronized void setInstance(ImageVariantGenerator newInstance) {
+		instance = newInstance;
+	}
+
+	/**
+	 * Returns the image of the photo in the given size, creating it from a larger size. Returns null if the photo has
+	 * no such size or there is no larger image to create it from.
+	 *
+	 * @methodtype get
+	 */
+	public Image getImage(final Photo photo, final PhotoSize size) {
+		if (!photo.hasPhotoSize(size) || photo.getStatus().isProcessing()) {
+			return null;
+		}
+
+		ImageKey imageKey = new ImageKey(photo.getIdAsString(), size.asInt());
+		FutureTask<Image> job = new FutureTask<Image>(new Callable<Image>() {
+			@Override
+			public Image call() {
+				return doCreateImage(photo, size);
+			}
+		});
+		FutureTask<Image> runningJob = jobs.putIfAbsent(imageKey, job);
+		if (runningJob == null) {
+			try {
+				job.run();
+			} finally {
+				jobs.remove(imageKey, job);
+			}
+			runningJob = job;
+		}
+
+		try {
+			return runningJob.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException e) {
+			log.warning(LogBuilder.createSystemMessage().
+					addParameter("photo ID", photo.getIdAsString()).
+					addParameter("size", size.asString()).
+					addException("Could not create image", e.getCause()).toString());
+			return null;
+		}
+	}
+
+	/**
+	 * @methodtype factory
+	 * @methodproperty primitive
+	 */
+	protected Image doCreateImage(Photo photo, PhotoSize size) {
+		Image source = null;
+		PhotoSize sourceSize = null;
+		for (int i = photo.getMaxPhotoSize().asInt(); source == null && i > size.asInt(); i--) {
+			sourceSize = PhotoSize.getFromInt(i);
+			source = photo.getImage(sourceSize);
+		}
+		if (source == null) {
+			return null;
+		}
+
+		// the image the photo still holds unsaved must not be changed by scaling, a loaded one is a fresh copy already
+		if (source == photo.getUnsavedImage(sourceSize)) {
+			source = ImagesServiceFactory.makeImage(source.getImageData());
+		}
+		Image result = ImageScalingPipeline.getInstance().scale(source, photo.getWidth(), photo.getHeight(),
+				PhotoUtil.getOutputEncoding(photo.getEnding()), EnumSet.of(size)).get(size);
+		if (result != null) {
+			log.config(LogBuilder.createSystemMessage().
+					addAction("create image on demand").
+					addParameter("photo ID", photo.getIdAsString()).
+					addParameter("size", size.asString()).toString());
+			// saving the photo writes the image to the ImageStorage
+			photo.setImage(size, result);
+			PhotoManager.getInstance().savePhoto(photo);
+		}
+		return result;
+	}
+}
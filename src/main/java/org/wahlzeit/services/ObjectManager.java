@@ -22,9 +22,12 @@ package org.wahlzeit.services;
 
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
+import com.googlecode.objectify.Result;
 import org.wahlzeit.model.persistence.Persistent;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.logging.Logger;
 
@@ -39,8 +42,36 @@ public abstract class ObjectManager {
 	 */
 	public static final Key applicationRootKey = KeyFactory.createKey("Application", "Wahlzeit");
 
+	/**
+	 * Maximum number of entities the datastore accepts in one batch put or delete
+	 */
+	public static final int MAX_BATCH_SIZE = 500;
+
+	/**
+	 * Number of batches that are sent before the oldest one is waited for
+	 */
+	public static final int MAX_BATCHES_IN_FLIGHT = 4;
+
 	private static final Logger log = Logger.getLogger(ObjectManager.class.getName());
 
+	/**
+	 * If set, dirty objects are written in the background instead of on the request thread
+	 */
+	protected static volatile WriteBehindQueue writeBehindQueue = null;
+
+	/**
+	 * @methodtype get
+	 */
+	public static WriteBehindQueue getWriteBehindQueue() {
+		return writeBehindQueue;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public static void setWriteBehindQueue(WriteBehindQueue newWriteBehindQueue) {
+		writeBehindQueue = newWriteBehindQueue;
+	}
 
 	/**
 	 * Reads the first Entity with the given key in the Datastore
@@ -131,9 +162,7 @@ public abstract class ObjectManager {
 	 * Updates all entities of the given collection in the datastore.
 	 */
 	protected void updateObjects(Collection<? extends Persistent> collection) {
-		for (Persistent object : collection) {
-			updateObject(object);
-		}
+		writeObjects(collection);
 	}
 
 	/**
@@ -144,17 +173,37 @@ public abstract class ObjectManager {
 	}
 
 	/**
-	 * Writes the given entity to the datastore.
+	 * Updates the given entity at the end of the current unit of work, or immediately if there is none.
+	 */
+	protected void updateObjectDeferred(Persistent object) {
+		if (!UnitOfWork.defer(this, object)) {
+			updateObject(object);
+		}
+	}
+
+	/**
+	 * Writes the given entity to the datastore, or hands it to the write-behind queue if there is one.
 	 */
 	protected void writeObject(Persistent object) {
 		assertIsNonNullArgument(object, "object");
 
-		if (object.isDirty()) {
+		WriteBehindQueue queue = writeBehindQueue;
+		if (queue != null && object.isDirty()) {
+			log.config(LogBuilder.createSystemMessage().
+					addParameter("Datastore: Queue object of type", object).toString());
+			queue.enqueue(this, object);
+		} else if (object.isDirty()) {
 			log.info(LogBuilder.createSystemMessage().
 					addParameter("Datastore: Write object of type", object).toString());
-			OfyService.ofy().save().entity(object).now();
-			updateDependents(object);
-			object.resetWriteCount();
+			long dirtyFields = object.takeDirtyFields();
+			try {
+				OfyService.ofy().save().entity(object).now();
+			} catch (RuntimeException ex) {
+				// the object has not been saved, keep its fields dirty
+				object.markDirty(dirtyFields);
+				throw ex;
+			}
+			updateDependents(object, dirtyFields);
 		} else {
 			log.info(LogBuilder.createSystemMessage().
 					addParameter("Datastore: No need to update object", object).toString());
@@ -162,9 +211,115 @@ public abstract class ObjectManager {
 	}
 
 	/**
-	 * Updates all dependencies of the object.
+	 * Writes all dirty entities of the collection to the datastore in batches of MAX_BATCH_SIZE and updates their
+	 * dependents, or hands them to the write-behind queue if there is one.
+	 */
+	protected void writeObjects(Collection<? extends Persistent> objects) {
+		assertIsNonNullArgument(objects, "objects");
+
+		List<Persistent> dirtyObjects = new ArrayList<Persistent>();
+		for (Persistent object : objects) {
+			if (object.isDirty()) {
+				dirtyObjects.add(object);
+			}
+		}
+		if (dirtyObjects.isEmpty()) {
+			return;
+		}
+
+		WriteBehindQueue queue = writeBehindQueue;
+		if (queue != null) {
+			for (Persistent object : dirtyObjects) {
+				queue.enqueue(this, object);
+			}
+		} else {
+			doWriteObjects(dirtyObjects);
+		}
+	}
+
+	/**
+	 * Writes the objects with asynchronous batch saves of at most MAX_BATCH_SIZE entities, keeping up to
+	 * MAX_BATCHES_IN_FLIGHT batches outstanding, and updates their dependents once their batch is written. The dirty
+	 * masks are taken before saving, so changes made while a batch is written mark the objects dirty again. If a batch
+	 * fails, no further batch is sent, but all batches in flight are still completed before the first failure is
+	 * rethrown; the objects of failed and unsent batches keep their dirty masks.
 	 */
-	protected void updateDependents(Persistent object) {
+	protected void doWriteObjects(List<? extends Persistent> objects) {
+		log.info(LogBuilder.createSystemMessage().
+				addParameter("Datastore: Write objects, number", objects.size()).toString());
+
+		RuntimeException failure = null;
+		LinkedList<PendingBatch<? extends Persistent>> pendingBatches = new LinkedList<PendingBatch<? extends Persistent>>();
+		for (int start = 0; failure == null && start < objects.size(); start += MAX_BATCH_SIZE) {
+			List<? extends Persistent> batch = objects.subList(start, Math.min(start + MAX_BATCH_SIZE, objects.size()));
+			long[] dirtyFields = new long[batch.size()];
+			for (int i = 0; i < dirtyFields.length; i++) {
+				dirtyFields[i] = batch.get(i).takeDirtyFields();
+			}
+			try {
+				PendingBatch<Persistent> pendingBatch =
+						new PendingBatch<Persistent>(batch, OfyService.ofy().save().entities(batch));
+				pendingBatch.dirtyFields = dirtyFields;
+				pendingBatches.add(pendingBatch);
+			} catch (RuntimeException ex) {
+				restoreDirtyFields(batch, dirtyFields);
+				failure = ex;
+			}
+			if (pendingBatches.size() >= MAX_BATCHES_IN_FLIGHT) {
+				failure = completeWrite(pendingBatches.removeFirst(), failure);
+			}
+		}
+		while (!pendingBatches.isEmpty()) {
+			failure = completeWrite(pendingBatches.removeFirst(), failure);
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * Waits for the batch and updates the dependents of its objects. Returns the earlier failure, if any, or else the
+	 * failure of this batch, or null.
+	 *
+	 * @methodtype helper
+	 */
+	protected RuntimeException completeWrite(PendingBatch<? extends Persistent> batch, RuntimeException failure) {
+		try {
+			batch.complete("Datastore: batch written");
+		} catch (RuntimeException ex) {
+			// the objects have not been saved, keep their fields dirty
+			restoreDirtyFields(batch.objects, batch.dirtyFields);
+			return failure != null ? failure : ex;
+		}
+
+		for (int i = 0; i < batch.objects.size(); i++) {
+			Persistent object = batch.objects.get(i);
+			try {
+				updateDependents(object, batch.dirtyFields[i]);
+			} catch (RuntimeException ex) {
+				log.warning(LogBuilder.createSystemMessage().
+						addException("Datastore: could not update dependents of " + object, ex).toString());
+				if (failure == null) {
+					failure = ex;
+				}
+			}
+		}
+		return failure;
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void restoreDirtyFields(List<? extends Persistent> objects, long[] dirtyFields) {
+		for (int i = 0; i < objects.size(); i++) {
+			objects.get(i).markDirty(dirtyFields[i]);
+		}
+	}
+
+	/**
+	 * Updates all dependencies of the object, after the given dirty fields of it have been written.
+	 */
+	protected void updateDependents(Persistent object, long writtenFields) {
 		// overwrite if your object has additional dependencies
 	}
 
@@ -178,6 +333,53 @@ public abstract class ObjectManager {
 		OfyService.ofy().delete().entity(object).now();
 	}
 
+	/**
+	 * Deletes all given entities from the datastore with asynchronous batch deletes of at most MAX_BATCH_SIZE
+	 * entities, keeping up to MAX_BATCHES_IN_FLIGHT batches outstanding. If a batch fails, no further batch is sent,
+	 * but all batches in flight are still completed before the first failure is rethrown.
+	 */
+	protected <E> void deleteObjects(Collection<E> objects) {
+		assertIsNonNullArgument(objects, "objects");
+		if (objects.isEmpty()) {
+			return;
+		}
+
+		log.config(LogBuilder.createSystemMessage().
+				addParameter("Datastore: delete entities, number", objects.size()).toString());
+		List<E> objectList = new ArrayList<E>(objects);
+		RuntimeException failure = null;
+		LinkedList<PendingBatch<E>> pendingBatches = new LinkedList<PendingBatch<E>>();
+		for (int start = 0; failure == null && start < objectList.size(); start += MAX_BATCH_SIZE) {
+			List<E> batch = objectList.subList(start, Math.min(start + MAX_BATCH_SIZE, objectList.size()));
+			try {
+				pendingBatches.add(new PendingBatch<E>(batch, OfyService.ofy().delete().entities(batch)));
+			} catch (RuntimeException ex) {
+				failure = ex;
+			}
+			if (pendingBatches.size() >= MAX_BATCHES_IN_FLIGHT) {
+				failure = completeDelete(pendingBatches.removeFirst(), failure);
+			}
+		}
+		while (!pendingBatches.isEmpty()) {
+			failure = completeDelete(pendingBatches.removeFirst(), failure);
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * @methodtype helper
+	 */
+	protected RuntimeException completeDelete(PendingBatch<?> batch, RuntimeException failure) {
+		try {
+			batch.complete("Datastore: batch deleted");
+		} catch (RuntimeException ex) {
+			return failure != null ? failure : ex;
+		}
+		return failure;
+	}
+
 	/**
 	 * Deletes all entities of the type that have a property with the specified value, e.g.
 	 * deleteObjects(PhotoCase.class, "wasDecided", true) to delete all cases that have been decided.
@@ -202,4 +404,35 @@ public abstract class ObjectManager {
 		assertIsNonNullArgument(arg, "anonymous");
 	}
 
+	/**
+	 * An asynchronous batch operation that has been sent to the datastore
+	 */
+	protected static class PendingBatch<E> {
+
+		protected final List<? extends E> objects;
+		protected final Result<?> result;
+		protected final long startTime = System.currentTimeMillis();
+
+		/**
+		 * dirty masks of the written objects, to restore them if the batch fails or else to update their dependents
+		 */
+		protected long[] dirtyFields;
+
+		protected PendingBatch(List<? extends E> objects, Result<?> result) {
+			this.objects = objects;
+			this.result = result;
+		}
+
+		/**
+		 * Waits until the batch is done and logs how long it took.
+		 */
+		protected void complete(String message) {
+			result.now();
+			log.config(LogBuilder.createSystemMessage().
+					addMessage(message).
+					addParameter("number of entities", objects.size()).
+					addParameter("time (ms)", System.currentTimeMillis() - startTime).toString());
+		}
+	}
+
 }
@@ -7,7 +7,10 @@ import org.wahlzeit.model.Globals;
 import org.wahlzeit.model.LandscapePhoto;
 import org.wahlzeit.model.PhotoCase;
 import org.wahlzeit.model.Tag;
+import org.wahlzeit.model.persistence.ChunkedUpload;
+import org.wahlzeit.model.persistence.ImageChunk;
 import org.wahlzeit.model.persistence.ImageWrapper;
+import org.wahlzeit.model.persistence.UploadChunk;
 import org.wahlzeit.model.users.*;
 
 /**
@@ -31,6 +34,9 @@ public class OfyService {
 		factory().register(Guest.class);
 		factory().register(PhotoCase.class);
 		factory().register(ImageWrapper.class);
+		factory().register(ImageChunk.class);
+		factory().register(ChunkedUpload.class);
+		factory().register(UploadChunk.class);
 	}
 
 	public static Objectify ofy() {
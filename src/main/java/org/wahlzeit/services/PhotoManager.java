@@ -20,23 +20,36 @@
 
 package org.wahlzeit.services;
 
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
 import com.google.appengine.api.images.Image;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.googlecode.objectify.Key;
 import com.googlecode.objectify.ObjectifyService;
 import com.googlecode.objectify.Work;
+import com.googlecode.objectify.cmd.Query;
 import org.wahlzeit.model.*;
+import org.wahlzeit.model.enums.PhotoChange;
 import org.wahlzeit.model.enums.PhotoSize;
 import org.wahlzeit.model.persistence.EntitySizeLimitExceededException;
+import org.wahlzeit.model.persistence.ImageCache;
 import org.wahlzeit.model.persistence.ImageStorage;
 import org.wahlzeit.model.persistence.Persistent;
 import org.wahlzeit.model.users.Client;
+import org.wahlzeit.services.config.SysConfig;
 import org.wahlzeit.utils.PatternInstance;
 import org.wahlzeit.utils.PhotoFactory;
 import org.wahlzeit.utils.PhotoTagCollector;
 import org.wahlzeit.utils.PhotoUtil;
 
 import java.io.IOException;
-import java.io.Serializable;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Logger;
 
 /**
@@ -50,14 +63,47 @@ public class PhotoManager extends ObjectManager {
     private static final Logger log = Logger.getLogger(PhotoManager.class.getName());
 
     /**
-     * In-memory cache for photos
+     * Number of photos read per datastore query when the photos are loaded at startup
      */
-    protected Map<PhotoId, Photo> photoCache = new HashMap<PhotoId, Photo>();
+    protected static final int LOAD_PAGE_SIZE = 500;
+
+    /**
+     * In-memory cache for photos; bounded, least recently used photos are evicted first
+     */
+    protected Cache<PhotoId, Photo> photoCache = createPhotoCache(Integer.valueOf(SysConfig.DEFAULT_PHOTO_CACHE_MAX_ENTRIES));
+
+    /**
+     * Evicted photos with unsaved changes, until writeEvictedPhotos() has written them; not used with a write-behind
+     * queue, which takes them instead
+     */
+    protected Map<PhotoId, Photo> evictedPhotos = new ConcurrentHashMap<PhotoId, Photo>();
+
+    /**
+     * False while the photos that have not been loaded at startup are still being indexed, see loadPhotos()
+     */
+    protected volatile boolean isIndexComplete = true;
+
+    /**
+     * Datastore keys of the photos saved before their key followed from their PhotoId, see getPhotoKey(); no photo
+     * is added to them once it has been saved
+     */
+    protected Map<PhotoId, Key<Photo>> legacyPhotoKeys = new ConcurrentHashMap<PhotoId, Key<Photo>>();
+
+    /**
+     * Tag texts that are persisted as Tag entities for each cached photo, used to write only the changed tags
+     */
+    protected Map<PhotoId, Set<String>> persistedTags = new ConcurrentHashMap<PhotoId, Set<String>>();
 
     protected PhotoTagCollector photoTagCollector = null;
 
+    /**
+     * In-memory index of the tags and visibility of all known photos, used for filtering
+     */
+    protected PhotoTagIndex photoTagIndex = null;
+
     public PhotoManager() {
         photoTagCollector = PhotoFactory.getInstance().createPhotoTagCollector();
+        photoTagIndex = new PhotoTagIndex(photoTagCollector);
     }
 
     public static final PhotoManager getInstance() {
@@ -84,21 +130,36 @@ public class PhotoManager extends ObjectManager {
         Photo result = doGetPhotoFromId(id);
 
         if (result == null) {
-            result = PhotoFactory.getInstance().loadPhoto(id);
+            result = doLoadPhoto(id);
             if (result != null) {
-                doAddPhoto(result);
+                result = doAddPhotoIfAbsent(result);
             }
         }
 
         return result;
     }
 
+    /**
+     * @methodtype get
+     * <p>
+     * Returns the instance of the photo that the cache holds, loading it again if it has been evicted. Holders of
+     * photos, e.g. a User, read their photos through this, as the instance they hold may have been evicted and replaced
+     * by a reloaded one that has received all later changes. Returns the given photo if it is unknown.
+     */
+    public Photo getCurrentPhoto(Photo photo) {
+        if (photo == null) {
+            return null;
+        }
+        Photo result = getPhotoFromId(photo.getId());
+        return result != null ? result : photo;
+    }
+
     /**
      * @methodtype get
      * @methodproperties primitive
      */
     protected Photo doGetPhotoFromId(PhotoId id) {
-        return photoCache.get(id);
+        return photoCache.getIfPresent(id);
     }
 
     /**
@@ -107,6 +168,166 @@ public class PhotoManager extends ObjectManager {
      */
     protected void doAddPhoto(Photo myPhoto) {
         photoCache.put(myPhoto.getId(), myPhoto);
+        addLegacyPhotoKey(myPhoto);
+        photoTagIndex.updatePhoto(myPhoto);
+        writeEvictedPhotos();
+    }
+
+    /**
+     * @methodtype command
+     * <p>
+     * Adds the photo unless another thread was faster; returns the photo that ends up in the cache.
+     */
+    protected Photo doAddPhotoIfAbsent(Photo myPhoto) {
+        Photo result = photoCache.asMap().putIfAbsent(myPhoto.getId(), myPhoto);
+        if (result == null) {
+            result = myPhoto;
+        }
+        writeEvictedPhotos();
+        return result;
+    }
+
+    /**
+     * @methodtype command
+     * <p>
+     * Remembers the datastore key of the photo if it does not follow from its PhotoId.
+     */
+    protected void addLegacyPhotoKey(Photo photo) {
+        Key<Photo> key = Key.create(photo);
+        if (key.getId() != photo.getId().asInt()) {
+            legacyPhotoKeys.put(photo.getId(), key);
+        }
+    }
+
+    /**
+     * @methodtype get
+     * <p>
+     * Returns the datastore key of the photo with the given ID, whether it is cached or not.
+     */
+    protected Key<Photo> getPhotoKey(PhotoId id) {
+        Key<Photo> result = legacyPhotoKeys.get(id);
+        if (result == null) {
+            result = Key.<Photo>create(Key.<Object>create(applicationRootKey), LandscapePhoto.class, id.asInt());
+        }
+        return result;
+    }
+
+    /**
+     * @methodtype factory
+     * <p>
+     * Loads a photo that is not in the cache from the datastore. Returns null if the photo is unknown. A photo that
+     * was evicted with unsaved changes is taken back from the evicted photos or the write-behind queue, as the
+     * datastore does not hold its changes yet.
+     */
+    protected Photo doLoadPhoto(PhotoId id) {
+        if (id.isNullId() || (isIndexComplete && !photoTagIndex.isIndexed(id.asInt()))) {
+            return PhotoFactory.getInstance().loadPhoto(id);
+        }
+
+        Photo evictedPhoto = evictedPhotos.get(id);
+        if (evictedPhoto != null) {
+            return evictedPhoto;
+        }
+
+        final Key<Photo> key = getPhotoKey(id);
+        WriteBehindQueue queue = writeBehindQueue;
+        if (queue != null) {
+            Persistent queuedPhoto = queue.getQueuedObject(key);
+            if (queuedPhoto instanceof Photo) {
+                log.config(LogBuilder.createSystemMessage().addParameter("Reload queued Photo", id.asString()).toString());
+                return (Photo) queuedPhoto;
+            }
+        }
+
+        Photo result = ObjectifyService.run(new Work<Photo>() {
+            @Override
+            public Photo run() {
+                return OfyService.ofy().load().key(key).now();
+            }
+        });
+
+        if (result != null) {
+            log.config(LogBuilder.createSystemMessage().addParameter("Reload evicted Photo", id.asString()).toString());
+            result.resetWriteCount();
+            setPersistedTags(result);
+        }
+        return result;
+    }
+
+    /**
+     * @methodtype factory
+     */
+    protected Cache<PhotoId, Photo> createPhotoCache(int maxEntries) {
+        return CacheBuilder.newBuilder().
+                maximumSize(maxEntries).
+                recordStats().
+                removalListener(new RemovalListener<PhotoId, Photo>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<PhotoId, Photo> notification) {
+                        if (notification.wasEvicted()) {
+                            handleEvictedPhoto(notification.getValue());
+                            persistedTags.remove(notification.getKey());
+                        }
+                    }
+                }).
+                build();
+    }
+
+    /**
+     * @methodtype command
+     * <p>
+     * Keeps evicted photos that have unsaved changes, which would otherwise be lost, for writing. The removal listener
+     * runs within the cache operation on the thread that caused the eviction, so the photo is not written here: it is
+     * handed to the write-behind queue, or kept until writeEvictedPhotos() is called after the cache operation.
+     */
+    protected void handleEvictedPhoto(Photo photo) {
+        if (photo != null && photo.isDirty()) {
+            log.info(LogBuilder.createSystemMessage().addParameter("Keep evicted Photo", photo.getIdAsString()).toString());
+            WriteBehindQueue queue = writeBehindQueue;
+            if (queue != null) {
+                queue.enqueue(this, photo);
+            } else {
+                evictedPhotos.put(photo.getId(), photo);
+            }
+        }
+    }
+
+    /**
+     * @methodtype command
+     * <p>
+     * Writes the evicted photos with unsaved changes in one batch. Photos that fail to be written stay dirty and are
+     * tried again next time; the failure is only logged, as the caller merely happened to cause the eviction.
+     */
+    protected void writeEvictedPhotos() {
+        if (evictedPhotos.isEmpty()) {
+            return;
+        }
+
+        final List<Photo> photos = new ArrayList<Photo>(evictedPhotos.values());
+        try {
+            ObjectifyService.run(new Work<Void>() {
+                @Override
+                public Void run() {
+                    writeObjects(photos);
+                    return null;
+                }
+            });
+        } catch (RuntimeException ex) {
+            log.warning(LogBuilder.createSystemMessage().addException("Could not save evicted Photos", ex).toString());
+        } finally {
+            for (Photo photo : photos) {
+                if (!photo.isDirty()) {
+                    evictedPhotos.remove(photo.getId(), photo);
+                }
+            }
+        }
+    }
+
+    /**
+     * @methodtype get
+     */
+    public CacheStats getPhotoCacheStats() {
+        return photoCache.stats();
     }
 
     /**
@@ -117,81 +338,142 @@ public class PhotoManager extends ObjectManager {
     }
 
     /**
-     * @methodtype init Loads all Photos from the Datastore and holds them in the cache
+     * @methodtype init Loads the Photos from the Datastore; the remaining photos are indexed on the calling thread
      */
     public void init() {
-        loadPhotos();
+        init(null);
+    }
+
+    /**
+     * @methodtype init
+     * <p>
+     * Creates the cache and loads as many Photos from the Datastore as it holds; the remaining photos are indexed on a
+     * thread of the given factory, see loadPhotos().
+     */
+    public void init(ThreadFactory indexerThreadFactory) {
+        int maxEntries = SysConfig.getPhotoCacheMaxEntries();
+        log.config(LogBuilder.createSystemMessage().addParameter("Photo cache size", maxEntries).toString());
+        photoCache = createPhotoCache(maxEntries);
+
+        loadPhotos(maxEntries, indexerThreadFactory);
     }
 
     /**
      * @methodtype command
      * <p>
-     * Load all persisted photos. Executed when Wahlzeit is restarted.
+     * Loads the persisted photos when Wahlzeit is restarted. Only the first maxCachedPhotos photos are loaded into
+     * the cache, so the start does not take longer as more photos are uploaded. The remaining photos are read in pages
+     * of LOAD_PAGE_SIZE and only added to the PhotoTagIndex, on a thread of the given factory if there is one and it
+     * can be started, or else on the calling thread. Until they are indexed, filters do not hand them out yet, but
+     * they are loaded when requested. Only the photo data is loaded, the images are loaded lazily via the ImageCache
+     * when they are requested for the first time.
      */
-    public void loadPhotos() {
-        Collection<LandscapePhoto> existingPhotos = ObjectifyService.run(new Work<Collection<LandscapePhoto>>() {
+    public void loadPhotos(int maxCachedPhotos, ThreadFactory indexerThreadFactory) {
+        Cursor cursor = null;
+        int loadedPhotos = 0;
+        boolean hasMorePhotos = true;
+        while (hasMorePhotos && loadedPhotos < maxCachedPhotos) {
+            int limit = Math.min(LOAD_PAGE_SIZE, maxCachedPhotos - loadedPhotos);
+            cursor = loadPhotoPage(cursor, limit, true);
+            loadedPhotos += limit;
+            hasMorePhotos = cursor != null;
+        }
+
+        log.info(LogBuilder.createSystemMessage().
+                addMessage("Photos loaded.").
+                addParameter("cached photos", photoCache.size()).toString());
+        if (!hasMorePhotos) {
+            return;
+        }
+
+        isIndexComplete = false;
+        final Cursor firstUncachedPhoto = cursor;
+        Runnable indexer = new Runnable() {
             @Override
-            public Collection<LandscapePhoto> run() {
-                Collection<LandscapePhoto> existingPhotos = new ArrayList<>();
-                readObjects(existingPhotos, LandscapePhoto.class);
-                return existingPhotos;
+            public void run() {
+                indexPhotos(firstUncachedPhoto);
             }
-        });
-
-        for (LandscapePhoto photo : existingPhotos) {
-            if (!doHasPhoto(photo.getId())) {
-                log.config(LogBuilder.createSystemMessage().
-                        addParameter("Load Photo: ", photo).toString());
-                loadScaledImages(photo);
-                doAddPhoto(photo);
-            } else {
-                log.config(LogBuilder.createSystemMessage().
-                        addParameter("Already loaded Photo", photo.getIdAsString()).toString());
+        };
+        if (indexerThreadFactory != null) {
+            try {
+                indexerThreadFactory.newThread(indexer).start();
+                return;
+            } catch (RuntimeException ex) {
+                // the thread factory fails where background threads are not available
+                log.warning(LogBuilder.createSystemMessage().
+                        addException("could not start photo indexer, indexing on calling thread", ex).toString());
             }
         }
-
-        log.info(LogBuilder.createSystemMessage().addMessage("All photos loaded.").toString());
+        indexer.run();
     }
 
     /**
-     * @methodtype boolean-query
-     * @methodproperty primitive
+     * @methodtype command
+     * <p>
+     * Indexes the photos from the given cursor on, one page per Objectify session, so the session cache stays small.
+     * If a page fails, the index stays incomplete, so photos that are not indexed can still be loaded.
      */
-    protected boolean doHasPhoto(PhotoId id) {
-        return photoCache.containsKey(id);
+    protected void indexPhotos(Cursor cursor) {
+        try {
+            while (cursor != null) {
+                cursor = loadPhotoPage(cursor, LOAD_PAGE_SIZE, false);
+            }
+            isIndexComplete = true;
+            log.info(LogBuilder.createSystemMessage().
+                    addMessage("All photos indexed.").
+                    addParameter("known photos", photoTagIndex.getNumberOfPhotos()).toString());
+        } catch (RuntimeException ex) {
+            log.warning(LogBuilder.createSystemMessage().addException("indexing photos failed", ex).toString());
+        }
     }
 
     /**
      * @methodtype command
      * <p>
-     * Loads all scaled Images of this Photo from Google Cloud Storage
+     * Reads up to limit photos from the given cursor on, or from the first photo if it is null, and adds them to the
+     * cache or only to the PhotoTagIndex. Returns the cursor after the page, or null if there are no more photos.
      */
-    protected void loadScaledImages(Photo photo) {
-        String photoIdAsString = photo.getId().asString();
-        ImageStorage imageStorage = ImageStorage.getInstance();
+    protected Cursor loadPhotoPage(final Cursor start, final int limit, final boolean isCached) {
+        return ObjectifyService.run(new Work<Cursor>() {
+            @Override
+            public Cursor run() {
+                Query<LandscapePhoto> query = OfyService.ofy().load().type(LandscapePhoto.class).
+                        ancestor(applicationRootKey).limit(limit);
+                if (start != null) {
+                    query = query.startAt(start);
+                }
 
-        for (PhotoSize photoSize : PhotoSize.values()) {
-            log.config(LogBuilder.createSystemMessage().
-                    addAction("loading image").
-                    addParameter("image size", photoSize.asString()).
-                    addParameter("photo ID", photoIdAsString).toString());
-            if (imageStorage.doesImageExist(photoIdAsString, photoSize.asInt())) {
-                try {
-                    Serializable rawImage = imageStorage.readImage(photoIdAsString, photoSize.asInt());
-                    if (rawImage != null && rawImage instanceof Image) {
-                        photo.setImage(photoSize, (Image) rawImage);
+                QueryResultIterator<LandscapePhoto> photos = query.iterator();
+                int count = 0;
+                while (photos.hasNext()) {
+                    LandscapePhoto photo = photos.next();
+                    count++;
+                    if (doHasPhoto(photo.getId())) {
+                        log.config(LogBuilder.createSystemMessage().
+                                addParameter("Already loaded Photo", photo.getIdAsString()).toString());
+                    } else if (isCached) {
+                        log.config(LogBuilder.createSystemMessage().
+                                addParameter("Load Photo: ", photo).toString());
+                        photo.resetWriteCount();
+                        setPersistedTags(photo);
+                        doAddPhoto(photo);
+                    } else {
+                        addLegacyPhotoKey(photo);
+                        // a photo that has been changed meanwhile is indexed in its newer state already
+                        photoTagIndex.addPhotoIfAbsent(photo);
                     }
-                } catch (IOException e) {
-                    log.warning(LogBuilder.createSystemMessage().
-                            addParameter("size", photoSize.asString()).
-                            addParameter("photo ID", photoIdAsString).
-                            addException("Could not load image although it exists", e).toString());
                 }
-            } else {
-                log.config(LogBuilder.createSystemMessage().
-                        addParameter("Size does not exist", photoSize.asString()).toString());
+                return count < limit ? null : photos.getCursor();
             }
-        }
+        });
+    }
+
+    /**
+     * @methodtype boolean-query
+     * @methodproperty primitive
+     */
+    protected boolean doHasPhoto(PhotoId id) {
+        return photoCache.asMap().containsKey(id);
     }
 
     /**
@@ -203,17 +485,42 @@ public class PhotoManager extends ObjectManager {
     }
 
     @Override
-    protected void updateDependents(Persistent obj) {
+    protected void updateDependents(Persistent obj, long writtenFields) {
         if (obj instanceof Photo) {
             Photo photo = (Photo) obj;
-            saveScaledImages(photo);
-            updateTags(photo);
-            UserManager userManager = UserManager.getInstance();
-            Client owner = userManager.getClientById(photo.getOwnerId());
-            userManager.saveClient(owner);
+            Set<PhotoChange> changes = photo.getChanges(writtenFields);
+            if (changes.contains(PhotoChange.IMAGES)) {
+                saveScaledImages(photo);
+            }
+            if (changes.contains(PhotoChange.TAGS)) {
+                try {
+                    updateTags(photo);
+                } catch (RuntimeException ex) {
+                    // keep the changes, so the next write of the photo updates its tags again
+                    photo.markDirty(writtenFields);
+                    throw ex;
+                }
+            }
+            if (changes.contains(PhotoChange.TAGS) || changes.contains(PhotoChange.STATUS)) {
+                photoTagIndex.updatePhoto(photo);
+            }
+            if (changes.contains(PhotoChange.OWNER_FIELDS) && photo.getOwnerId() != null) {
+                UserManager userManager = UserManager.getInstance();
+                Client owner = userManager.getClientById(photo.getOwnerId());
+                if (owner != null) {
+                    userManager.saveClientDeferred(owner);
+                }
+            }
         }
     }
 
+    /**
+     * @methodtype get
+     */
+    public PhotoTagIndex getPhotoTagIndex() {
+        return photoTagIndex;
+    }
+
     /**
      * @methodtype helper
      */
@@ -225,78 +532,165 @@ public class PhotoManager extends ObjectManager {
     /**
      * @methodtype command
      * <p>
-     * Persists all available sizes of the Photo. If one size exceeds the limit of the persistence layer, e.g. > 1MB for
-     * the Datastore, it is simply not persisted.
+     * Persists all sizes of the Photo that are still held in memory and releases them afterwards. Sizes that are not
+     * held are skipped, as they may be created on demand. If one size exceeds the limit of the persistence layer, e.g.
+     * 64 chunks for the Datastore, neither it nor any larger size is persisted.
      */
     protected void saveScaledImages(Photo photo) {
         String photoIdAsString = photo.getId().asString();
         ImageStorage imageStorage = ImageStorage.getInstance();
-        PhotoSize photoSize;
-        int it = 0;
-        boolean moreSizesExist = true;
-        do {
-            photoSize = PhotoSize.values()[it];
-            it++;
-            Image image = photo.getImage(photoSize);
-            if (image != null) {
-                try {
-                    if (!imageStorage.doesImageExist(photoIdAsString, photoSize.asInt())) {
-                        imageStorage.writeImage(image, photoIdAsString, photoSize.asInt());
-                    }
-                } catch (EntitySizeLimitExceededException e) {
-                    log.warning(LogBuilder.createSystemMessage().
-                            addException("Image too large", e).toString());
-                    moreSizesExist = false;
-                }
-            } else {
+        for (PhotoSize photoSize : PhotoSize.values()) {
+            Image image = photo.getUnsavedImage(photoSize);
+            if (image == null) {
                 log.config(LogBuilder.createSystemMessage().
                         addParameter("No image for size", photoSize.asString()).toString());
-                moreSizesExist = false;
+                continue;
             }
-        } while (it < PhotoSize.values().length && moreSizesExist);
+
+            try {
+                if (!imageStorage.doesImageExist(photoIdAsString, photoSize.asInt())) {
+                    imageStorage.writeImage(image, photoIdAsString, photoSize.asInt());
+                }
+                // hand the persisted image over to the bounded image cache
+                ImageCache.getInstance().putImage(photoIdAsString, photoSize.asInt(), image);
+                photo.setImage(photoSize, null);
+            } catch (EntitySizeLimitExceededException e) {
+                log.warning(LogBuilder.createSystemMessage().
+                        addException("Image too large", e).toString());
+                break;
+            }
+        }
     }
 
     /**
-     * Removes all tags of the Photo (obj) in the datastore that have been removed by the user and adds all new tags of
-     * the photo to the datastore.
+     * Deletes the Tag entities of the photo whose tags have been removed by the user and adds entities for its new
+     * tags. Only the difference to the persisted tags is written, with one batch each; unchanged tags cause no
+     * datastore access at all. The Tag entities are written synchronously, bypassing the write-behind queue, so the
+     * persisted tags are recorded only once both batches have succeeded; if one fails, they are read again next time.
      */
     protected void updateTags(Photo photo) {
-        // delete all existing tags, for the case that some have been removed
-        deleteObjects(Tag.class, Tag.PHOTO_ID, photo.getId().asString());
-
-        // add all current tags to the datastore
+        String photoIdAsString = photo.getId().asString();
         Set<String> tags = new HashSet<String>();
         photoTagCollector.collect(tags, photo);
-        for (Iterator<String> i = tags.iterator(); i.hasNext(); ) {
-            Tag tag = new Tag(i.next(), photo.getId().asString());
-            log.config(LogBuilder.createSystemMessage().addParameter("Writing Tag", tag.asString()).toString());
-            writeObject(tag);
+
+        List<Tag> tagEntities = null;
+        Set<String> oldTags = persistedTags.get(photo.getId());
+        if (oldTags == null) {
+            tagEntities = new ArrayList<Tag>();
+            readObjects(tagEntities, Tag.class, Tag.PHOTO_ID, photoIdAsString);
+            oldTags = new HashSet<String>();
+            for (Tag tagEntity : tagEntities) {
+                oldTags.add(tagEntity.getText());
+            }
+        }
+
+        // forgotten until the writes below have succeeded
+        persistedTags.remove(photo.getId());
+
+        Set<String> removedTags = new HashSet<String>(oldTags);
+        removedTags.removeAll(tags);
+        if (!removedTags.isEmpty()) {
+            if (tagEntities == null) {
+                tagEntities = new ArrayList<Tag>();
+                readObjects(tagEntities, Tag.class, Tag.PHOTO_ID, photoIdAsString);
+            }
+            List<Tag> removedTagEntities = new ArrayList<Tag>();
+            for (Tag tagEntity : tagEntities) {
+                if (removedTags.contains(tagEntity.getText())) {
+                    removedTagEntities.add(tagEntity);
+                }
+            }
+            deleteObjects(removedTagEntities);
+        }
+
+        List<Tag> newTagEntities = new ArrayList<Tag>();
+        for (String tag : tags) {
+            if (!oldTags.contains(tag)) {
+                Tag tagEntity = new Tag(tag, photoIdAsString);
+                log.config(LogBuilder.createSystemMessage().addParameter("Writing Tag", tagEntity.asString()).toString());
+                newTagEntities.add(tagEntity);
+            }
         }
+        if (!newTagEntities.isEmpty()) {
+            doWriteObjects(newTagEntities);
+        }
+
+        persistedTags.put(photo.getId(), tags);
+    }
+
+    /**
+     * @methodtype set
+     * <p>
+     * Records the tags of a photo that has just been loaded; they match its persisted Tag entities.
+     */
+    protected void setPersistedTags(Photo photo) {
+        Set<String> tags = new HashSet<String>();
+        photoTagCollector.collect(tags, photo);
+        persistedTags.put(photo.getId(), tags);
     }
 
     /**
      *
      */
     public void savePhotos() throws IOException {
-        updateObjects(photoCache.values());
+        writeEvictedPhotos();
+
+        // the owners of all saved photos are written once at the end
+        UnitOfWork.begin();
+        try {
+            updateObjects(photoCache.asMap().values());
+        } finally {
+            UnitOfWork.end();
+        }
+
+        CacheStats stats = getPhotoCacheStats();
+        log.info(LogBuilder.createSystemMessage().
+                addParameter("Photo cache hits", stats.hitCount()).
+                addParameter("misses", stats.missCount()).
+                addParameter("evictions", stats.evictionCount()).toString());
     }
 
     /**
      * @methodtype get
+     * <p>
+     * Returns a live view of the cached photos. Evicted photos are not contained, use getPhotoIds() for all photos.
      */
     public Map<PhotoId, Photo> getPhotoCache() {
-        return photoCache;
+        return photoCache.asMap();
+    }
+
+    /**
+     * @methodtype get
+     * <p>
+     * Returns the IDs of all known photos, whether they are currently cached or not. While the photos are still being
+     * indexed after the start, see loadPhotos(), only the indexed ones are known.
+     */
+    public Set<PhotoId> getPhotoIds() {
+        Set<PhotoId> result = new HashSet<PhotoId>();
+        BitSet indexedPhotoIds = photoTagIndex.getPhotoIds();
+        for (int id = indexedPhotoIds.nextSetBit(0); id >= 0; id = indexedPhotoIds.nextSetBit(id + 1)) {
+            result.add(PhotoId.getIdFromInt(id));
+        }
+        result.addAll(photoCache.asMap().keySet());
+        return result;
     }
 
     /**
      *
      */
     public Set<Photo> findPhotosByOwner(String ownerName) {
-        Set<Photo> result = new HashSet<Photo>();
-        readObjects(result, Photo.class, Photo.OWNER_ID, ownerName);
+        Set<Photo> loaded = new HashSet<Photo>();
+        readObjects(loaded, Photo.class, Photo.OWNER_ID, ownerName);
 
-        for (Iterator<Photo> i = result.iterator(); i.hasNext(); ) {
-            doAddPhoto(i.next());
+        // prefer the cached instances, they may contain changes that have not been saved yet
+        Set<Photo> result = new HashSet<Photo>();
+        for (Photo photo : loaded) {
+            Photo cached = doGetPhotoFromId(photo.getId());
+            if (cached == null) {
+                photo.resetWriteCount();
+                cached = doAddPhotoIfAbsent(photo);
+            }
+            result.add(cached);
         }
 
         return result;
@@ -306,8 +700,7 @@ public class PhotoManager extends ObjectManager {
      *
      */
     public Photo getVisiblePhoto(PhotoFilter filter) {
-        filter.generateDisplayablePhotoIds();
-        return getPhotoFromId(filter.getRandomDisplayablePhotoId());
+        return getPhotoFromId(filter.getNextPhotoId());
     }
 
     /**
@@ -320,6 +713,18 @@ public class PhotoManager extends ObjectManager {
         return result;
     }
 
+    /**
+     * Creates the photo in the PROCESSING status without its scaled images. Once the caller has filled in the photo,
+     * it hands the photo to the {@link UploadProcessor}, so the upload does not wait for the images.
+     */
+    public Photo createPhotoAsync(String filename, Image uploadedImage) {
+        PhotoId id = PhotoId.getNextId();
+        Photo result = PhotoUtil.createUnprocessedPhoto(filename, id, uploadedImage);
+        result.setStatus(result.getStatus().asProcessing(true));
+        addPhoto(result);
+        return result;
+    }
+
     /**
      * @methodtype command
      */
@@ -327,8 +732,6 @@ public class PhotoManager extends ObjectManager {
         PhotoId id = photo.getId();
         assertIsNewPhoto(id);
         doAddPhoto(photo);
-
-        GlobalsManager.getInstance().saveGlobals();
     }
 
     /**
@@ -0,0 +1,475 @@
+package org.wahlzeit.services;
+
+import org.wahlzeit.model.Tags;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A boolean query over the conditions of the {@link PhotoTagIndex}, e.g. "sunset AND sea NOT un:bob" or
+ * "(beach, sea) AND NOT rain". Plain words are tags, "un:" selects the owner. NOT binds stronger than AND, which binds
+ * stronger than OR; a comma is a synonym for OR, so a plain comma separated tag list keeps its old meaning. Operators
+ * have to be written in upper case, consecutive words form one tag like in {@link Tags}.
+ *
+ * The parsed query is an evaluation plan: AND nodes intersect their operands in order of ascending posting list
+ * size and stop as soon as the intermediate result is empty.
+ *
+ * @review
+ */
+public class PhotoQuery implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	public static final String AND = "AND";
+	public static final String OR = "OR";
+	public static final String NOT = "NOT";
+
+	public static final String USER_NAME_PREFIX = "un:";
+	public static final String TAG_PREFIX = "tg:";
+	public static final String TAGS_PREFIX = "tags:";
+
+	/**
+	 *
+	 */
+	protected final String source;
+	protected final Node root;
+
+	/**
+	 *
+	 */
+	protected PhotoQuery(String source, Node root) {
+		this.source = source;
+		this.root = root;
+	}
+
+	/**
+	 * @methodtype factory
+	 */
+	public static PhotoQuery parse(String query) throws IllegalArgumentException {
+		Parser parser = new Parser(tokenize(query));
+		Node root = parser.parseOr();
+		if (parser.hasNext()) {
+			throw new IllegalArgumentException("unexpected '" + parser.peek() + "' in query: " + query);
+		}
+		return new PhotoQuery(query.trim(), root);
+	}
+
+	/**
+	 * Returns true if the string uses query syntax beyond a plain comma separated list of tags.
+	 *
+	 * @methodtype boolean-query
+	 */
+	public static boolean isQuery(String s) {
+		if (s == null) {
+			return false;
+		}
+		for (String token : tokenize(s)) {
+			if (AND.equals(token) || OR.equals(token) || NOT.equals(token) || "(".equals(token) ||
+					token.startsWith(USER_NAME_PREFIX) || token.startsWith(TAG_PREFIX) ||
+					token.startsWith(TAGS_PREFIX)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	protected static List<String> tokenize(String query) {
+		List<String> result = new ArrayList<String>();
+		StringBuilder word = new StringBuilder();
+		for (int i = 0; i < query.length(); i++) {
+			char c = query.charAt(i);
+			if (c == '(' || c == ')' || c == Tags.SEPARATOR_CHAR || Character.isWhitespace(c)) {
+				if (word.length() > 0) {
+					result.add(word.toString());
+					word.setLength(0);
+				}
+				if (!Character.isWhitespace(c)) {
+					result.add(String.valueOf(c));
+				}
+			} else {
+				word.append(c);
+			}
+		}
+		if (word.length() > 0) {
+			result.add(word.toString());
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public String asString() {
+		return source;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public Node getRoot() {
+		return root;
+	}
+
+	/**
+	 * @methodtype factory
+	 */
+	public PhotoQuery or(String condition) {
+		List<Node> operands = new ArrayList<Node>();
+		operands.add(new Term(condition));
+		operands.add(root);
+		return new PhotoQuery(source, new Or(operands));
+	}
+
+	@Override
+	public String toString() {
+		return root.toString();
+	}
+
+
+	// parser ----------------------------------------------------------------------------------------------------------
+
+	/**
+	 * Recursive descent parser: or := and (OR and)*, and := not (AND? not)*, not := NOT not | ( or ) | term
+	 */
+	protected static class Parser {
+
+		protected final List<String> tokens;
+		protected int position = 0;
+
+		protected Parser(List<String> tokens) {
+			this.tokens = tokens;
+		}
+
+		protected boolean hasNext() {
+			return position < tokens.size();
+		}
+
+		protected String peek() {
+			return hasNext() ? tokens.get(position) : null;
+		}
+
+		protected String next() {
+			if (!hasNext()) {
+				throw new IllegalArgumentException("unexpected end of query");
+			}
+			return tokens.get(position++);
+		}
+
+		protected Node parseOr() {
+			List<Node> operands = new ArrayList<Node>();
+			operands.add(parseAnd());
+			while (isOr(peek())) {
+				next();
+				if (hasNext() && !isOr(peek()) && !")".equals(peek())) {
+					operands.add(parseAnd());
+				}
+			}
+			return operands.size() == 1 ? operands.get(0) : new Or(operands);
+		}
+
+		protected Node parseAnd() {
+			List<Node> operands = new ArrayList<Node>();
+			operands.add(parseNot());
+			while (hasNext() && !isOr(peek()) && !")".equals(peek())) {
+				if (AND.equals(peek())) {
+					next();
+				}
+				operands.add(parseNot());
+			}
+			return operands.size() == 1 ? operands.get(0) : new And(operands);
+		}
+
+		protected Node parseNot() {
+			String token = next();
+			if (NOT.equals(token)) {
+				return new Not(parseNot());
+			} else if ("(".equals(token)) {
+				Node result = parseOr();
+				if (!")".equals(next())) {
+					throw new IllegalArgumentException("missing ')' in query");
+				}
+				return result;
+			} else if (AND.equals(token) || isOr(token) || ")".equals(token)) {
+				throw new IllegalArgumentException("unexpected '" + token + "' in query");
+			}
+			return parseTerm(token);
+		}
+
+		/**
+		 * Consecutive words without operator form one tag, e.g. "captain america" becomes "tg:captainamerica".
+		 */
+		protected Node parseTerm(String token) {
+			String prefix = TAG_PREFIX;
+			if (token.startsWith(USER_NAME_PREFIX)) {
+				prefix = USER_NAME_PREFIX;
+				token = token.substring(USER_NAME_PREFIX.length());
+			} else if (token.startsWith(TAG_PREFIX)) {
+				token = token.substring(TAG_PREFIX.length());
+			} else if (token.startsWith(TAGS_PREFIX)) {
+				token = token.substring(TAGS_PREFIX.length());
+			}
+
+			StringBuilder words = new StringBuilder(token);
+			while (hasNext() && isWord(peek())) {
+				words.append(next());
+			}
+
+			String tag = Tags.asTag(words.toString());
+			if (tag.isEmpty()) {
+				throw new IllegalArgumentException("empty term in query");
+			}
+			return new Term(prefix + tag);
+		}
+
+		protected boolean isOr(String token) {
+			return OR.equals(token) || String.valueOf(Tags.SEPARATOR_CHAR).equals(token);
+		}
+
+		protected boolean isWord(String token) {
+			return !AND.equals(token) && !isOr(token) && !NOT.equals(token) && !"(".equals(token) &&
+					!")".equals(token) && !token.contains(":");
+		}
+	}
+
+
+	// evaluation plan -------------------------------------------------------------------------------------------------
+
+	/**
+	 * A node of the evaluation plan. Nodes are evaluated by the PhotoTagIndex while it holds its read lock.
+	 */
+	public abstract static class Node implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * Returns a new bitmap with the IDs of all photos matching this node.
+		 */
+		protected abstract BitSet evaluate(PhotoTagIndex index);
+
+		/**
+		 * Returns true if the photo with the given ID matches this node; visibility is checked by the caller.
+		 */
+		protected abstract boolean matches(PhotoTagIndex index, int photoId);
+
+		/**
+		 * Upper bound of the number of matching photos, used to order intersections.
+		 */
+		protected abstract int estimateCardinality(PhotoTagIndex index);
+	}
+
+	/**
+	 *
+	 */
+	public static class Term extends Node {
+
+		private static final long serialVersionUID = 1L;
+
+		protected final String condition;
+
+		public Term(String condition) {
+			this.condition = condition;
+		}
+
+		@Override
+		protected BitSet evaluate(PhotoTagIndex index) {
+			BitSet posting = index.doGetPosting(condition);
+			return posting == null ? new BitSet() : (BitSet) posting.clone();
+		}
+
+		@Override
+		protected boolean matches(PhotoTagIndex index, int photoId) {
+			BitSet posting = index.doGetPosting(condition);
+			return posting != null && posting.get(photoId);
+		}
+
+		@Override
+		protected int estimateCardinality(PhotoTagIndex index) {
+			BitSet posting = index.doGetPosting(condition);
+			return posting == null ? 0 : posting.cardinality();
+		}
+
+		@Override
+		public String toString() {
+			return condition;
+		}
+	}
+
+	/**
+	 *
+	 */
+	public static class And extends Node {
+
+		private static final long serialVersionUID = 1L;
+
+		protected final List<Node> operands;
+
+		public And(List<Node> operands) {
+			this.operands = operands;
+		}
+
+		@Override
+		protected BitSet evaluate(final PhotoTagIndex index) {
+			List<Node> positives = new ArrayList<Node>();
+			List<Node> negatives = new ArrayList<Node>();
+			for (Node operand : operands) {
+				if (operand instanceof Not) {
+					negatives.add(((Not) operand).operand);
+				} else {
+					positives.add(operand);
+				}
+			}
+
+			// start with the narrowest operand, so the intermediate result is as small as possible from the start
+			Collections.sort(positives, new Comparator<Node>() {
+				@Override
+				public int compare(Node a, Node b) {
+					return Integer.compare(a.estimateCardinality(index), b.estimateCardinality(index));
+				}
+			});
+
+			BitSet result;
+			if (positives.isEmpty()) {
+				result = index.doGetVisiblePhotoIds();
+			} else {
+				result = positives.get(0).evaluate(index);
+				for (int i = 1; i < positives.size() && !result.isEmpty(); i++) {
+					result.and(positives.get(i).evaluate(index));
+				}
+			}
+			for (int i = 0; i < negatives.size() && !result.isEmpty(); i++) {
+				result.andNot(negatives.get(i).evaluate(index));
+			}
+			return result;
+		}
+
+		@Override
+		protected boolean matches(PhotoTagIndex index, int photoId) {
+			for (Node operand : operands) {
+				if (!operand.matches(index, photoId)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		@Override
+		protected int estimateCardinality(PhotoTagIndex index) {
+			int result = Integer.MAX_VALUE;
+			for (Node operand : operands) {
+				if (!(operand instanceof Not)) {
+					result = Math.min(result, operand.estimateCardinality(index));
+				}
+			}
+			return result;
+		}
+
+		@Override
+		public String toString() {
+			return "(" + join(operands, " " + AND + " ") + ")";
+		}
+	}
+
+	/**
+	 *
+	 */
+	public static class Or extends Node {
+
+		private static final long serialVersionUID = 1L;
+
+		protected final List<Node> operands;
+
+		public Or(List<Node> operands) {
+			this.operands = operands;
+		}
+
+		@Override
+		protected BitSet evaluate(PhotoTagIndex index) {
+			BitSet result = new BitSet();
+			for (Node operand : operands) {
+				result.or(operand.evaluate(index));
+			}
+			return result;
+		}
+
+		@Override
+		protected boolean matches(PhotoTagIndex index, int photoId) {
+			for (Node operand : operands) {
+				if (operand.matches(index, photoId)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		@Override
+		protected int estimateCardinality(PhotoTagIndex index) {
+			long result = 0;
+			for (Node operand : operands) {
+				result += operand.estimateCardinality(index);
+			}
+			return (int) Math.min(result, Integer.MAX_VALUE);
+		}
+
+		@Override
+		public String toString() {
+			return "(" + join(operands, " " + OR + " ") + ")";
+		}
+	}
+
+	/**
+	 *
+	 */
+	public static class Not extends Node {
+
+		private static final long serialVersionUID = 1L;
+
+		protected final Node operand;
+
+		public Not(Node operand) {
+			this.operand = operand;
+		}
+
+		@Override
+		protected BitSet evaluate(PhotoTagIndex index) {
+			BitSet result = index.doGetVisiblePhotoIds();
+			result.andNot(operand.evaluate(index));
+			return result;
+		}
+
+		@Override
+		protected boolean matches(PhotoTagIndex index, int photoId) {
+			return !operand.matches(index, photoId);
+		}
+
+		@Override
+		protected int estimateCardinality(PhotoTagIndex index) {
+			return Integer.MAX_VALUE;
+		}
+
+		@Override
+		public String toString() {
+			return NOT + " " + operand;
+		}
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	protected static String join(List<Node> nodes, String separator) {
+		StringBuilder result = new StringBuilder();
+		for (Node node : nodes) {
+			if (result.length() > 0) {
+				result.append(separator);
+			}
+			result.append(node);
+		}
+		return result.toString();
+	}
+}
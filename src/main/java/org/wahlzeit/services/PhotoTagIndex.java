@@ -0,0 +1,348 @@
+package org.wahlzeit.services;
+
+import org.wahlzeit.model.Photo;
+import org.wahlzeit.utils.PhotoTagCollector;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory inverted index from the filter conditions of a photo ("un:..." and "tg:...", see
+ * {@link PhotoTagCollector}) to the set of photos that satisfy them. Photo IDs are handed out nearly sequentially,
+ * so each posting list is a bitmap indexed by PhotoId.asInt(). A separate bitmap holds all visible photos. Each
+ * instance reserves photo IDs in blocks of SysConfig.getPhotoIdBlockSize(), and the unused rest of a block is skipped,
+ * so the bitmaps stay dense only as long as that block size is small.
+ *
+ * @review
+ */
+public class PhotoTagIndex {
+
+	/**
+	 * condition -> IDs of all photos with that condition
+	 */
+	protected Map<String, BitSet> postings = new HashMap<String, BitSet>();
+
+	/**
+	 * photo ID -> conditions indexed for that photo, needed to remove stale postings
+	 */
+	protected Map<Integer, Set<String>> photoConditions = new HashMap<Integer, Set<String>>();
+
+	/**
+	 * IDs of all photos whose status is displayable
+	 */
+	protected BitSet visiblePhotoIds = new BitSet();
+
+	protected final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	protected final PhotoTagCollector photoTagCollector;
+
+	/**
+	 *
+	 */
+	public PhotoTagIndex(PhotoTagCollector photoTagCollector) {
+		this.photoTagCollector = photoTagCollector;
+	}
+
+	/**
+	 * Adds the photo to the index or updates its entries after its tags, owner or status changed.
+	 *
+	 * @methodtype command
+	 */
+	public void updatePhoto(Photo photo) {
+		Set<String> conditions = new HashSet<String>();
+		photoTagCollector.collect(conditions, photo);
+		int id = photo.getId().asInt();
+
+		lock.writeLock().lock();
+		try {
+			doUpdatePhoto(id, conditions, photo.isVisible());
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Adds the photo unless it is indexed already, e.g. in a newer state than the given one.
+	 *
+	 * @methodtype command
+	 */
+	public void addPhotoIfAbsent(Photo photo) {
+		Set<String> conditions = new HashSet<String>();
+		photoTagCollector.collect(conditions, photo);
+		int id = photo.getId().asInt();
+
+		lock.writeLock().lock();
+		try {
+			if (!photoConditions.containsKey(id)) {
+				doUpdatePhoto(id, conditions, photo.isVisible());
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * The caller must hold the write lock.
+	 *
+	 * @methodtype command
+	 * @methodproperty primitive
+	 */
+	protected void doUpdatePhoto(int id, Set<String> conditions, boolean isVisible) {
+		Set<String> oldConditions = photoConditions.put(id, conditions);
+		if (oldConditions != null) {
+			for (String condition : oldConditions) {
+				if (!conditions.contains(condition)) {
+					doRemovePosting(condition, id);
+				}
+			}
+		}
+		for (String condition : conditions) {
+			BitSet posting = postings.get(condition);
+			if (posting == null) {
+				posting = new BitSet();
+				postings.put(condition, posting);
+			}
+			posting.set(id);
+		}
+		visiblePhotoIds.set(id, isVisible);
+	}
+
+	/**
+	 * @methodtype command
+	 * @methodproperty primitive
+	 */
+	protected void doRemovePosting(String condition, int id) {
+		BitSet posting = postings.get(condition);
+		if (posting != null) {
+			posting.clear(id);
+			if (posting.isEmpty()) {
+				postings.remove(condition);
+			}
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public void removePhoto(Photo photo) {
+		int id = photo.getId().asInt();
+
+		lock.writeLock().lock();
+		try {
+			Set<String> oldConditions = photoConditions.remove(id);
+			if (oldConditions != null) {
+				for (String condition : oldConditions) {
+					doRemovePosting(condition, id);
+				}
+			}
+			visiblePhotoIds.clear(id);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the IDs of all visible photos that satisfy at least one of the conditions; with no conditions, all
+	 * visible photos are returned. The result is a copy that the caller may modify.
+	 *
+	 * @methodtype get
+	 */
+	public BitSet getVisiblePhotoIds(Collection<String> conditions) {
+		lock.readLock().lock();
+		try {
+			if (conditions.isEmpty()) {
+				return (BitSet) visiblePhotoIds.clone();
+			}
+
+			BitSet result = new BitSet();
+			for (String condition : conditions) {
+				BitSet posting = postings.get(condition);
+				if (posting != null) {
+					result.or(posting);
+				}
+			}
+			result.and(visiblePhotoIds);
+			return result;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the IDs of all visible photos that satisfy the boolean query. The result is a copy that the caller may
+	 * modify.
+	 *
+	 * @methodtype get
+	 */
+	public BitSet getVisiblePhotoIds(PhotoQuery query) {
+		lock.readLock().lock();
+		try {
+			BitSet result = query.getRoot().evaluate(this);
+			result.and(visiblePhotoIds);
+			return result;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns true if the photo is visible and satisfies at least one of the conditions, or if there are no
+	 * conditions. Unlike {@link #getVisiblePhotoIds(Collection)}, this takes constant time.
+	 *
+	 * @methodtype boolean-query
+	 */
+	public boolean isVisiblePhoto(int photoId, Collection<String> conditions) {
+		lock.readLock().lock();
+		try {
+			if (!visiblePhotoIds.get(photoId)) {
+				return false;
+			} else if (conditions.isEmpty()) {
+				return true;
+			}
+
+			for (String condition : conditions) {
+				BitSet posting = postings.get(condition);
+				if (posting != null && posting.get(photoId)) {
+					return true;
+				}
+			}
+			return false;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean isVisiblePhoto(int photoId, PhotoQuery query) {
+		lock.readLock().lock();
+		try {
+			return visiblePhotoIds.get(photoId) && query.getRoot().matches(this, photoId);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the smallest ID of a visible photo or -1 if there is none.
+	 *
+	 * @methodtype get
+	 */
+	public int getLowestVisiblePhotoId() {
+		lock.readLock().lock();
+		try {
+			return visiblePhotoIds.nextSetBit(0);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the largest ID of a visible photo or -1 if there is none.
+	 *
+	 * @methodtype get
+	 */
+	public int getHighestVisiblePhotoId() {
+		lock.readLock().lock();
+		try {
+			return visiblePhotoIds.length() - 1;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the shared posting list of the condition or null; callers must hold the read lock and must not modify it.
+	 *
+	 * @methodtype get
+	 * @methodproperty primitive
+	 */
+	protected BitSet doGetPosting(String condition) {
+		return postings.get(condition);
+	}
+
+	/**
+	 * Returns a copy of the visible photo IDs; callers must hold the read lock.
+	 *
+	 * @methodtype get
+	 * @methodproperty primitive
+	 */
+	protected BitSet doGetVisiblePhotoIds() {
+		return (BitSet) visiblePhotoIds.clone();
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean isVisible(int photoId) {
+		lock.readLock().lock();
+		try {
+			return visiblePhotoIds.get(photoId);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns true if the photo has been added and not removed, whether it is visible or not.
+	 *
+	 * @methodtype boolean-query
+	 */
+	public boolean isIndexed(int photoId) {
+		lock.readLock().lock();
+		try {
+			return photoConditions.containsKey(photoId);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the IDs of all photos in the index, whether visible or not.
+	 *
+	 * @methodtype get
+	 */
+	public BitSet getPhotoIds() {
+		lock.readLock().lock();
+		try {
+			BitSet result = new BitSet();
+			for (Integer photoId : photoConditions.keySet()) {
+				result.set(photoId);
+			}
+			return result;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getNumberOfPhotos() {
+		lock.readLock().lock();
+		try {
+			return photoConditions.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getNumberOfConditions() {
+		lock.readLock().lock();
+		try {
+			return postings.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+}
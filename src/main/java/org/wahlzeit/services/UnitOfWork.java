@@ -0,0 +1,99 @@
+package org.wahlzeit.services;
+
+import org.wahlzeit.model.persistence.Persistent;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * A unit of work collects the writes of dependent objects, e.g. the owner of a saved photo, for the current thread
+ * and performs them once at its end, no matter how often they were requested. Units of work nest; only the
+ * outermost one writes. Without a unit of work, dependent objects are written immediately.
+ *
+ * @review
+ */
+public class UnitOfWork {
+
+	private static final Logger log = Logger.getLogger(UnitOfWork.class.getName());
+
+	/**
+	 *
+	 */
+	protected static ThreadLocal<UnitOfWork> current = new ThreadLocal<UnitOfWork>();
+
+	/**
+	 * object -> manager that writes it, in the order of the first request
+	 */
+	protected final Map<Persistent, ObjectManager> deferredWrites = new LinkedHashMap<Persistent, ObjectManager>();
+
+	/**
+	 *
+	 */
+	protected int depth = 0;
+
+	/**
+	 * @methodtype command
+	 */
+	public static void begin() {
+		UnitOfWork unitOfWork = current.get();
+		if (unitOfWork == null) {
+			unitOfWork = new UnitOfWork();
+			current.set(unitOfWork);
+		}
+		unitOfWork.depth++;
+	}
+
+	/**
+	 * Ends the unit of work; the outermost end writes all deferred objects.
+	 *
+	 * @methodtype command
+	 */
+	public static void end() {
+		UnitOfWork unitOfWork = current.get();
+		if (unitOfWork == null) {
+			return;
+		}
+
+		unitOfWork.depth--;
+		if (unitOfWork.depth == 0) {
+			current.remove();
+			unitOfWork.writeDeferred();
+		}
+	}
+
+	/**
+	 * Defers writing the object to the end of the current unit of work. Returns false if there is none.
+	 *
+	 * @methodtype command
+	 */
+	public static boolean defer(ObjectManager manager, Persistent object) {
+		UnitOfWork unitOfWork = current.get();
+		if (unitOfWork == null) {
+			return false;
+		}
+
+		unitOfWork.deferredWrites.put(object, manager);
+		return true;
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void writeDeferred() {
+		if (deferredWrites.isEmpty()) {
+			return;
+		}
+
+		log.config(LogBuilder.createSystemMessage().
+				addParameter("Write deferred objects, number", deferredWrites.size()).toString());
+		List<Map.Entry<Persistent, ObjectManager>> writes =
+				new ArrayList<Map.Entry<Persistent, ObjectManager>>(deferredWrites.entrySet());
+		deferredWrites.clear();
+		for (Map.Entry<Persistent, ObjectManager> write : writes) {
+			write.getValue().updateObject(write.getKey());
+		}
+	}
+}
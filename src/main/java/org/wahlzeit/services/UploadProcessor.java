@@ -0,0 +1,151 @@
+package org.wahlzeit.services;
+
+import com.google.appengine.api.images.Image;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.VoidWork;
+import org.wahlzeit.model.Photo;
+import org.wahlzeit.utils.PatternInstance;
+import org.wahlzeit.utils.PhotoUtil;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Creates the scaled images of uploaded photos off the request thread. A photo is registered with the PROCESSING
+ * status right away, so the upload request returns without waiting for the images; once the request has filled in the
+ * photo, it is handed to process(), and a worker creates the images, clears the status and saves the photo.
+ * <p>
+ * The workers are background threads, which App Engine only provides on manually or basically scaled instances. Where
+ * no worker can be started, e.g. on automatically scaled instances, or without workers, photos are processed on the
+ * calling thread; with the images service scaler, the upload request then waits for one images service call per size.
+ * To get off the request thread there, run the upload on a manually or basically scaled module, or use
+ * imageGeneration=ondemand, which creates only the largest size on upload.
+ *
+ * @review
+ */
+@PatternInstance(name = "Singleton")
+public class UploadProcessor {
+
+	private static final Logger log = Logger.getLogger(UploadProcessor.class.getName());
+
+	private static UploadProcessor instance = null;
+
+	/**
+	 * Maximum time to wait for queued photos on shut down
+	 */
+	public static final long SHUT_DOWN_TIMEOUT_SECONDS = 30;
+
+	/**
+	 * null if photos are processed on the calling thread
+	 */
+	protected final ExecutorService executor;
+
+	/**
+	 * false once a worker could not be started
+	 */
+	protected volatile boolean isExecutorAvailable;
+
+	/**
+	 *
+	 */
+	public UploadProcessor(ExecutorService executor) {
+		this.executor = executor;
+		this.isExecutorAvailable = executor != null;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public static synchronized UploadProcessor getInstance() {
+		if (instance == null) {
+			log.config(LogBuilder.createSystemMessage().addAction("create default UploadProcessor").toString());
+			instance = new UploadProcessor(null);
+		}
+		return instance;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public static synchronized void setInstance(UploadProcessor newInstance) {
+		instance = newInstance;
+	}
+
+	/**
+	 * Marks the photo as processing and creates its scaled images from the source in the background. The photo must
+	 * not be changed by the caller afterwards, as the worker saves it.
+	 *
+	 * @methodtype command
+	 */
+	public void process(final Photo photo, final Image source) {
+		photo.setStatus(photo.getStatus().asProcessing(true));
+		Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				ObjectifyService.run(new VoidWork() {
+					@Override
+					public void vrun() {
+						doProcess(photo, source);
+					}
+				});
+			}
+		};
+
+		if (isExecutorAvailable) {
+			try {
+				executor.execute(task);
+				return;
+			} catch (RejectedExecutionException e) {
+				log.warning(LogBuilder.createSystemMessage().
+						addException("upload processing rejected, processing on request thread", e).toString());
+			} catch (RuntimeException e) {
+				// the thread factory fails where background threads are not available
+				isExecutorAvailable = false;
+				log.warning(LogBuilder.createSystemMessage().
+						addException("could not start upload worker, processing on request threads", e).toString());
+			}
+		}
+		task.run();
+	}
+
+	/**
+	 * @methodtype command
+	 * @methodproperty primitive
+	 */
+	protected void doProcess(Photo photo, Image source) {
+		long startTime = System.nanoTime();
+		try {
+			PhotoUtil.createImageFiles(source, photo);
+			photo.setStatus(photo.getStatus().asProcessing(false));
+			log.config(LogBuilder.createSystemMessage().
+					addAction("process upload").
+					addParameter("photo", photo.getIdAsString()).
+					addParameter("time (ms)", (System.nanoTime() - startTime) / 1000000).toString());
+		} catch (RuntimeException e) {
+			// a photo without images can not be shown, so it is given up
+			log.warning(LogBuilder.createSystemMessage().
+					addParameter("photo", photo.getIdAsString()).
+					addException("could not process upload", e).toString());
+			photo.setStatus(photo.getStatus().asProcessing(false).asDeleted(true));
+		}
+		PhotoManager.getInstance().savePhoto(photo);
+	}
+
+	/**
+	 * Processes the queued photos and stops the workers.
+	 *
+	 * @methodtype command
+	 */
+	public void shutDown() {
+		if (executor != null) {
+			executor.shutdown();
+			try {
+				executor.awaitTermination(SHUT_DOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
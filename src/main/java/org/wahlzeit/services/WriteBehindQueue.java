@@ -0,0 +1,207 @@
+package org.wahlzeit.services;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.Work;
+import org.wahlzeit.model.persistence.Persistent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Collects dirty objects that ObjectManagers would otherwise write synchronously and writes them in the background.
+ * Objects are coalesced by their datastore key, so repeated changes of one object between two flushes, e.g. several
+ * praises of a photo, cause a single write. A flusher thread writes all queued objects in one batch per ObjectManager
+ * at least every maxDelayMillis; shutDown writes the remaining objects.
+ *
+ * @review
+ */
+public class WriteBehindQueue {
+
+	private static final Logger log = Logger.getLogger(WriteBehindQueue.class.getName());
+
+	/**
+	 *
+	 */
+	protected final long maxDelayMillis;
+	protected final ScheduledExecutorService flusher;
+
+	/**
+	 * datastore key (or the object itself, if it has no ID yet) -> queued write; guarded by this
+	 */
+	protected Map<Object, QueuedWrite> queuedWrites = new LinkedHashMap<Object, QueuedWrite>();
+
+	/**
+	 * writes taken by the flush in progress, until they have been written; guarded by this
+	 */
+	protected Map<Object, QueuedWrite> flushingWrites = Collections.emptyMap();
+
+	/**
+	 * serializes flushes, so an older state of an object never overtakes a newer one
+	 */
+	protected final Object flushLock = new Object();
+
+	/**
+	 *
+	 */
+	public WriteBehindQueue(long maxDelayMillis, ThreadFactory threadFactory) {
+		this.maxDelayMillis = maxDelayMillis;
+		this.flusher = Executors.newSingleThreadScheduledExecutor(threadFactory);
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public void start() {
+		flusher.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					flush();
+				} catch (RuntimeException ex) {
+					// keep the flusher alive, the failed objects have been queued again
+					log.warning(LogBuilder.createSystemMessage().addException("write-behind flush failed", ex).toString());
+				}
+			}
+		}, maxDelayMillis, maxDelayMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public void enqueue(ObjectManager manager, Persistent object) {
+		Object coalescingKey;
+		try {
+			coalescingKey = Key.create(object);
+		} catch (IllegalArgumentException ex) {
+			// no ID assigned yet, the object can only be coalesced with itself
+			coalescingKey = object;
+		}
+
+		synchronized (this) {
+			queuedWrites.remove(coalescingKey);
+			queuedWrites.put(coalescingKey, new QueuedWrite(manager, object));
+		}
+	}
+
+	/**
+	 * Returns the object queued or being flushed under the given datastore key, or null. Readers must use it instead
+	 * of reading the datastore, which does not hold its changes yet; a stale copy saved later would replace it in the
+	 * queue and its changes would be lost.
+	 *
+	 * @methodtype get
+	 */
+	public synchronized Persistent getQueuedObject(Key<?> key) {
+		QueuedWrite result = queuedWrites.get(key);
+		if (result == null) {
+			result = flushingWrites.get(key);
+		}
+		return result != null ? result.object : null;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public synchronized int getSize() {
+		return queuedWrites.size();
+	}
+
+	/**
+	 * Writes all queued objects. Objects of a failed batch are queued again, unless they have been queued anew in the
+	 * meantime.
+	 *
+	 * @methodtype command
+	 */
+	public void flush() {
+		synchronized (flushLock) {
+			final Map<Object, QueuedWrite> writes;
+			synchronized (this) {
+				if (queuedWrites.isEmpty()) {
+					return;
+				}
+				writes = queuedWrites;
+				queuedWrites = new LinkedHashMap<Object, QueuedWrite>();
+				flushingWrites = writes;
+			}
+
+			final Map<ObjectManager, List<Persistent>> objectsByManager = new LinkedHashMap<ObjectManager, List<Persistent>>();
+			for (QueuedWrite write : writes.values()) {
+				List<Persistent> objects = objectsByManager.get(write.manager);
+				if (objects == null) {
+					objects = new ArrayList<Persistent>();
+					objectsByManager.put(write.manager, objects);
+				}
+				objects.add(write.object);
+			}
+
+			log.config(LogBuilder.createSystemMessage().
+					addParameter("Write-behind flush, number of objects", writes.size()).toString());
+			try {
+				ObjectifyService.run(new Work<Void>() {
+					@Override
+					public Void run() {
+						UnitOfWork.begin();
+						try {
+							for (Map.Entry<ObjectManager, List<Persistent>> entry : objectsByManager.entrySet()) {
+								entry.getKey().doWriteObjects(entry.getValue());
+							}
+						} finally {
+							UnitOfWork.end();
+						}
+						return null;
+					}
+				});
+			} catch (RuntimeException ex) {
+				synchronized (this) {
+					for (Map.Entry<Object, QueuedWrite> entry : writes.entrySet()) {
+						if (!queuedWrites.containsKey(entry.getKey())) {
+							queuedWrites.put(entry.getKey(), entry.getValue());
+						}
+					}
+				}
+				throw ex;
+			} finally {
+				synchronized (this) {
+					flushingWrites = Collections.emptyMap();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stops the flusher and writes all remaining objects.
+	 *
+	 * @methodtype command
+	 */
+	public void shutDown() {
+		flusher.shutdown();
+		try {
+			flusher.awaitTermination(maxDelayMillis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		flush();
+	}
+
+	/**
+	 *
+	 */
+	protected static class QueuedWrite {
+
+		protected final ObjectManager manager;
+		protected final Persistent object;
+
+		protected QueuedWrite(ObjectManager manager, Persistent object) {
+			this.manager = manager;
+			this.object = object;
+		}
+	}
+}
@@ -32,6 +32,46 @@ import java.util.logging.Logger;
 public class SysConfig extends AbstractConfig {
 
 	public static String DATA_PATH = "org-wahlzeit-dirkriehle";
+
+	/**
+	 * Prefix of system properties (see appengine-web.xml) that override the defaults below
+	 */
+	public static final String PROPERTY_PREFIX = "wahlzeit.";
+
+	/**
+	 * Tuning keys and their defaults
+	 */
+	public static final String PHOTO_CACHE_MAX_ENTRIES = "photoCacheMaxEntries";
+	public static final String DEFAULT_PHOTO_CACHE_MAX_ENTRIES = "10000";
+	public static final String IMAGE_CACHE_MAX_BYTES = "imageCacheMaxBytes";
+	public static final String DEFAULT_IMAGE_CACHE_MAX_BYTES = "67108864";
+	public static final String WRITE_BEHIND_MAX_DELAY_MILLIS = "writeBehindMaxDelayMillis";
+	public static final String DEFAULT_WRITE_BEHIND_MAX_DELAY_MILLIS = "0";
+	public static final String ID_BLOCK_SIZE = "idBlockSize";
+	public static final String DEFAULT_ID_BLOCK_SIZE = "1000";
+	public static final String PHOTO_ID_BLOCK_SIZE = "photoIdBlockSize";
+	public static final String DEFAULT_PHOTO_ID_BLOCK_SIZE = "10";
+	public static final String IMAGE_STORAGE = "imageStorage";
+	public static final String IMAGE_STORAGE_DATASTORE = "datastore";
+	public static final String IMAGE_STORAGE_FILE_SYSTEM = "filesystem";
+	public static final String IMAGE_STORAGE_DIR = "imageStorageDir";
+	public static final String DEFAULT_IMAGE_STORAGE_DIR = "";
+	public static final String IMAGE_SCALER = "imageScaler";
+	public static final String IMAGE_SCALER_IMAGES_SERVICE = "imagesservice";
+	public static final String IMAGE_SCALER_JAVA_2D = "java2d";
+	public static final String IMAGE_SCALING_THREADS = "imageScalingThreads";
+	public static final String DEFAULT_IMAGE_SCALING_THREADS = "0";
+	public static final String UPLOAD_PROCESSING_THREADS = "uploadProcessingThreads";
+	public static final String DEFAULT_UPLOAD_PROCESSING_THREADS = "2";
+	public static final String IMAGE_GENERATION = "imageGeneration";
+	public static final String IMAGE_GENERATION_ON_UPLOAD = "upload";
+	public static final String IMAGE_GENERATION_ON_DEMAND = "ondemand";
+	public static final String UPLOAD_MAX_SIZE = "uploadMaxSize";
+	public static final String DEFAULT_UPLOAD_MAX_SIZE = "33554432";
+	public static final String UPLOAD_SPILL_THRESHOLD = "uploadSpillThreshold";
+	public static final String DEFAULT_UPLOAD_SPILL_THRESHOLD = "33554432";
+	public static final String UPLOAD_CHUNK_SIZE = "uploadChunkSize";
+	public static final String DEFAULT_UPLOAD_CHUNK_SIZE = "1024000";
 	
 	/**
 	 *
@@ -81,6 +121,45 @@ public class SysConfig extends AbstractConfig {
 		photosDir = new Directory(rootDir, DATA_PATH + File.separator + "photos");
 		backupDir = new Directory(rootDir, DATA_PATH + File.separator + "backup");
 		tempDir = new Directory(rootDir, DATA_PATH + File.separator + "temp");
+
+		// Tuning parameters
+		initValue(PHOTO_CACHE_MAX_ENTRIES, DEFAULT_PHOTO_CACHE_MAX_ENTRIES);
+		initValue(IMAGE_CACHE_MAX_BYTES, DEFAULT_IMAGE_CACHE_MAX_BYTES);
+		initValue(WRITE_BEHIND_MAX_DELAY_MILLIS, DEFAULT_WRITE_BEHIND_MAX_DELAY_MILLIS);
+		initValue(ID_BLOCK_SIZE, DEFAULT_ID_BLOCK_SIZE);
+		initValue(PHOTO_ID_BLOCK_SIZE, DEFAULT_PHOTO_ID_BLOCK_SIZE);
+		initValue(IMAGE_STORAGE, IMAGE_STORAGE_DATASTORE);
+		initValue(IMAGE_STORAGE_DIR, DEFAULT_IMAGE_STORAGE_DIR);
+		initValue(IMAGE_SCALER, IMAGE_SCALER_IMAGES_SERVICE);
+		initValue(IMAGE_SCALING_THREADS, DEFAULT_IMAGE_SCALING_THREADS);
+		initValue(UPLOAD_PROCESSING_THREADS, DEFAULT_UPLOAD_PROCESSING_THREADS);
+		initValue(IMAGE_GENERATION, IMAGE_GENERATION_ON_UPLOAD);
+		initValue(UPLOAD_MAX_SIZE, DEFAULT_UPLOAD_MAX_SIZE);
+		initValue(UPLOAD_SPILL_THRESHOLD, DEFAULT_UPLOAD_SPILL_THRESHOLD);
+		initValue(UPLOAD_CHUNK_SIZE, DEFAULT_UPLOAD_CHUNK_SIZE);
+	}
+
+	/**
+	 * Sets the value of key to the system property "wahlzeit.key", or to the default if that property is not set.
+	 *
+	 * @methodtype initialization
+	 */
+	protected void initValue(String key, String defaultValue) {
+		doSetValue(key, System.getProperty(PROPERTY_PREFIX + key, defaultValue));
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	public int getValueAsInt(String key) throws IllegalArgumentException {
+		return Integer.parseInt(getValue(key).trim());
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	public long getValueAsLong(String key) throws IllegalArgumentException {
+		return Long.parseLong(getValue(key).trim());
 	}
 
 	/**
@@ -172,6 +251,112 @@ public class SysConfig extends AbstractConfig {
 		return getInstance().tempDir;
 	}
 
+	/**
+	 *
+	 */
+	public static int getPhotoCacheMaxEntries() {
+		return getInstance().getValueAsInt(PHOTO_CACHE_MAX_ENTRIES);
+	}
+
+	/**
+	 *
+	 */
+	public static long getImageCacheMaxBytes() {
+		return getInstance().getValueAsLong(IMAGE_CACHE_MAX_BYTES);
+	}
+
+	/**
+	 * Returns the maximum delay of background writes; 0 means objects are written synchronously.
+	 */
+	public static long getWriteBehindMaxDelayMillis() {
+		return getInstance().getValueAsLong(WRITE_BEHIND_MAX_DELAY_MILLIS);
+	}
+
+	/**
+	 * Returns the number of IDs an instance reserves at once for each ID counter.
+	 */
+	public static int getIdBlockSize() {
+		return getInstance().getValueAsInt(ID_BLOCK_SIZE);
+	}
+
+	/**
+	 * Returns the number of photo IDs an instance reserves at once. The IDs left in the block of an instance that shuts
+	 * down are never used, and the bitmaps of the PhotoTagIndex and PhotoFilter grow with the highest photo ID, so a
+	 * small block keeps photo IDs dense at the price of one Globals transaction per block of uploads.
+	 */
+	public static int getPhotoIdBlockSize() {
+		return getInstance().getValueAsInt(PHOTO_ID_BLOCK_SIZE);
+	}
+
+	/**
+	 * Returns the ImageStorage to use, IMAGE_STORAGE_DATASTORE or IMAGE_STORAGE_FILE_SYSTEM.
+	 */
+	public static String getImageStorage() {
+		return getInstance().getValue(IMAGE_STORAGE);
+	}
+
+	/**
+	 * Returns the root directory of the file system ImageStorage; the photos directory if not set.
+	 */
+	public static String getImageStorageDir() {
+		String result = getInstance().getValue(IMAGE_STORAGE_DIR);
+		return result.isEmpty() ? getPhotosDir().asString() : result;
+	}
+
+	/**
+	 * Returns the ImageScaler to use, IMAGE_SCALER_IMAGES_SERVICE or IMAGE_SCALER_JAVA_2D.
+	 */
+	public static String getImageScaler() {
+		return getInstance().getValue(IMAGE_SCALER);
+	}
+
+	/**
+	 * Returns the number of threads that encode scaled images; 0 means images are encoded on the request thread.
+	 */
+	public static int getImageScalingThreads() {
+		return getInstance().getValueAsInt(IMAGE_SCALING_THREADS);
+	}
+
+	/**
+	 * Returns the number of threads that process uploaded photos; 0 means uploads are processed on the request thread,
+	 * as they are where background threads are not available, see UploadProcessor.
+	 */
+	public static int getUploadProcessingThreads() {
+		return getInstance().getValueAsInt(UPLOAD_PROCESSING_THREADS);
+	}
+
+	/**
+	 * Returns when scaled images are created: IMAGE_GENERATION_ON_UPLOAD creates all sizes on upload,
+	 * IMAGE_GENERATION_ON_DEMAND only the largest one and all others on their first request.
+	 */
+	public static String getImageGeneration() {
+		return getInstance().getValue(IMAGE_GENERATION);
+	}
+
+	/**
+	 * Returns the maximum size of an uploaded file in bytes; larger uploads are rejected.
+	 */
+	public static int getUploadMaxSize() {
+		return getInstance().getValueAsInt(UPLOAD_MAX_SIZE);
+	}
+
+	/**
+	 * Returns the number of bytes of an upload held in memory; larger uploads are spilled to a file in the temp dir.
+	 * The default equals the default maximum upload size, so uploads stay in memory where files can not be written,
+	 * e.g. on App Engine; lower it only where the temp dir is writable.
+	 */
+	public static int getUploadSpillThreshold() {
+		return getInstance().getValueAsInt(UPLOAD_SPILL_THRESHOLD);
+	}
+
+	/**
+	 * Returns the size of the chunks of a resumable upload in bytes; each chunk is one datastore entity, so it is at
+	 * most 1024000 bytes.
+	 */
+	public static int getUploadChunkSize() {
+		return getInstance().getValueAsInt(UPLOAD_CHUNK_SIZE);
+	}
+
 	@Override
 	public String toString() {
 		return MoreObjects.toStringHelper(this)
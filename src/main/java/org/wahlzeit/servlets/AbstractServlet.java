@@ -22,9 +22,11 @@ package org.wahlzeit.servlets;
 
 import org.wahlzeit.main.ServiceMain;
 import org.wahlzeit.model.users.UserSession;
+import org.wahlzeit.services.IdAllocator;
 import org.wahlzeit.services.LogBuilder;
 import org.wahlzeit.model.users.Session;
 import org.wahlzeit.services.SessionManager;
+import org.wahlzeit.services.UnitOfWork;
 import org.wahlzeit.utils.StringUtil;
 import org.wahlzeit.webparts.WebPart;
 
@@ -50,27 +52,34 @@ public abstract class AbstractServlet extends HttpServlet {
 	/**
 	 *
 	 */
-	protected static int lastSessionId = 0; // system and agent are named differently
+	protected static volatile IdAllocator sessionIdAllocator = new IdAllocator(0); // system and agent are named differently
 
 	/**
 	 *
 	 */
-	public static synchronized int getLastSessionId() {
-		return lastSessionId;
+	public static int getLastSessionId() {
+		return (int) sessionIdAllocator.getLastId();
 	}
 
 	/**
 	 *
 	 */
 	public static void setLastSessionId(int newSessionId) {
-		lastSessionId = newSessionId;
+		sessionIdAllocator = new IdAllocator(newSessionId);
 	}
 
 	/**
 	 *
 	 */
-	public static synchronized int getNextSessionId() {
-		return ++lastSessionId;
+	public static void setSessionIdAllocator(IdAllocator newSessionIdAllocator) {
+		sessionIdAllocator = newSessionIdAllocator;
+	}
+
+	/**
+	 *
+	 */
+	public static int getNextSessionId() {
+		return (int) sessionIdAllocator.getNextId();
 	}
 
 	/**
@@ -83,10 +92,16 @@ public abstract class AbstractServlet extends HttpServlet {
 		UserSession us = ensureUserSession(request);
 		SessionManager.setThreadLocalSession(us);
 
-		if (ServiceMain.getInstance().isShuttingDown() || (us == null)) {
-			displayNullPage(request, response);
-		} else {
-			myGet(request, response);
+		// dependent objects, e.g. the owners of saved photos, are written once at the end of the request
+		UnitOfWork.begin();
+		try {
+			if (ServiceMain.getInstance().isShuttingDown() || (us == null)) {
+				displayNullPage(request, response);
+			} else {
+				myGet(request, response);
+			}
+		} finally {
+			UnitOfWork.end();
 		}
 
 		SessionManager.dropThreadLocalSession();
@@ -102,10 +117,59 @@ public abstract class AbstractServlet extends HttpServlet {
 		UserSession us = ensureUserSession(request);
 		SessionManager.setThreadLocalSession(us);
 
-		if (ServiceMain.getInstance().isShuttingDown() || (us == null)) {
-			displayNullPage(request, response);
-		} else {
-			myPost(request, response);
+		// dependent objects, e.g. the owners of saved photos, are written once at the end of the request
+		UnitOfWork.begin();
+		try {
+			if (ServiceMain.getInstance().isShuttingDown() || (us == null)) {
+				displayNullPage(request, response);
+			} else {
+				myPost(request, response);
+			}
+		} finally {
+			UnitOfWork.end();
+		}
+
+		SessionManager.dropThreadLocalSession();
+	}
+
+	/**
+	 *
+	 */
+	public void doPut(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		UserSession us = ensureUserSession(request);
+		SessionManager.setThreadLocalSession(us);
+
+		UnitOfWork.begin();
+		try {
+			if (ServiceMain.getInstance().isShuttingDown() || (us == null)) {
+				response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			} else {
+				myPut(request, response);
+			}
+		} finally {
+			UnitOfWork.end();
+		}
+
+		SessionManager.dropThreadLocalSession();
+	}
+
+	/**
+	 *
+	 */
+	public void doDelete(HttpServletRequest request, HttpServletResponse response) throws ServletException,
+			IOException {
+		UserSession us = ensureUserSession(request);
+		SessionManager.setThreadLocalSession(us);
+
+		UnitOfWork.begin();
+		try {
+			if (ServiceMain.getInstance().isShuttingDown() || (us == null)) {
+				response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			} else {
+				myDelete(request, response);
+			}
+		} finally {
+			UnitOfWork.end();
 		}
 
 		SessionManager.dropThreadLocalSession();
@@ -119,6 +183,22 @@ public abstract class AbstractServlet extends HttpServlet {
 		// do nothing
 	}
 
+	/**
+	 *
+	 */
+	protected void myPut(HttpServletRequest request, HttpServletResponse response) throws ServletException,
+			IOException {
+		response.setStatus(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+	}
+
+	/**
+	 *
+	 */
+	protected void myDelete(HttpServletRequest request, HttpServletResponse response) throws ServletException,
+			IOException {
+		response.setStatus(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+	}
+
 	/**
 	 *
 	 */
@@ -0,0 +1,298 @@
+package org.wahlzeit.servlets;
+
+import org.apache.http.HttpStatus;
+import org.wahlzeit.handlers.PartUtil;
+import org.wahlzeit.handlers.WebFormHandler;
+import org.wahlzeit.handlers.WebPartHandlerManager;
+import org.wahlzeit.model.persistence.ChunkedUpload;
+import org.wahlzeit.model.users.UserSession;
+import org.wahlzeit.services.ChunkedUploadManager;
+import org.wahlzeit.services.LogBuilder;
+import org.wahlzeit.services.SessionManager;
+import org.wahlzeit.utils.StringUtil;
+import org.wahlzeit.utils.TooManyUploadsException;
+import org.wahlzeit.utils.UploadSizeLimitExceededException;
+import org.wahlzeit.utils.UploadedFile;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Servlet for resumable uploads of large photos in chunks, e.g. from mobile clients on unreliable connections:
+ * <ul>
+ * <li>POST /uploads with the parameters fileName and length starts an upload; the response gives its location, chunk
+ * size and chunk count.</li>
+ * <li>PUT /uploads/{id}/{index} sends one chunk; chunks may be sent in any order, in parallel, and again.</li>
+ * <li>GET /uploads/{id} lists the chunks that are still missing, e.g. to resume an interrupted upload.</li>
+ * <li>POST /uploads/{id} with the parameters of the upload form commits the upload; the photo is then created as if it
+ * had been uploaded with the form.</li>
+ * <li>DELETE /uploads/{id} discards the upload.</li>
+ * </ul>
+ * Only users may upload. Uploads are kept in the datastore, so each request may be served by any instance, see
+ * {@link ChunkedUploadManager}.
+ *
+ * @review
+ */
+public class ChunkedUploadServlet extends AbstractServlet {
+
+	private static final Logger log = Logger.getLogger(ChunkedUploadServlet.class.getName());
+	private static final long serialVersionUID = 42L; // any one does; class never serialized
+
+	/**
+	 *
+	 */
+	public static final String UPLOADS_PATH = "/uploads/";
+	public static final String CHUNK_SIZE_HEADER = "X-Upload-Chunk-Size";
+	public static final String CHUNK_COUNT_HEADER = "X-Upload-Chunk-Count";
+	public static final String MISSING_CHUNKS_HEADER = "X-Upload-Missing-Chunks";
+
+	/**
+	 * RFC 6585, not defined by HttpStatus
+	 */
+	protected static final int SC_TOO_MANY_REQUESTS = 429;
+
+	/**
+	 * Starts an upload or, with an upload ID, commits it.
+	 */
+	@Override
+	protected void myPost(HttpServletRequest request, HttpServletResponse response) throws ServletException,
+			IOException {
+		UserSession us = (UserSession) SessionManager.getThreadLocalSession();
+		String[] path = getPathSegments(request);
+		if (!us.getClient().hasUserRights()) {
+			response.setStatus(HttpStatus.SC_FORBIDDEN);
+		} else if (path.length == 0) {
+			startUpload(us, request, response);
+		} else if (path.length == 1) {
+			commitUpload(us, path[0], request, response);
+		} else {
+			response.setStatus(HttpStatus.SC_NOT_FOUND);
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void startUpload(UserSession us, HttpServletRequest request, HttpServletResponse response)
+			throws IOException {
+		String fileName = request.getParameter("fileName");
+		long length;
+		try {
+			length = Long.parseLong(request.getParameter("length"));
+		} catch (NumberFormatException e) {
+			length = -1;
+		}
+		if (StringUtil.isNullOrEmptyString(fileName) || length < 1) {
+			response.setStatus(HttpStatus.SC_BAD_REQUEST);
+			return;
+		}
+
+		ChunkedUpload upload;
+		try {
+			upload = ChunkedUploadManager.getInstance().createUpload(us.getClientId(), fileName, length);
+		} catch (UploadSizeLimitExceededException e) {
+			log.warning(LogBuilder.createSystemMessage().addException("Upload rejected", e).toString());
+			response.setStatus(HttpStatus.SC_REQUEST_TOO_LONG);
+			return;
+		} catch (TooManyUploadsException e) {
+			log.warning(LogBuilder.createSystemMessage().addException("Upload rejected", e).toString());
+			response.setStatus(SC_TOO_MANY_REQUESTS);
+			return;
+		}
+
+		response.setStatus(HttpStatus.SC_CREATED);
+		response.setHeader("Location", UPLOADS_PATH + upload.getId());
+		response.setHeader(CHUNK_SIZE_HEADER, String.valueOf(upload.getChunkSize()));
+		response.setHeader(CHUNK_COUNT_HEADER, String.valueOf(upload.getChunkCount()));
+		writeText(response, upload.getId());
+	}
+
+	/**
+	 * Hands the complete upload to the upload form handler and redirects to the page it returns.
+	 *
+	 * @methodtype command
+	 */
+	protected void commitUpload(UserSession us, String id, HttpServletRequest request, HttpServletResponse response)
+			throws IOException {
+		ChunkedUploadManager manager = ChunkedUploadManager.getInstance();
+		ChunkedUpload upload = manager.getUpload(id, us.getClientId());
+		if (upload == null) {
+			response.setStatus(HttpStatus.SC_NOT_FOUND);
+			return;
+		}
+		List<Integer> missingChunks = manager.getMissingChunks(upload);
+		if (!missingChunks.isEmpty()) {
+			writeMissingChunks(upload, missingChunks, response, HttpStatus.SC_CONFLICT);
+			return;
+		}
+
+		UploadedFile uploadedFile = manager.commitUpload(upload);
+		if (uploadedFile == null) {
+			response.setStatus(HttpStatus.SC_NOT_FOUND);
+			return;
+		}
+
+		String link;
+		try {
+			Map<String, Object> args = new HashMap<String, Object>();
+			for (Map.Entry<String, String[]> entry : getParameters(request).entrySet()) {
+				args.put(entry.getKey(), entry.getValue());
+			}
+			args.put(UploadedFile.UPLOADED_FILE, uploadedFile);
+			args.put("fileName", uploadedFile.getFileName());
+
+			WebFormHandler formHandler = WebPartHandlerManager.getWebFormHandler(PartUtil.UPLOAD_PHOTO_FORM_NAME);
+			link = formHandler.handlePost(us, args);
+		} finally {
+			uploadedFile.release();
+		}
+		redirectRequest(response, link);
+	}
+
+	/**
+	 * Writes one chunk of an upload.
+	 */
+	@Override
+	protected void myPut(HttpServletRequest request, HttpServletResponse response) throws ServletException,
+			IOException {
+		UserSession us = (UserSession) SessionManager.getThreadLocalSession();
+		String[] path = getPathSegments(request);
+		ChunkedUpload upload = null;
+		if (path.length == 2) {
+			upload = ChunkedUploadManager.getInstance().getUpload(path[0], us.getClientId());
+		}
+		if (upload == null) {
+			response.setStatus(HttpStatus.SC_NOT_FOUND);
+			return;
+		}
+
+		int index;
+		try {
+			index = Integer.parseInt(path[1]);
+		} catch (NumberFormatException e) {
+			index = -1;
+		}
+		if (!upload.isValidIndex(index)) {
+			response.setStatus(HttpStatus.SC_NOT_FOUND);
+			return;
+		}
+
+		ChunkedUploadManager manager = ChunkedUploadManager.getInstance();
+		if (manager.writeChunk(upload, index, request.getInputStream())) {
+			response.setStatus(HttpStatus.SC_NO_CONTENT);
+		} else if (manager.getUpload(upload.getId(), us.getClientId()) == null) {
+			// committed or discarded while the chunk was sent
+			response.setStatus(HttpStatus.SC_NOT_FOUND);
+		} else {
+			log.info(LogBuilder.createSystemMessage().
+					addParameter("chunk of wrong length for upload", upload).
+					addParameter("index", index).toString());
+			response.setStatus(HttpStatus.SC_BAD_REQUEST);
+		}
+	}
+
+	/**
+	 * Lists the missing chunks of an upload.
+	 */
+	@Override
+	protected void myGet(HttpServletRequest request, HttpServletResponse response) throws ServletException,
+			IOException {
+		UserSession us = (UserSession) SessionManager.getThreadLocalSession();
+		String[] path = getPathSegments(request);
+		ChunkedUpload upload = null;
+		if (path.length == 1) {
+			upload = ChunkedUploadManager.getInstance().getUpload(path[0], us.getClientId());
+		}
+		if (upload == null) {
+			response.setStatus(HttpStatus.SC_NOT_FOUND);
+			return;
+		}
+
+		List<Integer> missingChunks = ChunkedUploadManager.getInstance().getMissingChunks(upload);
+		writeMissingChunks(upload, missingChunks, response, HttpStatus.SC_OK);
+	}
+
+	/**
+	 * Discards an upload.
+	 */
+	@Override
+	protected void myDelete(HttpServletRequest request, HttpServletResponse response) throws ServletException,
+			IOException {
+		UserSession us = (UserSession) SessionManager.getThreadLocalSession();
+		String[] path = getPathSegments(request);
+		ChunkedUploadManager manager = ChunkedUploadManager.getInstance();
+		ChunkedUpload upload = path.length == 1 ? manager.getUpload(path[0], us.getClientId()) : null;
+		if (upload != null && manager.abortUpload(upload)) {
+			response.setStatus(HttpStatus.SC_NO_CONTENT);
+		} else {
+			response.setStatus(HttpStatus.SC_NOT_FOUND);
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void writeMissingChunks(ChunkedUpload upload, List<Integer> missing, HttpServletResponse response,
+									  int status) throws IOException {
+		String missingChunks = asCommaSeparatedString(missing);
+		response.setStatus(status);
+		response.setHeader(CHUNK_SIZE_HEADER, String.valueOf(upload.getChunkSize()));
+		response.setHeader(CHUNK_COUNT_HEADER, String.valueOf(upload.getChunkCount()));
+		response.setHeader(MISSING_CHUNKS_HEADER, missingChunks);
+		writeText(response, missingChunks);
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void writeText(HttpServletResponse response, String text) throws IOException {
+		response.setContentType("text/plain");
+		PrintWriter out = response.getWriter();
+		out.print(text);
+		out.close();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	@SuppressWarnings("unchecked") // the Servlet 2.5 API is not generic
+	protected static Map<String, String[]> getParameters(HttpServletRequest request) {
+		return (Map<String, String[]>) request.getParameterMap();
+	}
+
+	/**
+	 * Returns the segments of the path below /uploads, e.g. {id, index} for /uploads/id/index.
+	 *
+	 * @methodtype conversion
+	 */
+	protected static String[] getPathSegments(HttpServletRequest request) {
+		String pathInfo = request.getPathInfo();
+		if (pathInfo == null) {
+			return new String[0];
+		}
+
+		String trimmed = pathInfo.replaceAll("^/+|/+$", "");
+		return trimmed.isEmpty() ? new String[0] : trimmed.split("/+");
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	protected static String asCommaSeparatedString(List<Integer> values) {
+		StringBuilder result = new StringBuilder();
+		for (Integer value : values) {
+			if (result.length() > 0) {
+				result.append(',');
+			}
+			result.append(value);
+		}
+		return result.toString();
+	}
+}
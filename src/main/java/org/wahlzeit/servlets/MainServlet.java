@@ -21,8 +21,6 @@
 package org.wahlzeit.servlets;
 
 import com.google.api.client.util.Charsets;
-import com.google.appengine.api.images.Image;
-import com.google.appengine.api.images.ImagesServiceFactory;
 import com.google.common.io.CharStreams;
 import org.apache.commons.fileupload.FileItemIterator;
 import org.apache.commons.fileupload.FileItemStream;
@@ -31,19 +29,21 @@ import org.wahlzeit.handlers.PartUtil;
 import org.wahlzeit.handlers.WebFormHandler;
 import org.wahlzeit.handlers.WebPageHandler;
 import org.wahlzeit.handlers.WebPartHandlerManager;
-import org.wahlzeit.model.users.User;
 import org.wahlzeit.model.users.UserSession;
 import org.wahlzeit.services.LogBuilder;
 import org.wahlzeit.services.SessionManager;
+import org.wahlzeit.services.config.SysConfig;
+import org.wahlzeit.utils.UploadSizeLimitExceededException;
+import org.wahlzeit.utils.UploadedFile;
 import org.wahlzeit.webparts.WebPart;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.file.Paths;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.logging.Logger;
@@ -83,8 +83,12 @@ public class MainServlet extends AbstractServlet {
 
 		WebFormHandler formHandler = WebPartHandlerManager.getWebFormHandler(link);
 		link = PartUtil.DEFAULT_PAGE_NAME;
-		if (formHandler != null) {
-			link = formHandler.handlePost(us, args);
+		try {
+			if (formHandler != null) {
+				link = formHandler.handlePost(us, args);
+			}
+		} finally {
+			releaseUploadedFiles(args);
 		}
 
 		redirectRequest(response, link);
@@ -145,12 +149,13 @@ public class MainServlet extends AbstractServlet {
 	}
 
 	/**
-	 * Searches for files in the request and puts them in the resulting map with the key "fileName". When a file is
-	 * found, you can access its path by searching for elements with the key "fileName".
+	 * Searches for files in the request and puts them in the resulting map as an {@link UploadedFile} with the key
+	 * UploadedFile.UPLOADED_FILE, and their name with the key "fileName". Files are streamed through pooled buffers and
+	 * spilled to the temp dir if they are large; files larger than the maximum upload size are left out.
 	 */
 	protected Map getMultiPartRequestArgs(HttpServletRequest request, UserSession us) throws IOException,
 			ServletException {
-		Map<String, String> result = new HashMap<String, String>();
+		Map<String, Object> result = new HashMap<String, Object>();
 		result.putAll(request.getParameterMap());
 		try {
 			ServletFileUpload upload = new ServletFileUpload();
@@ -161,12 +166,20 @@ public class MainServlet extends AbstractServlet {
 				String filename = fileItemStream.getName();
 
 				if (!fileItemStream.isFormField()) {
-					InputStream inputStream = fileItemStream.openStream();
-					Image image = getImage(inputStream);
-					User user = (User) us.getClient();
-					user.setUploadedImage(image);
+					UploadedFile uploadedFile;
+					try {
+						uploadedFile = UploadedFile.read(filename, fileItemStream.openStream(),
+								SysConfig.getUploadMaxSize(), SysConfig.getUploadSpillThreshold(),
+								Paths.get(SysConfig.getTempDir().asString()));
+					} catch (UploadSizeLimitExceededException ex) {
+						log.warning(LogBuilder.createSystemMessage().addException("Upload rejected", ex).toString());
+						continue;
+					}
+					releaseUploadedFiles(result); // only one file per request
+					result.put(UploadedFile.UPLOADED_FILE, uploadedFile);
 					result.put("fileName", filename);
-					log.config(LogBuilder.createSystemMessage().addParameter("Uploaded image", filename).toString());
+					log.config(LogBuilder.createSystemMessage().
+							addParameter("Uploaded image", uploadedFile).toString());
 				} else {
 					String key = fileItemStream.getFieldName();
 					InputStream is = fileItemStream.openStream();
@@ -178,6 +191,7 @@ public class MainServlet extends AbstractServlet {
 				}
 			}
 		} catch (Exception ex) {
+			releaseUploadedFiles(result);
 			throw new ServletException(ex);
 		}
 
@@ -185,22 +199,13 @@ public class MainServlet extends AbstractServlet {
 	}
 
 	/**
-	 * Create an Image object from the Input stream.
+	 * @methodtype command
 	 */
-	private Image getImage(InputStream input) throws IOException {
-		Image image;
-		try {
-			ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-			byte[] buffer = new byte[1024 * 1024];
-			int bytesRead = input.read(buffer);
-			while (bytesRead != -1) {
-				outputStream.write(buffer, 0, bytesRead);
-				bytesRead = input.read(buffer);
+	protected void releaseUploadedFiles(Map args) {
+		for (Object value : args.values()) {
+			if (value instanceof UploadedFile) {
+				((UploadedFile) value).release();
 			}
-			image = ImagesServiceFactory.makeImage(outputStream.toByteArray());
-		} finally {
-			input.close();
 		}
-		return image;
 	}
 }
@@ -5,13 +5,17 @@ import org.apache.http.HttpStatus;
 import org.wahlzeit.model.Photo;
 import org.wahlzeit.services.PhotoManager;
 import org.wahlzeit.model.enums.PhotoSize;
-import org.wahlzeit.model.persistence.ImageStorage;
+import org.wahlzeit.model.persistence.ImageCache;
+import org.wahlzeit.services.ImageVariantGenerator;
 import org.wahlzeit.services.LogBuilder;
+import org.wahlzeit.utils.BufferHandle;
+import org.wahlzeit.utils.PhotoUtil;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
-import java.io.Serializable;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.logging.Logger;
 
 /**
@@ -26,6 +30,37 @@ public class StaticDataServlet extends AbstractServlet {
 
 	Logger log = Logger.getLogger(StaticDataServlet.class.getName());
 
+	/**
+	 * Images are written in chunks of this size
+	 */
+	public static final int CHUNK_SIZE = 64 * 1024;
+
+	/**
+	 * Scaled images never change, so clients may cache them for a year, the maximum recommended by RFC 7234
+	 */
+	public static final int IMAGE_MAX_AGE_SECONDS = 365 * 24 * 60 * 60;
+
+	/**
+	 * Clients are asked to retry after this time while the scaled images of a photo are being created
+	 */
+	public static final int PROCESSING_RETRY_AFTER_SECONDS = 2;
+
+	/**
+	 *
+	 */
+	protected static final String BYTES_UNIT = "bytes=";
+	protected static final int[] UNSATISFIABLE_RANGE = new int[0];
+
+	/**
+	 * Chunks of off-heap buffers are copied through this buffer, so no buffer is allocated per request
+	 */
+	protected static final ThreadLocal<byte[]> chunkBuffers = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[CHUNK_SIZE];
+		}
+	};
+
 	@Override
 	public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
 		try {
@@ -40,15 +75,8 @@ public class StaticDataServlet extends AbstractServlet {
 					addParameter("size", size).toString());
 
 			if ("image".equals(type)) {
-				Image image = getImage(photoId, size);
-				if (image != null) {
-					response.getOutputStream().write(image.getImageData());
-					response.getOutputStream().flush();
-					response.setStatus(HttpStatus.SC_OK);
-				} else {
-					log.warning(LogBuilder.createSystemMessage().addMessage("image not found").toString());
-					response.setStatus(HttpStatus.SC_NOT_FOUND);
-				}
+				Photo photo = PhotoManager.getInstance().getPhoto(photoId);
+				provideImage(photo, photoId, size, request, response);
 			} else {
 				log.warning(LogBuilder.createSystemMessage().
 						addMessage("unimplemented static resource type has been requested").toString());
@@ -63,29 +91,247 @@ public class StaticDataServlet extends AbstractServlet {
 	/**
 	 * @methodtype command
 	 *
-	 * Loads image either from the <@link>PhotoManager</@link> or from the <@link>ImageStorage</@link>. If image does
-	 * not exist, null is returned.
+	 * Sends the image of the photo in the given size. Scaled images never change, so they may be cached for good; a
+	 * client that already has the image is answered with 304 from the ETag stored with the photo, without any read of
+	 * the image. A single byte range is answered with 206, so interrupted downloads can be resumed; it is sent from a
+	 * slice of the image buffer, so of a mapped file only the requested part is read.
+	 */
+	protected void provideImage(Photo photo, String photoId, int size, HttpServletRequest request,
+								HttpServletResponse response) throws IOException {
+		PhotoSize photoSize = PhotoSize.getFromInt(size);
+		String eTag = photo != null ? photo.getImageETag(photoSize) : null;
+		if (eTag != null && isNotModified(request, eTag, photo.getCreationTime())) {
+			setCacheHeaders(response, eTag, photo.getCreationTime());
+			response.setStatus(HttpStatus.SC_NOT_MODIFIED);
+			return;
+		}
+
+		BufferHandle imageBytes = getImageBytes(photo, photoId, size);
+		if (imageBytes == null && photo != null && photo.getStatus().isProcessing()) {
+			response.setHeader("Retry-After", String.valueOf(PROCESSING_RETRY_AFTER_SECONDS));
+			response.setStatus(HttpStatus.SC_SERVICE_UNAVAILABLE);
+			return;
+		} else if (imageBytes == null) {
+			log.warning(LogBuilder.createSystemMessage().addMessage("image not found").toString());
+			response.setStatus(HttpStatus.SC_NOT_FOUND);
+			return;
+		}
+
+		try {
+			if (photo != null) {
+				if (eTag == null) {
+					// photos saved before ETags were introduced get theirs on first request
+					eTag = PhotoUtil.computeETag(imageBytes.getBuffer());
+					photo.setImageETag(photoSize, eTag);
+				}
+				setCacheHeaders(response, eTag, photo.getCreationTime());
+			}
+			response.setHeader("Accept-Ranges", "bytes");
+			// older images may be encoded differently than the ending of the photo says, e.g. as PNG
+			String ending = photo != null ? photo.getEnding() : null;
+			response.setContentType(PhotoUtil.getMimeType(imageBytes.getBuffer(), ending));
+
+			int length = imageBytes.getLength();
+			int[] range = null;
+			if (isRangeApplicable(request, eTag, photo)) {
+				range = parseRange(request.getHeader("Range"), length);
+			}
+
+			if (range == null) {
+				response.setStatus(HttpStatus.SC_OK);
+				response.setContentLength(length);
+				writeBytes(imageBytes.getBuffer(), response);
+			} else if (range == UNSATISFIABLE_RANGE) {
+				response.setHeader("Content-Range", "bytes */" + length);
+				response.setStatus(HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+			} else {
+				ByteBuffer buffer = imageBytes.getBuffer();
+				buffer.position(range[0]);
+				buffer.limit(range[1] + 1);
+				response.setHeader("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + length);
+				response.setStatus(HttpStatus.SC_PARTIAL_CONTENT);
+				response.setContentLength(buffer.remaining());
+				writeBytes(buffer, response);
+			}
+		} finally {
+			imageBytes.release();
+		}
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 *
+	 * Returns true if a Range header may be served, i.e. there is no If-Range header or it still matches the image. A
+	 * Range is only served for known images, so a resumed download can not mix different versions.
+	 */
+	protected boolean isRangeApplicable(HttpServletRequest request, String eTag, Photo photo) {
+		String ifRange = request.getHeader("If-Range");
+		if (ifRange == null) {
+			return true;
+		} else if (eTag == null) {
+			return false;
+		} else if (ifRange.startsWith("\"")) {
+			return asQuotedETag(eTag).equals(ifRange.trim());
+		}
+
+		try {
+			return photo.getCreationTime() / 1000 <= request.getDateHeader("If-Range") / 1000;
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @methodtype conversion
+	 *
+	 * Parses a Range header of the form "bytes=first-last", "bytes=first-", or "bytes=-suffixLength" into the first
+	 * and last byte position. Returns null if the whole image is to be sent, i.e. there is no Range header, it can not
+	 * be parsed, or it specifies several ranges, which are rarely used for images and may be ignored by RFC 7233.
+	 * Returns UNSATISFIABLE_RANGE if the range lies outside of the image.
+	 */
+	protected int[] parseRange(String range, int length) {
+		if (range == null || !range.startsWith(BYTES_UNIT) || range.indexOf(',') >= 0) {
+			return null;
+		}
+
+		String spec = range.substring(BYTES_UNIT.length()).trim();
+		int dash = spec.indexOf('-');
+		if (dash < 0) {
+			return null;
+		}
+
+		long first;
+		long last;
+		try {
+			if (dash == 0) {
+				long suffixLength = Long.parseLong(spec.substring(1));
+				if (suffixLength <= 0) {
+					return UNSATISFIABLE_RANGE;
+				}
+				first = Math.max(0, length - suffixLength);
+				last = length - 1;
+			} else {
+				first = Long.parseLong(spec.substring(0, dash));
+				String lastString = spec.substring(dash + 1);
+				last = lastString.isEmpty() ? Long.MAX_VALUE : Long.parseLong(lastString);
+				if (last < first) {
+					return null;
+				} else if (first >= length) {
+					return UNSATISFIABLE_RANGE;
+				}
+				last = Math.min(length - 1, last);
+			}
+		} catch (NumberFormatException e) {
+			return null;
+		}
+
+		return new int[]{(int) first, (int) last};
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 *
+	 * If-None-Match takes precedence over If-Modified-Since, as required by RFC 7232.
+	 */
+	protected boolean isNotModified(HttpServletRequest request, String eTag, long lastModified) {
+		String ifNoneMatch = request.getHeader("If-None-Match");
+		if (ifNoneMatch != null) {
+			return matchesETag(ifNoneMatch, eTag);
+		}
+
+		long ifModifiedSince = -1;
+		try {
+			ifModifiedSince = request.getDateHeader("If-Modified-Since");
+		} catch (IllegalArgumentException e) {
+			// an invalid date is ignored
+		}
+		return ifModifiedSince >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 *
+	 * Returns true if the list of entity tags of an If-None-Match header contains the given one or is "*". Weak tags
+	 * match as well, as weak comparison is used for If-None-Match.
+	 */
+	protected boolean matchesETag(String eTags, String eTag) {
+		for (String candidate : eTags.split(",")) {
+			candidate = candidate.trim();
+			if (candidate.startsWith("W/")) {
+				candidate = candidate.substring(2);
+			}
+			if ("*".equals(candidate) || asQuotedETag(eTag).equals(candidate)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void setCacheHeaders(HttpServletResponse response, String eTag, long lastModified) {
+		response.setHeader("ETag", asQuotedETag(eTag));
+		response.setDateHeader("Last-Modified", lastModified);
+		response.setHeader("Cache-Control", "public, max-age=" + IMAGE_MAX_AGE_SECONDS + ", immutable");
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	protected String asQuotedETag(String eTag) {
+		return "\"" + eTag + "\"";
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns the bytes of an image that has not been saved yet from the <@link>PhotoManager</@link>, or of any other
+	 * image from the <@link>ImageCache</@link>, which keeps them off the heap. If the image does not exist, null is
+	 * returned. The returned handle must be released.
 	 */
-	private Image getImage(String photoId, int size) {
-		Image image = null;
-		Photo photo = PhotoManager.getInstance().getPhoto(photoId);
+	protected BufferHandle getImageBytes(Photo photo, String photoId, int size) {
 		if (photo != null) {
-			PhotoSize photoSize = PhotoSize.getFromInt(size);
-			image = photo.getImage(photoSize);
-		}
-		// if not in cache load from Google Cloud Storage
-		if (image == null) {
-			Serializable rawImage = null;
-			try {
-				rawImage = ImageStorage.getInstance().readImage(photoId, size);
-			} catch (IOException e) {
-				log.warning(LogBuilder.createSystemMessage().addException("Problem when reading image.", e).toString());
+			Image unsavedImage = photo.getUnsavedImage(PhotoSize.getFromInt(size));
+			if (unsavedImage != null) {
+				return BufferHandle.wrap(unsavedImage.getImageData());
 			}
-			if (rawImage != null && rawImage instanceof Image) {
-				image = (Image) rawImage;
+		}
+		BufferHandle result = ImageCache.getInstance().acquireImageBytes(photoId, size);
+		if (result == null && photo != null) {
+			// sizes not created on upload are created on their first request
+			Image image = ImageVariantGenerator.getInstance().getImage(photo, PhotoSize.getFromInt(size));
+			if (image != null) {
+				result = BufferHandle.wrap(image.getImageData());
 			}
 		}
-		return image;
+		return result;
 	}
-}
 
+	/**
+	 * @methodtype command
+	 *
+	 * Writes the buffer to the response in chunks of CHUNK_SIZE bytes, wherever the buffer is held. Heap buffers are
+	 * written directly from their array; off-heap buffers, e.g. in the <@link>ImageCache</@link> or a mapped file, are
+	 * copied chunk by chunk through a pooled buffer, so the whole image is never copied to the heap.
+	 */
+	protected void writeBytes(ByteBuffer buffer, HttpServletResponse response) throws IOException {
+		OutputStream out = response.getOutputStream();
+		if (buffer.hasArray()) {
+			byte[] array = buffer.array();
+			int offset = buffer.arrayOffset() + buffer.position();
+			int end = buffer.arrayOffset() + buffer.limit();
+			for (; offset < end; offset += CHUNK_SIZE) {
+				out.write(array, offset, Math.min(CHUNK_SIZE, end - offset));
+			}
+		} else {
+			byte[] chunk = chunkBuffers.get();
+			while (buffer.hasRemaining()) {
+				int length = Math.min(chunk.length, buffer.remaining());
+				buffer.get(chunk, 0, length);
+				out.write(chunk, 0, length);
+			}
+		}
+		out.flush();
+	}
+}
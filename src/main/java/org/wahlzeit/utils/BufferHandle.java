@@ -0,0 +1,84 @@
+package org.wahlzeit.utils;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Read access to bytes held in a buffer, e.g. on the heap, in a mapped file, or in a {@link SlabByteStore}. The
+ * handle must be released after use, so pooled memory can be reused; releasing more than once has no effect.
+ *
+ * @review
+ */
+public class BufferHandle {
+
+	/**
+	 * read-only, positioned at the first byte
+	 */
+	protected final ByteBuffer buffer;
+	protected boolean isReleased = false;
+
+	/**
+	 *
+	 */
+	protected BufferHandle(ByteBuffer buffer) {
+		this.buffer = buffer.asReadOnlyBuffer();
+	}
+
+	/**
+	 * @methodtype factory
+	 */
+	public static BufferHandle wrap(byte[] bytes) {
+		return new BufferHandle(ByteBuffer.wrap(bytes));
+	}
+
+	/**
+	 * Returns a handle for the remaining bytes of the buffer, which needs no release.
+	 *
+	 * @methodtype factory
+	 */
+	public static BufferHandle wrap(ByteBuffer buffer) {
+		return new BufferHandle(buffer.slice());
+	}
+
+	/**
+	 * Returns a read-only buffer of the bytes, positioned at the first one.
+	 *
+	 * @methodtype get
+	 */
+	public ByteBuffer getBuffer() {
+		return buffer.duplicate();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getLength() {
+		return buffer.remaining();
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	public byte[] toByteArray() {
+		byte[] result = new byte[buffer.remaining()];
+		buffer.duplicate().get(result);
+		return result;
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public synchronized void release() {
+		if (!isReleased) {
+			isReleased = true;
+			doRelease();
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 * @methodproperty hook
+	 */
+	protected void doRelease() {
+		// nothing to do for unpooled memory
+	}
+}
@@ -0,0 +1,77 @@
+package org.wahlzeit.utils;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of heap ByteBuffers of one size, shared by all threads. Buffers are allocated on demand; at most maxPooled
+ * released buffers are kept for reuse, the others are left to the garbage collector.
+ *
+ * @review
+ */
+public class ByteBufferPool {
+
+	/**
+	 *
+	 */
+	protected final int bufferSize;
+	protected final int maxPooled;
+
+	/**
+	 *
+	 */
+	protected final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+	protected final AtomicInteger pooledCount = new AtomicInteger(0);
+
+	/**
+	 *
+	 */
+	public ByteBufferPool(int bufferSize, int maxPooled) {
+		this.bufferSize = bufferSize;
+		this.maxPooled = maxPooled;
+	}
+
+	/**
+	 * Returns a cleared buffer of bufferSize bytes, which should be released after use.
+	 *
+	 * @methodtype get
+	 */
+	public ByteBuffer acquire() {
+		ByteBuffer result = buffers.poll();
+		if (result == null) {
+			return ByteBuffer.allocate(bufferSize);
+		}
+		pooledCount.decrementAndGet();
+		result.clear();
+		return result;
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer.capacity() != bufferSize || buffer.isDirect()) {
+			return;
+		}
+		if (pooledCount.incrementAndGet() <= maxPooled) {
+			buffers.offer(buffer);
+		} else {
+			pooledCount.decrementAndGet();
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getPooledCount() {
+		return pooledCount.get();
+	}
+}
@@ -0,0 +1,98 @@
+package org.wahlzeit.utils;
+
+import java.io.Serializable;
+
+/**
+ * A pseudo-random permutation of the integers 0 .. size-1, defined by a seed. Position i of the permutation is
+ * computed in constant time without materializing the permutation: a balanced Feistel network encrypts i within the
+ * smallest even-bit power of two covering size, values outside the range are encrypted again ("cycle walking").
+ * Since the network domain is less than four times the size, fewer than four rounds of walking are needed on average.
+ *
+ * @review
+ */
+public class FeistelPermutation implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 *
+	 */
+	protected static final int ROUNDS = 4;
+
+	/**
+	 *
+	 */
+	protected final int size;
+	protected final int halfBits;
+	protected final long halfMask;
+	protected final long[] roundKeys = new long[ROUNDS];
+
+	/**
+	 *
+	 */
+	public FeistelPermutation(long seed, int size) {
+		if (size < 0) {
+			throw new IllegalArgumentException("size must not be negative: " + size);
+		}
+		this.size = size;
+
+		int bits = 32 - Integer.numberOfLeadingZeros(Math.max(size - 1, 1));
+		halfBits = (bits + 1) / 2;
+		halfMask = (1L << halfBits) - 1;
+
+		long key = seed;
+		for (int i = 0; i < ROUNDS; i++) {
+			key = mix(key + i);
+			roundKeys[i] = key;
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Returns the value at the given position of the permutation.
+	 *
+	 * @methodtype get
+	 */
+	public int get(int position) {
+		if (position < 0 || position >= size) {
+			throw new IndexOutOfBoundsException("position " + position + " outside of permutation size " + size);
+		}
+
+		long value = position;
+		do {
+			value = encrypt(value);
+		} while (value >= size);
+		return (int) value;
+	}
+
+	/**
+	 * @methodtype helper
+	 */
+	protected long encrypt(long value) {
+		long left = (value >>> halfBits) & halfMask;
+		long right = value & halfMask;
+		for (int i = 0; i < ROUNDS; i++) {
+			long next = left ^ (mix(right ^ roundKeys[i]) & halfMask);
+			left = right;
+			right = next;
+		}
+		return (left << halfBits) | right;
+	}
+
+	/**
+	 * 64 bit finalizer of SplitMix64
+	 *
+	 * @methodtype helper
+	 */
+	protected static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+}
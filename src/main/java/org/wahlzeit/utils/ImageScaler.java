@@ -0,0 +1,51 @@
+package org.wahlzeit.utils;
+
+import com.google.appengine.api.images.Image;
+import com.google.appengine.api.images.ImagesService;
+
+/**
+ * Strategy to scale images, so the {@link ImageScalingPipeline} can use the App Engine images service or a local
+ * implementation. T is the decoded form of an image the scaler works on.
+ *
+ * @review
+ */
+@PatternInstance(name = "Strategy", participants = {"ImageScaler", "ImagesServiceScaler", "Java2DImageScaler"})
+public abstract class ImageScaler<T> {
+
+	/**
+	 * @methodtype conversion
+	 */
+	public abstract T decode(Image source);
+
+	/**
+	 * @methodtype get
+	 */
+	public abstract int getWidth(T image);
+
+	/**
+	 * @methodtype get
+	 */
+	public abstract int getHeight(T image);
+
+	/**
+	 * Returns the image scaled to the given width and height. Scalers that encode while scaling use the encoding.
+	 *
+	 * @methodtype factory
+	 */
+	public abstract T scale(T image, int width, int height, ImagesService.OutputEncoding encoding);
+
+	/**
+	 * Returns true if each size may be scaled from the next larger one, false if each size must be scaled from the
+	 * source, e.g. because scaled images are already lossily encoded.
+	 *
+	 * @methodtype boolean-query
+	 */
+	public boolean isScalingProgressively() {
+		return true;
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	public abstract Image encode(T image, ImagesService.OutputEncoding encoding);
+}
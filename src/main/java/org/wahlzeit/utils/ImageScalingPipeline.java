@@ -0,0 +1,177 @@
+package org.wahlzeit.utils;
+
+import com.google.appengine.api.images.Image;
+import com.google.appengine.api.images.ImagesService;
+import org.wahlzeit.model.enums.PhotoSize;
+import org.wahlzeit.services.LogBuilder;
+
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Logger;
+
+/**
+ * Creates the scaled images of an upload in all PhotoSizes that fit it, or in some of them. The upload is decoded once.
+ * Scalers that keep images decoded, like the {@link Java2DImageScaler}, scale each size from the next larger one, so
+ * each step works on a smaller image, and the scaled images are encoded in parallel on a bounded pool of threads while
+ * the next size is scaled. The {@link ImagesServiceScaler} decodes and encodes in each call, so it scales each size
+ * from the source on the calling thread. Without a pool, all work is done on the calling thread.
+ *
+ * @review
+ */
+@PatternInstance(name = "Singleton")
+public class ImageScalingPipeline {
+
+	private static final Logger log = Logger.getLogger(ImageScalingPipeline.class.getName());
+
+	private static ImageScalingPipeline instance = null;
+
+	/**
+	 *
+	 */
+	protected final ImageScaler<?> scaler;
+
+	/**
+	 * null if images are encoded on the calling thread
+	 */
+	protected final ExecutorService executor;
+
+	/**
+	 *
+	 */
+	public ImageScalingPipeline(ImageScaler<?> scaler, ExecutorService executor) {
+		this.scaler = scaler;
+		this.executor = executor;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public static synchronized ImageScalingPipeline getInstance() {
+		if (instance == null) {
+			log.config(LogBuilder.createSystemMessage().addAction("create default ImageScalingPipeline").toString());
+			instance = new ImageScalingPipeline(new ImagesServiceScaler(), null);
+		}
+		return instance;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public static synchronized void setInstance(ImageScalingPipeline newInstance) {
+		instance = newInstance;
+	}
+
+	/**
+	 * Returns the source scaled to all PhotoSizes that are not larger than the source, each encoded with the given
+	 * encoding.
+	 *
+	 * @methodtype factory
+	 */
+	public Map<PhotoSize, Image> scale(Image source, ImagesService.OutputEncoding encoding) {
+		return scale(source, 0, 0, encoding, EnumSet.allOf(PhotoSize.class));
+	}
+
+	/**
+	 * Returns the source scaled to the given PhotoSizes, as far as they are not larger than the original. The sizes
+	 * are calculated from the width and height of the original, which may be larger than the source, e.g. if the source
+	 * is a scaled image itself; 0 stands for the size of the source.
+	 *
+	 * @methodtype factory
+	 */
+	public Map<PhotoSize, Image> scale(Image source, int width, int height, ImagesService.OutputEncoding encoding,
+									   Set<PhotoSize> sizes) {
+		return doScale(scaler, source, width, height, encoding, sizes);
+	}
+
+	/**
+	 * @methodtype factory
+	 * @methodproperty primitive
+	 */
+	protected <T> Map<PhotoSize, Image> doScale(final ImageScaler<T> scaler, Image source, int width, int height,
+												final ImagesService.OutputEncoding encoding, Set<PhotoSize> sizes) {
+		long startTime = System.nanoTime();
+		T decoded = scaler.decode(source);
+		T current = decoded;
+		int sourceWidth = width > 0 ? width : scaler.getWidth(decoded);
+		int sourceHeight = height > 0 ? height : scaler.getHeight(decoded);
+
+		Map<PhotoSize, Future<Image>> encodings = new LinkedHashMap<PhotoSize, Future<Image>>();
+		PhotoSize[] allSizes = PhotoSize.values();
+		for (int i = allSizes.length - 1; i >= 0; i--) {
+			PhotoSize size = allSizes[i];
+			if (!sizes.contains(size) || size.isWiderAndHigher(sourceWidth, sourceHeight)) {
+				continue;
+			}
+
+			int targetWidth = size.calcAdjustedWidth(sourceWidth, sourceHeight);
+			int targetHeight = size.calcAdjustedHeight(sourceWidth, sourceHeight);
+			T base = scaler.isScalingProgressively() ? current : decoded;
+			current = scaler.scale(base, targetWidth, targetHeight, encoding);
+
+			final T scaled = current;
+			encodings.put(size, submit(new Callable<Image>() {
+				@Override
+				public Image call() {
+					return scaler.encode(scaled, encoding);
+				}
+			}));
+		}
+
+		Map<PhotoSize, Image> result = new EnumMap<PhotoSize, Image>(PhotoSize.class);
+		for (Map.Entry<PhotoSize, Future<Image>> entry : encodings.entrySet()) {
+			result.put(entry.getKey(), getResult(entry.getValue()));
+		}
+
+		log.config(LogBuilder.createSystemMessage().
+				addAction("scale image").
+				addParameter("sizes", result.size()).
+				addParameter("time (ms)", (System.nanoTime() - startTime) / 1000000).toString());
+		return result;
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected <V> Future<V> submit(Callable<V> task) {
+		if (executor != null) {
+			return executor.submit(task);
+		}
+		FutureTask<V> result = new FutureTask<V>(task);
+		result.run();
+		return result;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	protected <V> V getResult(Future<V> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while scaling image", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException("could not scale image", e.getCause());
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public void shutDown() {
+		if (executor != null) {
+			executor.shutdown();
+		}
+	}
+}
@@ -0,0 +1,49 @@
+package org.wahlzeit.utils;
+
+import com.google.appengine.api.images.Image;
+import com.google.appengine.api.images.ImagesService;
+import com.google.appengine.api.images.ImagesServiceFactory;
+import com.google.appengine.api.images.Transform;
+
+/**
+ * Scales images with the App Engine images service. The service decodes and encodes the image in each call, so a
+ * scaled image is already encoded. As applyTransform replaces the data of the image it is given, each call transforms
+ * a copy. Scaling a scaled image would decode an already compressed image again, so each size is scaled from the
+ * source.
+ *
+ * @review
+ */
+public class ImagesServiceScaler extends ImageScaler<Image> {
+
+	@Override
+	public Image decode(Image source) {
+		return source;
+	}
+
+	@Override
+	public int getWidth(Image image) {
+		return image.getWidth();
+	}
+
+	@Override
+	public int getHeight(Image image) {
+		return image.getHeight();
+	}
+
+	@Override
+	public Image scale(Image image, int width, int height, ImagesService.OutputEncoding encoding) {
+		Transform resize = ImagesServiceFactory.makeResize(width, height);
+		Image copy = ImagesServiceFactory.makeImage(image.getImageData());
+		return ImagesServiceFactory.getImagesService().applyTransform(resize, copy, encoding);
+	}
+
+	@Override
+	public boolean isScalingProgressively() {
+		return false;
+	}
+
+	@Override
+	public Image encode(Image image, ImagesService.OutputEncoding encoding) {
+		return image;
+	}
+}
@@ -0,0 +1,90 @@
+package org.wahlzeit.utils;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A lock-free table that maps each non-negative int key to one canonical value, created on first request. The table
+ * has three levels of AtomicReferenceArrays; directories and pages are allocated on demand and installed with
+ * compareAndSet, so the table grows without copying, lookups of existing values are wait-free, and values are safely
+ * published to all threads. Racing creators of a value agree on the first one installed.
+ *
+ * @review
+ */
+public abstract class InternTable<V> {
+
+	/**
+	 *
+	 */
+	protected static final int PAGE_BITS = 10;
+	protected static final int PAGE_SIZE = 1 << PAGE_BITS;
+	protected static final int DIRECTORY_BITS = 10;
+	protected static final int DIRECTORY_SIZE = 1 << DIRECTORY_BITS;
+	protected static final int ROOT_SIZE = 1 << (Integer.SIZE - 1 - PAGE_BITS - DIRECTORY_BITS);
+
+	/**
+	 * root index -> directory; directory index -> page; page index -> value
+	 */
+	protected final AtomicReferenceArray<AtomicReferenceArray<AtomicReferenceArray<V>>> root =
+			new AtomicReferenceArray<AtomicReferenceArray<AtomicReferenceArray<V>>>(ROOT_SIZE);
+
+	/**
+	 * Returns the value of the key, or null if it has not been created yet.
+	 *
+	 * @methodtype get
+	 */
+	public V get(int key) {
+		AtomicReferenceArray<V> page = getPage(key, false);
+		return page == null ? null : page.get(key & (PAGE_SIZE - 1));
+	}
+
+	/**
+	 * Returns the value of the key, creating it if necessary.
+	 *
+	 * @methodtype get
+	 */
+	public V intern(int key) {
+		AtomicReferenceArray<V> page = getPage(key, true);
+		int index = key & (PAGE_SIZE - 1);
+		V result = page.get(index);
+		if (result == null) {
+			V value = create(key);
+			result = page.compareAndSet(index, null, value) ? value : page.get(index);
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype factory
+	 */
+	protected abstract V create(int key);
+
+	/**
+	 * @methodtype get
+	 */
+	protected AtomicReferenceArray<V> getPage(int key, boolean isCreating) {
+		if (key < 0) {
+			throw new IllegalArgumentException("key must not be negative: " + key);
+		}
+
+		int rootIndex = key >>> (PAGE_BITS + DIRECTORY_BITS);
+		AtomicReferenceArray<AtomicReferenceArray<V>> directory = root.get(rootIndex);
+		if (directory == null) {
+			if (!isCreating) {
+				return null;
+			}
+			root.compareAndSet(rootIndex, null, new AtomicReferenceArray<AtomicReferenceArray<V>>(DIRECTORY_SIZE));
+			directory = root.get(rootIndex);
+		}
+
+		int directoryIndex = (key >>> PAGE_BITS) & (DIRECTORY_SIZE - 1);
+		AtomicReferenceArray<V> page = directory.get(directoryIndex);
+		if (page == null) {
+			if (!isCreating) {
+				return null;
+			}
+			directory.compareAndSet(directoryIndex, null, new AtomicReferenceArray<V>(PAGE_SIZE));
+			page = directory.get(directoryIndex);
+		}
+		return page;
+	}
+}
@@ -0,0 +1,108 @@
+package org.wahlzeit.utils;
+
+import com.google.appengine.api.images.Image;
+import com.google.appengine.api.images.ImagesService;
+import com.google.appengine.api.images.ImagesServiceFactory;
+
+import javax.imageio.ImageIO;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Scales images locally with Java2D and ImageIO, e.g. outside of App Engine or to benchmark the pipeline. Images are
+ * halved with bilinear interpolation until the target size is reached, which gives nearly the quality of bicubic
+ * scaling at a fraction of the cost.
+ *
+ * @review
+ */
+public class Java2DImageScaler extends ImageScaler<BufferedImage> {
+
+	@Override
+	public BufferedImage decode(Image source) {
+		try {
+			BufferedImage result = ImageIO.read(new ByteArrayInputStream(source.getImageData()));
+			if (result == null) {
+				throw new IllegalArgumentException("unsupported image format");
+			}
+			return result;
+		} catch (IOException e) {
+			throw new IllegalArgumentException("could not decode image", e);
+		}
+	}
+
+	@Override
+	public int getWidth(BufferedImage image) {
+		return image.getWidth();
+	}
+
+	@Override
+	public int getHeight(BufferedImage image) {
+		return image.getHeight();
+	}
+
+	@Override
+	public BufferedImage scale(BufferedImage image, int width, int height, ImagesService.OutputEncoding encoding) {
+		BufferedImage result = image;
+		while (result.getWidth() != width || result.getHeight() != height) {
+			int stepWidth = Math.max(width, result.getWidth() / 2);
+			int stepHeight = Math.max(height, result.getHeight() / 2);
+			result = resize(result, stepWidth, stepHeight, result.getColorModel().hasAlpha());
+		}
+		return result;
+	}
+
+	@Override
+	public Image encode(BufferedImage image, ImagesService.OutputEncoding encoding) {
+		String formatName = asFormatName(encoding);
+		BufferedImage target = image;
+		if (encoding == ImagesService.OutputEncoding.JPEG && image.getColorModel().hasAlpha()) {
+			// JPEG has no alpha channel
+			target = resize(image, image.getWidth(), image.getHeight(), false);
+		}
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			if (!ImageIO.write(target, formatName, out)) {
+				throw new IllegalArgumentException("no image writer for " + formatName);
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("could not encode image", e);
+		}
+		return ImagesServiceFactory.makeImage(out.toByteArray());
+	}
+
+	/**
+	 * @methodtype factory
+	 */
+	protected BufferedImage resize(BufferedImage image, int width, int height, boolean hasAlpha) {
+		BufferedImage result = new BufferedImage(width, height,
+				hasAlpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+		Graphics2D graphics = result.createGraphics();
+		try {
+			graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+			graphics.drawImage(image, 0, 0, width, height, null);
+		} finally {
+			graphics.dispose();
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	protected String asFormatName(ImagesService.OutputEncoding encoding) {
+		switch (encoding) {
+			case PNG:
+				return "png";
+			case WEBP:
+				return "webp";
+			default:
+				return "jpg";
+		}
+	}
+}
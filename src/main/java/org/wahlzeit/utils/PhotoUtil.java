@@ -22,13 +22,18 @@ package org.wahlzeit.utils;
 
 import com.google.appengine.api.images.Image;
 import com.google.appengine.api.images.ImagesService;
-import com.google.appengine.api.images.ImagesServiceFactory;
-import com.google.appengine.api.images.Transform;
 import org.wahlzeit.model.Photo;
 import org.wahlzeit.model.PhotoId;
 import org.wahlzeit.model.enums.PhotoSize;
 import org.wahlzeit.services.LogBuilder;
-
+import org.wahlzeit.services.config.SysConfig;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
 import java.util.logging.Logger;
 
 /**
@@ -39,36 +44,66 @@ public class PhotoUtil {
 
     private static final Logger log = Logger.getLogger(PhotoUtil.class.getName());
 
+    /**
+     * Number of hash bytes in an entity tag
+     */
+    protected static final int ETAG_LENGTH = 16;
+
+    /**
+     * Leading bytes of the image formats that may be stored
+     */
+    protected static final byte[] JPEG_SIGNATURE = {(byte) 0xff, (byte) 0xd8, (byte) 0xff};
+    protected static final byte[] PNG_SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+    protected static final byte[] GIF_SIGNATURE = {'G', 'I', 'F', '8'};
+    protected static final byte[] RIFF_SIGNATURE = {'R', 'I', 'F', 'F'};
+    protected static final byte[] WEBP_SIGNATURE = {'W', 'E', 'B', 'P'};
+    protected static final int WEBP_SIGNATURE_OFFSET = 8;
+
     /**
      * @methodtype creation
      */
     public static Photo createPhoto(String filename, PhotoId id, Image uploadedImage) {
-        Photo result = PhotoFactory.getInstance().createPhoto(id);
-        result.setEnding(filename.substring(filename.lastIndexOf(".") + 1));
-
+        Photo result = createUnprocessedPhoto(filename, id, uploadedImage);
         createImageFiles(uploadedImage, result);
+        return result;
+    }
 
+    /**
+     * Creates the photo for an upload without its scaled images, see createImageFiles().
+     *
+     * @methodtype creation
+     */
+    public static Photo createUnprocessedPhoto(String filename, PhotoId id, Image uploadedImage) {
+        assertIsValidImage(uploadedImage);
         int sourceWidth = uploadedImage.getWidth();
         int sourceHeight = uploadedImage.getHeight();
-        result.setWidthAndHeight(sourceWidth, sourceHeight);
+        assertHasValidSize(sourceWidth, sourceHeight);
 
+        Photo result = PhotoFactory.getInstance().createPhoto(id);
+        result.setEnding(filename.substring(filename.lastIndexOf(".") + 1));
+        result.setWidthAndHeight(sourceWidth, sourceHeight);
         return result;
     }
 
     /**
-     *
+     * Creates the scaled images of the photo with the {@link ImageScalingPipeline}. If images are created on demand,
+     * only the largest size is created.
      */
     public static void createImageFiles(Image source, Photo photo) {
         assertIsValidImage(source);
+        assertHasValidSize(source.getWidth(), source.getHeight());
 
-        int sourceWidth = source.getWidth();
-        int sourceHeight = source.getHeight();
-        assertHasValidSize(sourceWidth, sourceHeight);
+        Set<PhotoSize> sizes = EnumSet.allOf(PhotoSize.class);
+        if (SysConfig.IMAGE_GENERATION_ON_DEMAND.equals(SysConfig.getImageGeneration())) {
+            sizes = EnumSet.of(PhotoSize.getFromWidthHeight(source.getWidth(), source.getHeight()));
+        }
 
-        for (PhotoSize size : PhotoSize.values()) {
-            if (!size.isWiderAndHigher(sourceWidth, sourceHeight)) {
-                scaleImage(ImagesServiceFactory.makeImage(source.getImageData()), size, photo);
-            }
+        Map<PhotoSize, Image> images = ImageScalingPipeline.getInstance().
+                scale(source, 0, 0, getOutputEncoding(photo.getEnding()), sizes);
+        for (Map.Entry<PhotoSize, Image> entry : images.entrySet()) {
+            photo.setImage(entry.getKey(), entry.getValue());
+            log.config(LogBuilder.createSystemMessage().
+                    addParameter("Scaled image to size", entry.getKey().asString()).toString());
         }
     }
 
@@ -91,23 +126,96 @@ public class PhotoUtil {
     }
 
     /**
-     * @methodtype command Scale the source picture to the given size, store it in the datastore and reference it in the
-     * photo.
+     * Returns a strong entity tag for the given image bytes, i.e. the hex encoded first 128 bits of their SHA-256 hash.
+     * The position of the buffer is not changed.
+     *
+     * @methodtype conversion
      */
-    protected static void scaleImage(Image source, PhotoSize size, Photo photo) {
-        int sourceWidth = source.getWidth();
-        int sourceHeight = source.getHeight();
+    public static String computeETag(ByteBuffer imageData) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        digest.update(imageData.duplicate());
 
-        int targetWidth = size.calcAdjustedWidth(sourceWidth, sourceHeight);
-        int targetHeight = size.calcAdjustedHeight(sourceWidth, sourceHeight);
+        byte[] hash = digest.digest();
+        StringBuilder result = new StringBuilder(ETAG_LENGTH * 2);
+        for (int i = 0; i < ETAG_LENGTH; i++) {
+            result.append(String.format("%02x", hash[i] & 0xff));
+        }
+        return result.toString();
+    }
 
-        ImagesService imagesService = ImagesServiceFactory.getImagesService();
-        Transform resize = ImagesServiceFactory.makeResize(targetWidth, targetHeight);
-        Image newImage = imagesService.applyTransform(resize, source);
+    /**
+     * Returns the encoding of scaled images of a photo with the given file ending. Formats that can not be written are
+     * encoded as JPEG. Images stored before, e.g. as PNG, may have another encoding, so their MIME type is read from
+     * their bytes, see getMimeType(ByteBuffer, String).
+     *
+     * @methodtype conversion
+     */
+    public static ImagesService.OutputEncoding getOutputEncoding(String ending) {
+        String lowerCaseEnding = ending == null ? "" : ending.toLowerCase();
+        if ("png".equals(lowerCaseEnding) || "gif".equals(lowerCaseEnding)) {
+            return ImagesService.OutputEncoding.PNG;
+        } else if ("webp".equals(lowerCaseEnding)) {
+            return ImagesService.OutputEncoding.WEBP;
+        } else {
+            return ImagesService.OutputEncoding.JPEG;
+        }
+    }
 
-        photo.setImage(size, newImage);
+    /**
+     * Returns the MIME type of the given image bytes from their signature, or, if it is not known, the one of scaled
+     * images of a photo with the given file ending. The position of the buffer is not changed.
+     *
+     * @methodtype conversion
+     */
+    public static String getMimeType(ByteBuffer imageData, String ending) {
+        int position = imageData.position();
+        if (hasSignature(imageData, position, JPEG_SIGNATURE)) {
+            return "image/jpeg";
+        } else if (hasSignature(imageData, position, PNG_SIGNATURE)) {
+            return "image/png";
+        } else if (hasSignature(imageData, position, GIF_SIGNATURE)) {
+            return "image/gif";
+        } else if (hasSignature(imageData, position, RIFF_SIGNATURE)
+                && hasSignature(imageData, position + WEBP_SIGNATURE_OFFSET, WEBP_SIGNATURE)) {
+            return "image/webp";
+        }
+        return getMimeType(ending);
+    }
+
+    /**
+     * @methodtype boolean-query
+     */
+    protected static boolean hasSignature(ByteBuffer data, int offset, byte[] signature) {
+        if (data.limit() - offset < signature.length) {
+            return false;
+        }
+        for (int i = 0; i < signature.length; i++) {
+            if (data.get(offset + i) != signature[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-        log.config(LogBuilder.createSystemMessage().addParameter("Scaled image to size", size.asString()).toString());
+    /**
+     * Returns the MIME type of scaled images of a photo with the given file ending.
+     *
+     * @methodtype conversion
+     */
+    public static String getMimeType(String ending) {
+        switch (getOutputEncoding(ending)) {
+            case PNG:
+                return "image/png";
+            case WEBP:
+                return "image/webp";
+            default:
+                return "image/jpeg";
+        }
     }
 
 }
@@ -0,0 +1,424 @@
+package org.wahlzeit.utils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An off-heap store of byte arrays with a fixed memory budget. The memory is allocated on demand as direct ByteBuffer
+ * slabs of slabSize bytes, at most maxBytes / slabSize of them. Each slab is cut into chunks of one size class, as in
+ * memcached: a value is copied into a free chunk of the smallest class that fits it. If there is none, the least
+ * recently used values of that class are evicted or, if the class has no values, a slab of another class is taken
+ * over. Values larger than a slab are not stored.
+ * Readers acquire a BufferHandle to read the bytes in place, e.g. to write them to a response. The chunk of a value
+ * that is replaced or evicted while handles are held is reused only after all of them have been released.
+ *
+ * @review
+ */
+public class SlabByteStore<K> {
+
+	/**
+	 * 1 MB
+	 */
+	public static final int DEFAULT_SLAB_SIZE = 1024 * 1024;
+
+	/**
+	 *
+	 */
+	protected static final int MIN_CHUNK_SIZE = 256;
+	protected static final double CHUNK_GROWTH_FACTOR = 1.25;
+	protected static final int CHUNK_ALIGNMENT = 64;
+
+	/**
+	 *
+	 */
+	protected final int slabSize;
+	protected final int maxSlabs;
+	protected final SizeClass[] sizeClasses;
+	protected final List<Slab> slabs = new ArrayList<Slab>();
+
+	/**
+	 * all stored values; each is also in the LRU map of its size class
+	 */
+	protected final Map<K, Entry> entries = new HashMap<K, Entry>();
+
+	/**
+	 * where the search for a slab to take over starts
+	 */
+	protected int nextVictimSlab = 0;
+
+	/**
+	 *
+	 */
+	protected long usedBytes = 0;
+	protected long hitCount = 0;
+	protected long missCount = 0;
+	protected long evictionCount = 0;
+
+	/**
+	 *
+	 */
+	public SlabByteStore(long maxBytes, int slabSize) {
+		if (slabSize < MIN_CHUNK_SIZE || maxBytes < slabSize) {
+			throw new IllegalArgumentException("slabSize must be at least " + MIN_CHUNK_SIZE + " and at most maxBytes");
+		}
+		this.slabSize = slabSize;
+		this.maxSlabs = (int) Math.min(Integer.MAX_VALUE, maxBytes / slabSize);
+		this.sizeClasses = createSizeClasses(slabSize);
+	}
+
+	/**
+	 * @methodtype factory
+	 */
+	protected static SizeClass[] createSizeClasses(int slabSize) {
+		List<SizeClass> result = new ArrayList<SizeClass>();
+		int chunkSize = MIN_CHUNK_SIZE;
+		while (chunkSize < slabSize) {
+			result.add(new SizeClass(chunkSize));
+			int nextChunkSize = (int) (chunkSize * CHUNK_GROWTH_FACTOR);
+			chunkSize = (nextChunkSize + CHUNK_ALIGNMENT - 1) / CHUNK_ALIGNMENT * CHUNK_ALIGNMENT;
+		}
+		result.add(new SizeClass(slabSize));
+		return result.toArray(new SizeClass[result.size()]);
+	}
+
+	/**
+	 * Copies the value into the store, replacing a previous value of the key. Returns false if the value could not be
+	 * stored, because it is larger than a slab or all chunks it could use are held by readers.
+	 *
+	 * @methodtype command
+	 */
+	public boolean put(K key, byte[] value) {
+		return put(key, ByteBuffer.wrap(value));
+	}
+
+	/**
+	 * Copies the remaining bytes of the buffer into the store, without changing its position; see put(K, byte[]).
+	 *
+	 * @methodtype command
+	 */
+	public synchronized boolean put(K key, ByteBuffer value) {
+		remove(key);
+
+		int length = value.remaining();
+		int sizeClass = getSizeClass(length);
+		if (sizeClass < 0) {
+			return false;
+		}
+		Chunk chunk = allocateChunk(sizeClass);
+		if (chunk == null) {
+			return false;
+		}
+
+		ByteBuffer target = chunk.slab.buffer.duplicate();
+		target.position(chunk.offset);
+		target.put(value.duplicate());
+
+		Entry entry = new Entry(key, chunk, length, sizeClass);
+		entries.put(key, entry);
+		sizeClasses[sizeClass].entries.put(key, entry);
+		usedBytes += length;
+		return true;
+	}
+
+	/**
+	 * Returns a handle to read the value of the key in place, or null if there is none. The handle must be released.
+	 *
+	 * @methodtype get
+	 */
+	public synchronized BufferHandle acquire(K key) {
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			missCount++;
+			return null;
+		}
+
+		hitCount++;
+		sizeClasses[entry.sizeClass].entries.get(key); // marks the entry as recently used
+		entry.pinCount++;
+		entry.chunk.slab.pinCount++;
+
+		ByteBuffer buffer = entry.chunk.slab.buffer.duplicate();
+		buffer.position(entry.chunk.offset);
+		buffer.limit(entry.chunk.offset + entry.length);
+		return new StoredHandle(entry, buffer.slice());
+	}
+
+	/**
+	 * Returns a copy of the value of the key, or null if there is none.
+	 *
+	 * @methodtype get
+	 */
+	public byte[] get(K key) {
+		BufferHandle handle = acquire(key);
+		if (handle == null) {
+			return null;
+		}
+		try {
+			return handle.toByteArray();
+		} finally {
+			handle.release();
+		}
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public synchronized boolean contains(K key) {
+		return entries.containsKey(key);
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public synchronized void remove(K key) {
+		Entry entry = entries.get(key);
+		if (entry != null) {
+			removeEntry(entry);
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public synchronized long getUsedBytes() {
+		return usedBytes;
+	}
+
+	/**
+	 * Returns the off-heap memory allocated so far.
+	 *
+	 * @methodtype get
+	 */
+	public synchronized long getAllocatedBytes() {
+		return (long) slabs.size() * slabSize;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public synchronized long getHitCount() {
+		return hitCount;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public synchronized long getMissCount() {
+		return missCount;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public synchronized long getEvictionCount() {
+		return evictionCount;
+	}
+
+	/**
+	 * Returns the index of the smallest size class that fits length bytes, or -1 if there is none.
+	 *
+	 * @methodtype get
+	 */
+	protected int getSizeClass(int length) {
+		for (int i = 0; i < sizeClasses.length; i++) {
+			if (sizeClasses[i].chunkSize >= length) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @methodtype factory
+	 */
+	protected Chunk allocateChunk(int sizeClass) {
+		SizeClass target = sizeClasses[sizeClass];
+		if (target.freeChunks.isEmpty() && slabs.size() < maxSlabs) {
+			Slab slab = new Slab(ByteBuffer.allocateDirect(slabSize));
+			slabs.add(slab);
+			assignSlab(slab, sizeClass);
+		}
+
+		Iterator<Entry> lru = target.entries.values().iterator();
+		while (target.freeChunks.isEmpty() && lru.hasNext()) {
+			Entry eldest = lru.next();
+			lru.remove();
+			evictionCount++;
+			doRemoveEntry(eldest);
+		}
+
+		if (target.freeChunks.isEmpty()) {
+			Slab victim = findVictimSlab(sizeClass);
+			if (victim != null) {
+				evictSlab(victim);
+				assignSlab(victim, sizeClass);
+			}
+		}
+		return target.freeChunks.poll();
+	}
+
+	/**
+	 * Returns a slab of another size class that no reader holds, or null if there is none.
+	 *
+	 * @methodtype get
+	 */
+	protected Slab findVictimSlab(int sizeClass) {
+		for (int i = 0; i < slabs.size(); i++) {
+			Slab slab = slabs.get((nextVictimSlab + i) % slabs.size());
+			if (slab.sizeClass != sizeClass && slab.pinCount == 0) {
+				nextVictimSlab = (nextVictimSlab + i + 1) % slabs.size();
+				return slab;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Evicts all values of the slab and takes its chunks from the free list of its size class.
+	 *
+	 * @methodtype command
+	 */
+	protected void evictSlab(Slab slab) {
+		for (Entry entry : new ArrayList<Entry>(entries.values())) {
+			if (entry.chunk.slab == slab) {
+				evictionCount++;
+				removeEntry(entry);
+			}
+		}
+		for (Iterator<Chunk> i = sizeClasses[slab.sizeClass].freeChunks.iterator(); i.hasNext(); ) {
+			if (i.next().slab == slab) {
+				i.remove();
+			}
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void assignSlab(Slab slab, int sizeClass) {
+		slab.sizeClass = sizeClass;
+		int chunkSize = sizeClasses[sizeClass].chunkSize;
+		for (int offset = 0; offset + chunkSize <= slabSize; offset += chunkSize) {
+			sizeClasses[sizeClass].freeChunks.add(new Chunk(slab, offset));
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void removeEntry(Entry entry) {
+		sizeClasses[entry.sizeClass].entries.remove(entry.key);
+		doRemoveEntry(entry);
+	}
+
+	/**
+	 * Removes the entry, which has already been removed from the LRU map of its size class.
+	 *
+	 * @methodtype command
+	 */
+	protected void doRemoveEntry(Entry entry) {
+		entries.remove(entry.key);
+		usedBytes -= entry.length;
+		entry.isRemoved = true;
+		if (entry.pinCount == 0) {
+			sizeClasses[entry.sizeClass].freeChunks.add(entry.chunk);
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected synchronized void release(Entry entry) {
+		entry.pinCount--;
+		entry.chunk.slab.pinCount--;
+		if (entry.pinCount == 0 && entry.isRemoved) {
+			sizeClasses[entry.sizeClass].freeChunks.add(entry.chunk);
+		}
+	}
+
+	/**
+	 * Read access to a stored value; pins its chunk until it is released
+	 */
+	protected class StoredHandle extends BufferHandle {
+
+		protected final Entry entry;
+
+		protected StoredHandle(Entry entry, ByteBuffer buffer) {
+			super(buffer);
+			this.entry = entry;
+		}
+
+		@Override
+		protected void doRelease() {
+			SlabByteStore.this.release(entry);
+		}
+	}
+
+	/**
+	 * Chunks of one size, with the least recently used value first
+	 */
+	protected static class SizeClass {
+
+		protected final int chunkSize;
+		protected final ArrayDeque<Chunk> freeChunks = new ArrayDeque<Chunk>();
+		protected final LinkedHashMap<Object, Entry> entries = new LinkedHashMap<Object, Entry>(16, 0.75f, true);
+
+		protected SizeClass(int chunkSize) {
+			this.chunkSize = chunkSize;
+		}
+	}
+
+	/**
+	 *
+	 */
+	protected static class Slab {
+
+		protected final ByteBuffer buffer;
+		protected int sizeClass = -1;
+		protected int pinCount = 0;
+
+		protected Slab(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+	}
+
+	/**
+	 *
+	 */
+	protected static class Chunk {
+
+		protected final Slab slab;
+		protected final int offset;
+
+		protected Chunk(Slab slab, int offset) {
+			this.slab = slab;
+			this.offset = offset;
+		}
+	}
+
+	/**
+	 *
+	 */
+	protected static class Entry {
+
+		protected final Object key;
+		protected final Chunk chunk;
+		protected final int length;
+		protected final int sizeClass;
+		protected int pinCount = 0;
+		protected boolean isRemoved = false;
+
+		protected Entry(Object key, Chunk chunk, int length, int sizeClass) {
+			this.key = key;
+			this.chunk = chunk;
+			this.length = length;
+			this.sizeClass = sizeClass;
+		}
+	}
+}
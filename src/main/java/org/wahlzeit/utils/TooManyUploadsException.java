@@ -0,0 +1,18 @@
+package org.wahlzeit.utils;
+
+import java.io.IOException;
+
+/**
+ * Thrown if a client starts more uploads than it may have open at the same time.
+ */
+public class TooManyUploadsException extends IOException {
+
+	private static final long serialVersionUID = 42L; // any one does; class never serialized
+
+	/**
+	 *
+	 */
+	public TooManyUploadsException(String ownerId, int limit) {
+		super("client " + ownerId + " already has " + limit + " open uploads");
+	}
+}
@@ -0,0 +1,18 @@
+package org.wahlzeit.utils;
+
+import java.io.IOException;
+
+/**
+ * Thrown if an uploaded file is larger than the configured maximum size.
+ */
+public class UploadSizeLimitExceededException extends IOException {
+
+	private static final long serialVersionUID = 42L; // any one does; class never serialized
+
+	/**
+	 *
+	 */
+	public UploadSizeLimitExceededException(String fileName, long limit) {
+		super("upload " + fileName + " exceeds the limit of " + limit + " bytes");
+	}
+}
@@ -0,0 +1,310 @@
+package org.wahlzeit.utils;
+
+import com.google.appengine.api.images.Image;
+import com.google.appengine.api.images.ImagesServiceFactory;
+import org.wahlzeit.services.LogBuilder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * A file uploaded with one request. Its bytes are read in chunks into pooled buffers; once they exceed the spill
+ * threshold, they are moved to a temporary file and the rest of the upload is written there, so the memory held per
+ * upload is bounded. Where the file system can not be written, e.g. on App Engine, the upload stays in memory. An
+ * upload larger than the maximum size is rejected while it is read. The file must be released after use, to return
+ * its buffers to the pool and delete its temporary file.
+ *
+ * @review
+ */
+public class UploadedFile {
+
+	private static final Logger log = Logger.getLogger(UploadedFile.class.getName());
+
+	/**
+	 * Key of an uploaded file in the request arguments
+	 */
+	public static final String UPLOADED_FILE = "uploadedFile";
+
+	/**
+	 *
+	 */
+	public static final int CHUNK_SIZE = 64 * 1024;
+	public static final int MAX_POOLED_CHUNKS = 256;
+
+	/**
+	 * shared by all uploads
+	 */
+	protected static final ByteBufferPool chunkPool = new ByteBufferPool(CHUNK_SIZE, MAX_POOLED_CHUNKS);
+
+	/**
+	 *
+	 */
+	protected static final String TEMP_FILE_PREFIX = "upload";
+	protected static final String TEMP_FILE_ENDING = ".tmp";
+
+	/**
+	 *
+	 */
+	protected final String fileName;
+	protected final Path spillDir;
+
+	/**
+	 * the bytes while they are held in memory; each buffer is flipped for reading
+	 */
+	protected final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+
+	/**
+	 * null while the bytes are held in memory
+	 */
+	protected Path spillFile = null;
+
+	/**
+	 *
+	 */
+	protected long length = 0;
+	protected boolean isSpillFailed = false;
+	protected boolean isReleased = false;
+
+	/**
+	 *
+	 */
+	protected UploadedFile(String fileName, Path spillDir) {
+		this.fileName = fileName;
+		this.spillDir = spillDir;
+	}
+
+	/**
+	 * Reads the input up to its end and closes it. Bytes beyond spillThreshold are written to a temporary file in
+	 * spillDir.
+	 *
+	 * @methodtype factory
+	 */
+	public static UploadedFile read(String fileName, InputStream input, long maxSize, long spillThreshold, Path spillDir)
+			throws IOException {
+		UploadedFile result = new UploadedFile(fileName, spillDir);
+		try {
+			result.readFrom(Channels.newChannel(input), maxSize, spillThreshold);
+		} catch (IOException e) {
+			result.release();
+			throw e;
+		} finally {
+			input.close();
+		}
+		return result;
+	}
+
+	/**
+	 * Returns an upload of the given bytes, e.g. assembled from the chunks of a resumable upload.
+	 *
+	 * @methodtype factory
+	 */
+	public static UploadedFile wrap(String fileName, byte[] data) {
+		UploadedFile result = new UploadedFile(fileName, null);
+		result.chunks.add(ByteBuffer.wrap(data));
+		result.length = data.length;
+		return result;
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void readFrom(ReadableByteChannel input, long maxSize, long spillThreshold) throws IOException {
+		FileChannel spillChannel = null;
+		ByteBuffer chunk = chunkPool.acquire();
+		try {
+			while (input.read(chunk) >= 0) {
+				if (length + chunk.position() > maxSize) {
+					throw new UploadSizeLimitExceededException(fileName, maxSize);
+				}
+				if (chunk.hasRemaining()) {
+					continue;
+				}
+
+				chunk.flip();
+				length += chunk.remaining();
+				if (spillChannel == null && !isSpillFailed && length > spillThreshold) {
+					spillChannel = openSpillFile();
+				}
+				if (spillChannel == null) {
+					chunks.add(chunk);
+					chunk = chunkPool.acquire();
+				} else {
+					writeFully(spillChannel, chunk);
+					chunk.clear();
+				}
+			}
+
+			chunk.flip();
+			length += chunk.remaining();
+			if (spillChannel == null) {
+				chunks.add(chunk);
+				chunk = null;
+			} else {
+				writeFully(spillChannel, chunk);
+			}
+		} finally {
+			if (chunk != null) {
+				chunkPool.release(chunk);
+			}
+			if (spillChannel != null) {
+				spillChannel.close();
+			}
+		}
+	}
+
+	/**
+	 * Creates the temporary file and moves the chunks held so far to it. Returns null if the file system can not be
+	 * written, e.g. on App Engine; the upload is then held in memory.
+	 *
+	 * @methodtype factory
+	 */
+	protected FileChannel openSpillFile() {
+		FileChannel result = null;
+		try {
+			Files.createDirectories(spillDir);
+			spillFile = Files.createTempFile(spillDir, TEMP_FILE_PREFIX, TEMP_FILE_ENDING);
+			result = FileChannel.open(spillFile, StandardOpenOption.WRITE);
+			for (ByteBuffer chunk : chunks) {
+				writeFully(result, chunk.duplicate());
+			}
+		} catch (IOException e) {
+			return abortSpill(result, e);
+		} catch (SecurityException e) {
+			return abortSpill(result, e);
+		}
+
+		for (ByteBuffer chunk : chunks) {
+			chunkPool.release(chunk);
+		}
+		chunks.clear();
+		return result;
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected FileChannel abortSpill(FileChannel channel, Exception cause) {
+		log.warning(LogBuilder.createSystemMessage().
+				addException("Could not spill upload, keeping it in memory", cause).toString());
+		isSpillFailed = true;
+		try {
+			if (channel != null) {
+				channel.close();
+			}
+			if (spillFile != null) {
+				Files.deleteIfExists(spillFile);
+			}
+		} catch (IOException e) {
+			spillFile.toFile().deleteOnExit();
+		}
+		spillFile = null;
+		return null;
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public String getFileName() {
+		return fileName;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean isSpilled() {
+		return spillFile != null;
+	}
+
+	/**
+	 * Copies the bytes into one array, e.g. to create an Image of them.
+	 *
+	 * @methodtype conversion
+	 */
+	public byte[] toByteArray() throws IOException {
+		if (isReleased) {
+			throw new IllegalStateException("upload has already been released");
+		}
+
+		byte[] result = new byte[(int) length];
+		if (spillFile == null) {
+			int offset = 0;
+			for (ByteBuffer chunk : chunks) {
+				chunk.duplicate().get(result, offset, chunk.remaining());
+				offset += chunk.remaining();
+			}
+		} else {
+			FileChannel channel = FileChannel.open(spillFile, StandardOpenOption.READ);
+			try {
+				ByteBuffer target = ByteBuffer.wrap(result);
+				while (target.hasRemaining() && channel.read(target) >= 0) {
+					// read until the array is full
+				}
+			} finally {
+				channel.close();
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	public Image toImage() throws IOException {
+		return ImagesServiceFactory.makeImage(toByteArray());
+	}
+
+	/**
+	 * Returns the buffers to the pool and deletes the temporary file; releasing more than once has no effect.
+	 *
+	 * @methodtype command
+	 */
+	public synchronized void release() {
+		if (isReleased) {
+			return;
+		}
+
+		isReleased = true;
+		for (ByteBuffer chunk : chunks) {
+			chunkPool.release(chunk);
+		}
+		chunks.clear();
+		if (spillFile != null) {
+			try {
+				Files.deleteIfExists(spillFile);
+			} catch (IOException e) {
+				spillFile.toFile().deleteOnExit();
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return fileName + " (" + length + " bytes" + (isSpilled() ? ", spilled" : "") + ")";
+	}
+}
@@ -0,0 +1,101 @@
+package org.wahlzeit.model;
+
+import com.google.appengine.api.images.ImagesServiceFactory;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.RuleChain;
+import org.wahlzeit.model.enums.PhotoChange;
+import org.wahlzeit.model.enums.PhotoSize;
+import org.wahlzeit.model.enums.PhotoStatus;
+import org.wahlzeit.model.persistence.DataObject;
+import org.wahlzeit.testEnvironmentProvider.LocalDatastoreServiceTestConfigProvider;
+import org.wahlzeit.testEnvironmentProvider.RegisteredOfyEnvironmentProvider;
+import org.wahlzeit.utils.PhotoUtil;
+
+import java.nio.ByteBuffer;
+import java.util.EnumSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test class for the dirty field tracking and image ETags of {@link LandscapePhoto}.
+ */
+public class LandscapePhotoTest {
+
+	@ClassRule
+	public static RuleChain ruleChain = RuleChain.
+			outerRule(new LocalDatastoreServiceTestConfigProvider()).
+			around(new RegisteredOfyEnvironmentProvider());
+
+	private LandscapePhoto photo;
+
+	@Before
+	public void setUp() {
+		photo = new LandscapePhoto(PhotoId.getNextId());
+		photo.resetWriteCount();
+	}
+
+	@Test
+	public void testNewPhotoIsDirty() {
+		LandscapePhoto newPhoto = new LandscapePhoto(PhotoId.getNextId());
+		assertTrue(newPhoto.isDirty());
+		assertEquals(DataObject.UNSPECIFIED_FIELD, newPhoto.getDirtyFields());
+	}
+
+	@Test
+	public void testDirtyFields() {
+		photo.addToPraise(5);
+		photo.setStatus(PhotoStatus.FLAGGED);
+
+		assertTrue(photo.isDirty(LandscapePhoto.Field.PRAISE));
+		assertTrue(photo.isDirty(LandscapePhoto.Field.STATUS));
+		assertFalse(photo.isDirty(LandscapePhoto.Field.TAGS));
+
+		long dirtyFields = photo.takeDirtyFields();
+		assertEquals(DataObject.asFieldMask(LandscapePhoto.Field.PRAISE) |
+				DataObject.asFieldMask(LandscapePhoto.Field.STATUS), dirtyFields);
+		assertFalse(photo.isDirty());
+
+		photo.markDirty(dirtyFields);
+		assertTrue(photo.isDirty(LandscapePhoto.Field.PRAISE));
+	}
+
+	@Test
+	public void testChanges() {
+		photo.addToPraise(5);
+		assertEquals(EnumSet.of(PhotoChange.OWNER_FIELDS), photo.getChanges(photo.takeDirtyFields()));
+
+		photo.setStatus(PhotoStatus.FLAGGED);
+		assertEquals(EnumSet.of(PhotoChange.STATUS, PhotoChange.OWNER_FIELDS), photo.getChanges(photo.takeDirtyFields()));
+
+		photo.setTags(new Tags("sea"));
+		assertEquals(EnumSet.of(PhotoChange.TAGS, PhotoChange.OWNER_FIELDS), photo.getChanges(photo.takeDirtyFields()));
+
+		photo.setImage(PhotoSize.THUMB, ImagesServiceFactory.makeImage(new byte[]{1, 2, 3}));
+		assertEquals(EnumSet.of(PhotoChange.IMAGES), photo.getChanges(photo.takeDirtyFields()));
+
+		assertTrue(photo.getChanges(photo.takeDirtyFields()).isEmpty());
+	}
+
+	@Test
+	public void testNewPhotoChangesEverything() {
+		LandscapePhoto newPhoto = new LandscapePhoto(PhotoId.getNextId());
+		assertEquals(EnumSet.allOf(PhotoChange.class), newPhoto.getChanges(newPhoto.takeDirtyFields()));
+	}
+
+	@Test
+	public void testSetImageStoresETag() {
+		photo.setImage(PhotoSize.THUMB, ImagesServiceFactory.makeImage(new byte[]{1, 2, 3}));
+
+		String eTag = photo.getImageETag(PhotoSize.THUMB);
+		assertNotNull(eTag);
+		assertEquals(PhotoUtil.computeETag(ByteBuffer.wrap(new byte[]{1, 2, 3})), eTag);
+		assertNull(photo.getImageETag(PhotoSize.LARGE));
+		assertTrue(photo.isDirty(LandscapePhoto.Field.IMAGE_ETAGS));
+	}
+}
@@ -20,14 +20,31 @@
 package org.wahlzeit.model;
 
 import org.junit.Before;
+import org.junit.ClassRule;
 import org.junit.Test;
+import org.junit.rules.RuleChain;
+import org.wahlzeit.services.PhotoTagIndex;
+import org.wahlzeit.utils.PhotoTagCollector;
+import org.wahlzeit.testEnvironmentProvider.LocalDatastoreServiceTestConfigProvider;
+import org.wahlzeit.testEnvironmentProvider.RegisteredOfyEnvironmentProvider;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 public class PhotoFilterTest {
 
+	@ClassRule
+	public static RuleChain ruleChain = RuleChain.
+			outerRule(new LocalDatastoreServiceTestConfigProvider()).
+			around(new RegisteredOfyEnvironmentProvider());
+
 	private PhotoFilter photoFilter;
 
 	@Before
@@ -46,8 +63,9 @@ public class PhotoFilterTest {
 		assertEquals("", photoFilter.userName);
 		assertEquals(Tags.EMPTY_TAGS, photoFilter.tags);
 
-		assertEquals(0, photoFilter.processedPhotoIds.size());
-		assertEquals(0, photoFilter.displayablePhotoIds.size());
+		assertTrue(photoFilter.processedPhotoIds.isEmpty());
+		assertTrue(photoFilter.skippedPhotoIds.isEmpty());
+		assertEquals(0, photoFilter.cursor);
 	}
 
 	/**
@@ -70,18 +88,170 @@ public class PhotoFilterTest {
 		photoFilter.setTags(new Tags("test"));
 		assertEquals("test", photoFilter.getTags().asString());
 
-		photoFilter.displayablePhotoIds.add(new PhotoId(3));
-		assertTrue(photoFilter.displayablePhotoIds.size() == 1);
+		photoFilter.cursor = 3;
 
-		photoFilter.processedPhotoIds.add(new PhotoId(2));
-		assertTrue(photoFilter.processedPhotoIds.size() == 1);
+		photoFilter.processedPhotoIds.set(2);
+		assertTrue(photoFilter.processedPhotoIds.cardinality() == 1);
 
 		photoFilter.clear();
 
 		assertEquals("", photoFilter.getUserName());
 		assertEquals(Tags.EMPTY_TAGS, photoFilter.getTags());
-		assertTrue(photoFilter.displayablePhotoIds.isEmpty());
+		assertEquals(0, photoFilter.cursor);
 		assertTrue(photoFilter.processedPhotoIds.isEmpty());
 	}
 
+	/**
+	 *
+	 */
+	@Test
+	public void testSetTagsOrQuery() {
+		photoFilter.setTagsOrQuery("sea, beach");
+		assertEquals("beach, sea", photoFilter.getTags().asString());
+		assertNull(photoFilter.getQuery());
+
+		photoFilter.setTagsOrQuery("sea AND NOT rain");
+		assertEquals("(tg:sea AND NOT tg:rain)", photoFilter.getQuery().toString());
+		assertEquals(Tags.EMPTY_TAGS, photoFilter.getTags());
+
+		photoFilter.setTagsOrQuery("(sunset AND sea");
+		assertEquals("(tg:sea AND NOT tg:rain)", photoFilter.getQuery().toString());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testPhotoStreamDoesNotRepeat() {
+		PhotoTagIndex index = createIndex(20, "sea");
+		photoFilter.setTags(new Tags("sea"));
+
+		Set<PhotoId> seen = new HashSet<PhotoId>();
+		for (int i = 0; i < 20; i++) {
+			PhotoId photoId = photoFilter.getNextPhotoId(index);
+			assertFalse(photoId.isNullId());
+			assertTrue(seen.add(photoId));
+		}
+		assertTrue(photoFilter.getNextPhotoId(index).isNullId());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testPhotoStreamContinuesWithNewPhotos() {
+		PhotoTagIndex index = createIndex(3, "sea");
+		photoFilter.setTags(new Tags("sea"));
+		for (int i = 0; i < 3; i++) {
+			photoFilter.getNextPhotoId(index);
+		}
+
+		Photo newPhoto = createPhoto("sea");
+		index.updatePhoto(newPhoto);
+
+		assertEquals(newPhoto.getId(), photoFilter.getNextPhotoId(index));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testPhotoStreamContinuesWithPhotosThatStartToMatch() {
+		Photo processingPhoto = createPhoto("sea");
+		processingPhoto.setStatus(processingPhoto.getStatus().asProcessing(true));
+		PhotoTagIndex index = createIndex(3, "sea");
+		Photo retaggedPhoto = createPhoto("other");
+		index.updatePhoto(processingPhoto);
+		index.updatePhoto(retaggedPhoto);
+		index.updatePhoto(createPhoto("sea"));
+		photoFilter.setTags(new Tags("sea"));
+		photoFilter.getNextPhotoId(index);
+
+		// both photos have lower IDs than the last one of the range already started
+		processingPhoto.setStatus(processingPhoto.getStatus().asProcessing(false));
+		index.updatePhoto(processingPhoto);
+		retaggedPhoto.setTags(new Tags("sea"));
+		index.updatePhoto(retaggedPhoto);
+
+		Set<PhotoId> seen = new HashSet<PhotoId>();
+		for (PhotoId id = photoFilter.getNextPhotoId(index); !id.isNullId(); id = photoFilter.getNextPhotoId(index)) {
+			assertTrue(seen.add(id));
+		}
+		assertEquals(5, seen.size());
+		assertTrue(seen.contains(processingPhoto.getId()));
+		assertTrue(seen.contains(retaggedPhoto.getId()));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testSkippedPhotosAreShownLast() {
+		PhotoTagIndex index = createIndex(2, "sea");
+		photoFilter.setTags(new Tags("sea"));
+		PhotoId skipped = photoFilter.getNextPhotoId(index);
+		photoFilter.addSkippedPhotoId(skipped);
+		PhotoId other = photoFilter.getNextPhotoId(index);
+		assertFalse(skipped.equals(other));
+
+		assertEquals(skipped, photoFilter.getNextPhotoId(index));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testProcessedPhotosAreNotShown() {
+		Photo photo = createPhoto("sea");
+		PhotoTagIndex index = new PhotoTagIndex(new PhotoTagCollector());
+		index.updatePhoto(photo);
+		photoFilter.addProcessedPhoto(photo);
+
+		assertTrue(photoFilter.getNextPhotoId(index).isNullId());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testOnlyMatchingPhotosAreVisited() {
+		final int[] checkedPhotos = {0};
+		PhotoTagIndex index = new PhotoTagIndex(new PhotoTagCollector()) {
+			@Override
+			public boolean isVisiblePhoto(int photoId, Collection<String> conditions) {
+				checkedPhotos[0]++;
+				return super.isVisiblePhoto(photoId, conditions);
+			}
+		};
+		for (int i = 0; i < 3000; i++) {
+			index.updatePhoto(createPhoto(i % 100 == 0 ? "sea" : "other"));
+		}
+		photoFilter.setTags(new Tags("sea"));
+
+		Set<PhotoId> seen = new HashSet<PhotoId>();
+		for (PhotoId id = photoFilter.getNextPhotoId(index); !id.isNullId(); id = photoFilter.getNextPhotoId(index)) {
+			assertTrue(seen.add(id));
+			photoFilter.addSkippedPhotoId(id);
+			if (seen.size() == 30) {
+				break;
+			}
+		}
+		assertEquals(30, seen.size());
+		assertEquals(30, checkedPhotos[0]);
+	}
+
+	protected PhotoTagIndex createIndex(int numberOfPhotos, String tags) {
+		PhotoTagIndex index = new PhotoTagIndex(new PhotoTagCollector());
+		for (int i = 0; i < numberOfPhotos; i++) {
+			index.updatePhoto(createPhoto(tags));
+			index.updatePhoto(createPhoto("other"));
+		}
+		return index;
+	}
+
+	protected Photo createPhoto(String tags) {
+		Photo photo = new LandscapePhoto(PhotoId.getNextId());
+		photo.setTags(new Tags(tags));
+		return photo;
+	}
 }
@@ -114,6 +114,14 @@ public class ValueTest {
 		assert (ps4.isFlagged());
 		assert (ps4.isModerated());
 		assert (!ps4.isDisplayable());
+
+		PhotoStatus ps5 = ps.asProcessing(true);
+		assert (ps5 == PhotoStatus.PROCESSING);
+		assert (ps5 == PhotoStatus.getFromInt(16));
+		assert (ps5.isProcessing());
+		assert (!ps5.isDisplayable());
+		assert (ps5.asInvisible(true).asProcessing(false) == PhotoStatus.INVISIBLE);
+		assert (PhotoStatus.getFromString("processing") == PhotoStatus.PROCESSING);
 	}
 
 	/**
@@ -128,6 +136,11 @@ public class ValueTest {
 
 		String testString = test.asString();
 		assert (test == PhotoId.getIdFromString(testString));
+
+		// e.g. handed out by another instance from a later block
+		PhotoId otherInstanceId = PhotoId.getIdFromInt(PhotoId.getCurrentIdAsInt() + 100);
+		assert (!otherInstanceId.isNullId());
+		assert (otherInstanceId == PhotoId.getIdFromString(otherInstanceId.asString()));
 	}
 
 }
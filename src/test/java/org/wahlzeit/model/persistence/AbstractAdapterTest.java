@@ -9,6 +9,8 @@ import org.junit.Test;
 import java.io.IOException;
 import java.io.Serializable;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
 
 import static org.junit.Assert.fail;
 
@@ -116,4 +118,19 @@ public abstract class AbstractAdapterTest {
         exists = imageStorage.doesImageExist("wrong file name", 1);
         assert !exists;
     }
+
+    @Test
+    public void testReadImages() throws Exception {
+        imageStorage.writeImage(smallTestImage, "batch1", 1);
+        imageStorage.writeImage(smallTestImage, "batch1", 2);
+        imageStorage.writeImage(smallTestImage, "batch2", 1);
+
+        ImageKey missing = new ImageKey("batch2", 2);
+        Map<ImageKey, Serializable> images = imageStorage.readImages(Arrays.asList(
+                new ImageKey("batch1", 1), new ImageKey("batch1", 2), new ImageKey("batch2", 1), missing));
+
+        assert images.size() == 3;
+        assert images.get(new ImageKey("batch1", 2)) instanceof Image;
+        assert !images.containsKey(missing);
+    }
 }
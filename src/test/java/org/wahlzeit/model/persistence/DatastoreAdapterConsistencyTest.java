@@ -0,0 +1,33 @@
+package org.wahlzeit.model.persistence;
+
+import com.google.appengine.api.images.ImagesServiceFactory;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.RuleChain;
+import org.junit.rules.TestRule;
+import org.wahlzeit.testEnvironmentProvider.LocalDatastoreServiceTestConfigProvider;
+import org.wahlzeit.testEnvironmentProvider.RegisteredOfyEnvironmentProvider;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test class for {@link DatastoreAdapter} on a datastore where no write is visible to non-ancestor queries yet.
+ */
+public class DatastoreAdapterConsistencyTest {
+
+	@ClassRule
+	public static TestRule chain = RuleChain.
+			outerRule(new LocalDatastoreServiceTestConfigProvider(100)).
+			around(new RegisteredOfyEnvironmentProvider());
+
+	@Test
+	public void testFreshImageExists() throws Exception {
+		new DatastoreAdapter().writeImage(ImagesServiceFactory.makeImage(new byte[]{1, 2, 3}), "fresh", 1);
+
+		// a second adapter has not seen the write, so it has to ask the datastore
+		ImageStorage otherStorage = new DatastoreAdapter();
+		assertTrue(otherStorage.doesImageExist("fresh", 1));
+		assertFalse(otherStorage.doesImageExist("fresh", 2));
+	}
+}
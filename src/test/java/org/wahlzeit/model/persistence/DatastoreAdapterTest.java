@@ -2,16 +2,26 @@ package org.wahlzeit.model.persistence;
 
 import com.google.appengine.api.images.Image;
 import com.google.appengine.api.images.ImagesServiceFactory;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.Work;
 import org.junit.ClassRule;
 import org.junit.Test;
 import org.junit.rules.RuleChain;
 import org.junit.rules.TestRule;
+import org.wahlzeit.services.OfyService;
 import org.wahlzeit.testEnvironmentProvider.LocalDatastoreServiceTestConfigProvider;
 import org.wahlzeit.testEnvironmentProvider.RegisteredOfyEnvironmentProvider;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 /**
@@ -26,20 +36,105 @@ public class DatastoreAdapterTest extends AbstractAdapterTest {
 			outerRule(new LocalDatastoreServiceTestConfigProvider()).
 			around(new RegisteredOfyEnvironmentProvider());
 
-	private Image tooLargeTestImage;
+	private Image chunkedTestImage;
 
 
 	@Override
 	protected void storageDependentSetUp() {
 		imageStorage = new DatastoreAdapter();
 
-		ByteBuffer bb = ByteBuffer.allocate(1024 * 1025);
-		tooLargeTestImage = ImagesServiceFactory.makeImage(bb.array());
+		byte[] data = new byte[2 * ImageWrapper.MAX_CHUNK_SIZE + 1];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) i;
+		}
+		chunkedTestImage = ImagesServiceFactory.makeImage(data);
 	}
 
 
+	@Test
+	public void testChunkedImage() throws Exception {
+		imageStorage.writeImage(chunkedTestImage, "chunked", 1);
+
+		Image image = (Image) imageStorage.readImage("chunked", 1);
+		assertArrayEquals(chunkedTestImage.getImageData(), image.getImageData());
+
+		Map<ImageKey, Serializable> images = imageStorage.readImages(Arrays.asList(
+				new ImageKey("chunked", 1), new ImageKey("chunked", 2)));
+		assertEquals(1, images.size());
+		assertArrayEquals(chunkedTestImage.getImageData(),
+				((Image) images.get(new ImageKey("chunked", 1))).getImageData());
+	}
+
+	@Test
+	public void testOverwriteDeletesStaleChunks() throws Exception {
+		imageStorage.writeImage(chunkedTestImage, "replaced", 1);
+		ImageWrapper first = loadWrapper("replaced1");
+		imageStorage.writeImage(chunkedTestImage, "replaced", 1);
+		ImageWrapper second = loadWrapper("replaced1");
+
+		assertNotEquals(first.getChunkIds(), second.getChunkIds());
+		assertEquals(0, loadChunks(first.getChunkIds()).size());
+		assertEquals(3, loadChunks(second.getChunkIds()).size());
+
+		imageStorage.writeImage(smallTestImage, "replaced", 1);
+		assertEquals(0, loadChunks(second.getChunkIds()).size());
+		assertArrayEquals(smallTestImage.getImageData(),
+				((Image) imageStorage.readImage("replaced", 1)).getImageData());
+	}
+
+	@Test
+	public void testStaleChunksAreDeletedByTheNextWrite() throws Exception {
+		imageStorage.writeImage(chunkedTestImage, "retried", 1);
+		ImageWrapper first = loadWrapper("retried1");
+
+		ImageStorage failingStorage = new DatastoreAdapter() {
+			@Override
+			protected boolean deleteChunks(List<String> chunkIds) {
+				return false;
+			}
+		};
+		failingStorage.writeImage(chunkedTestImage, "retried", 1);
+		ImageWrapper second = loadWrapper("retried1");
+		assertEquals(first.getChunkIds(), second.getStaleChunkIds());
+		assertEquals(3, loadChunks(first.getChunkIds()).size());
+
+		imageStorage.writeImage(smallTestImage, "retried", 1);
+		assertEquals(0, loadChunks(first.getChunkIds()).size());
+		assertEquals(0, loadChunks(second.getChunkIds()).size());
+		assertTrue(loadWrapper("retried1").getStaleChunkIds().isEmpty());
+	}
+
 	@Test(expected = EntitySizeLimitExceededException.class)
 	public void testUpperSizeLimit() throws EntitySizeLimitExceededException {
-		imageStorage.writeImage(tooLargeTestImage, "blub", 1);
+		byte[] data = new byte[ImageWrapper.MAX_CHUNKS * ImageWrapper.MAX_CHUNK_SIZE + 1];
+		imageStorage.writeImage(ImagesServiceFactory.makeImage(data), "blub", 1);
+	}
+
+	protected ImageWrapper loadWrapper(final String id) {
+		return ObjectifyService.run(new Work<ImageWrapper>() {
+			@Override
+			public ImageWrapper run() {
+				return OfyService.ofy().load().type(ImageWrapper.class).id(id).now();
+			}
+		});
+	}
+
+	protected Map<String, ImageChunk> loadChunks(final List<String> ids) {
+		return ObjectifyService.run(new Work<Map<String, ImageChunk>>() {
+			@Override
+			public Map<String, ImageChunk> run() {
+				return OfyService.ofy().load().type(ImageChunk.class).ids(ids);
+			}
+		});
+	}
+
+	@Test
+	public void testImageExistenceWithoutCache() throws EntitySizeLimitExceededException {
+		imageStorage.writeImage(smallTestImage, "uncached", 1);
+
+		// a second adapter has not seen the write, so it has to ask the datastore
+		ImageStorage otherStorage = new DatastoreAdapter();
+		assert otherStorage.doesImageExist("uncached", 1);
+		assert !otherStorage.doesImageExist("uncached", 2);
 	}
 }
@@ -0,0 +1,95 @@
+package org.wahlzeit.model.persistence;
+
+import com.google.appengine.api.images.Image;
+import com.google.appengine.api.images.ImagesServiceFactory;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test class for {@link FileSystemImageStorage}
+ */
+public class FileSystemImageStorageTest extends AbstractAdapterTest {
+
+	private Path rootDir;
+
+	@Override
+	protected void storageDependentSetUp() {
+		try {
+			rootDir = Files.createTempDirectory("wahlzeit-images");
+			imageStorage = new FileSystemImageStorage(rootDir);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	protected void storageDependentTearDown() {
+		delete(rootDir.toFile());
+	}
+
+	@Test
+	public void testNoSizeLimit() throws Exception {
+		byte[] data = new byte[3 * 1024 * 1024];
+		data[data.length - 1] = 42;
+		imageStorage.writeImage(ImagesServiceFactory.makeImage(data), "large", 4);
+
+		Image image = (Image) imageStorage.readImage("large", 4);
+		assertArrayEquals(data, image.getImageData());
+	}
+
+	@Test
+	public void testLargeImageBytesAreMapped() throws Exception {
+		byte[] data = new byte[FileSystemImageStorage.MIN_MAPPED_FILE_SIZE];
+		data[0] = 42;
+		imageStorage.writeImage(ImagesServiceFactory.makeImage(data), "mapped", 4);
+
+		ByteBuffer bytes = imageStorage.readImageBytes("mapped", 4);
+		assertTrue(bytes.isDirect());
+		assertEquals(data.length, bytes.remaining());
+		assertEquals(42, bytes.get(0));
+	}
+
+	@Test
+	public void testOverwriteLeavesNoTemporaryFiles() throws Exception {
+		imageStorage.writeImage(smallTestImage, "overwrite", 1);
+		byte[] data = {1, 2, 3};
+		imageStorage.writeImage(ImagesServiceFactory.makeImage(data), "overwrite", 1);
+
+		assertArrayEquals(data, ((Image) imageStorage.readImage("overwrite", 1)).getImageData());
+		assertEquals(1, countFiles(rootDir.toFile()));
+	}
+
+	@Test
+	public void testPhotoIdCanNotLeaveDirectory() throws Exception {
+		imageStorage.writeImage(smallTestImage, "../../../escape", 1);
+
+		assertTrue(imageStorage.doesImageExist("../../../escape", 1));
+		assertEquals(1, countFiles(rootDir.toFile()));
+	}
+
+	protected int countFiles(File dir) {
+		int result = 0;
+		for (File file : dir.listFiles()) {
+			result += file.isDirectory() ? countFiles(file) : 1;
+		}
+		return result;
+	}
+
+	protected void delete(File file) {
+		if (file.isDirectory()) {
+			for (File child : file.listFiles()) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,81 @@
+package org.wahlzeit.model.persistence;
+
+import com.google.appengine.api.images.Image;
+import com.google.appengine.api.images.ImagesServiceFactory;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.RuleChain;
+import org.junit.rules.TestRule;
+import org.wahlzeit.testEnvironmentProvider.LocalDatastoreServiceTestConfigProvider;
+import org.wahlzeit.testEnvironmentProvider.RegisteredOfyEnvironmentProvider;
+import org.wahlzeit.utils.BufferHandle;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test class for {@link ImageCache}
+ */
+public class ImageCacheTest {
+
+	@ClassRule
+	public static TestRule chain = RuleChain.
+			outerRule(new LocalDatastoreServiceTestConfigProvider()).
+			around(new RegisteredOfyEnvironmentProvider());
+
+	private ImageCache imageCache;
+
+	@Before
+	public void setUp() {
+		ImageStorage.setInstance(new DatastoreAdapter());
+		imageCache = new ImageCache(4 * 1024);
+	}
+
+	@Test
+	public void testLazyLoad() throws EntitySizeLimitExceededException {
+		ImageStorage.getInstance().writeImage(createImage(1024), "lazy", 1);
+
+		assertNotNull(imageCache.getImage("lazy", 1));
+		assertNotNull(imageCache.getImage("lazy", 1));
+
+		assertEquals(1, imageCache.getStats().missCount());
+		assertEquals(1, imageCache.getStats().hitCount());
+	}
+
+	@Test
+	public void testAcquireImageBytes() throws EntitySizeLimitExceededException {
+		byte[] data = new byte[1024];
+		data[0] = 42;
+		ImageStorage.getInstance().writeImage(ImagesServiceFactory.makeImage(data), "acquire", 1);
+
+		BufferHandle handle = imageCache.acquireImageBytes("acquire", 1);
+		try {
+			assertEquals(data.length, handle.getLength());
+			assertEquals(42, handle.getBuffer().get());
+		} finally {
+			handle.release();
+		}
+		assertEquals(1, imageCache.getStats().missCount());
+	}
+
+	@Test
+	public void testMissingImage() {
+		assertNull(imageCache.getImage("missing", 1));
+	}
+
+	@Test
+	public void testByteBudget() {
+		for (int i = 0; i < 8; i++) {
+			imageCache.putImage("budget" + i, 1, createImage(1024));
+		}
+
+		assertTrue(imageCache.getStats().evictionCount() >= 4);
+	}
+
+	protected Image createImage(int size) {
+		return ImagesServiceFactory.makeImage(new byte[size]);
+	}
+}
@@ -0,0 +1,142 @@
+package org.wahlzeit.services;
+
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.RuleChain;
+import org.wahlzeit.model.persistence.ChunkedUpload;
+import org.wahlzeit.testEnvironmentProvider.LocalDatastoreServiceTestConfigProvider;
+import org.wahlzeit.testEnvironmentProvider.RegisteredOfyEnvironmentProvider;
+import org.wahlzeit.utils.TooManyUploadsException;
+import org.wahlzeit.utils.UploadSizeLimitExceededException;
+import org.wahlzeit.utils.UploadedFile;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test class for {@link ChunkedUploadManager}.
+ */
+public class ChunkedUploadManagerTest {
+
+	@ClassRule
+	public static RuleChain ruleChain = RuleChain.
+			outerRule(new LocalDatastoreServiceTestConfigProvider()).
+			around(new RegisteredOfyEnvironmentProvider());
+
+	private static final int CHUNK_SIZE = 100;
+
+	private ChunkedUploadManager manager;
+	private byte[] data;
+
+	@Before
+	public void setUp() {
+		manager = new ChunkedUploadManager(CHUNK_SIZE, 1000);
+		data = new byte[4 * CHUNK_SIZE + 23];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) (i * 17);
+		}
+	}
+
+	@Test
+	public void testChunksOutOfOrderOnAnyInstance() throws Exception {
+		ChunkedUpload upload = manager.createUpload("alice", "a.jpg", data.length);
+		assertEquals(5, upload.getChunkCount());
+		assertEquals(23, upload.getChunkLength(4));
+
+		// a second manager stands for another instance
+		ChunkedUploadManager otherInstance = new ChunkedUploadManager(CHUNK_SIZE, 1000);
+		assertTrue(writeChunk(manager, upload, 4));
+		assertTrue(writeChunk(otherInstance, otherInstance.getUpload(upload.getId(), "alice"), 1));
+		assertTrue(writeChunk(manager, upload, 3));
+		assertEquals(Arrays.asList(0, 2), otherInstance.getMissingChunks(upload));
+		assertNull(manager.commitUpload(upload));
+
+		assertTrue(writeChunk(otherInstance, upload, 2));
+		assertTrue(writeChunk(manager, upload, 0));
+		assertEquals(Collections.emptyList(), manager.getMissingChunks(upload));
+
+		UploadedFile uploadedFile = otherInstance.commitUpload(upload);
+		assertNotNull(uploadedFile);
+		assertArrayEquals(data, uploadedFile.toByteArray());
+		assertNull(manager.getUpload(upload.getId(), "alice"));
+	}
+
+	@Test
+	public void testChunkOfWrongLengthIsNotStored() throws Exception {
+		ChunkedUpload upload = manager.createUpload("alice", "a.jpg", data.length);
+
+		byte[] tooShort = Arrays.copyOfRange(data, 0, CHUNK_SIZE - 1);
+		assertFalse(manager.writeChunk(upload, 0, new ByteArrayInputStream(tooShort)));
+		byte[] tooLong = Arrays.copyOfRange(data, 4 * CHUNK_SIZE, data.length + 1);
+		assertFalse(manager.writeChunk(upload, 4, new ByteArrayInputStream(tooLong)));
+
+		assertEquals(Arrays.asList(0, 1, 2, 3, 4), manager.getMissingChunks(upload));
+	}
+
+	@Test
+	public void testChunkAfterCommitIsNotStored() throws Exception {
+		ChunkedUpload upload = manager.createUpload("alice", "a.jpg", CHUNK_SIZE);
+		assertTrue(writeChunk(manager, upload, 0));
+		assertNotNull(manager.commitUpload(upload));
+
+		assertFalse(writeChunk(manager, upload, 0));
+		assertNull(manager.commitUpload(upload));
+		assertEquals(Collections.singletonList(0), manager.getMissingChunks(upload));
+	}
+
+	@Test
+	public void testUploadsBelongToTheirOwner() throws Exception {
+		ChunkedUpload upload = manager.createUpload("bob", "a.jpg", 250);
+		ChunkedUpload other = manager.createUpload("bob", "b.jpg", 250);
+
+		assertNotEquals(upload.getId(), other.getId());
+		assertNotNull(manager.getUpload(upload.getId(), "bob"));
+		assertNull(manager.getUpload(upload.getId(), "carol"));
+	}
+
+	@Test
+	public void testAbort() throws Exception {
+		ChunkedUpload upload = manager.createUpload("dave", "a.jpg", 150);
+		assertTrue(writeChunk(manager, upload, 0));
+
+		assertTrue(manager.abortUpload(upload));
+		assertFalse(manager.abortUpload(upload));
+		assertNull(manager.getUpload(upload.getId(), "dave"));
+		assertEquals(Arrays.asList(0, 1), manager.getMissingChunks(upload));
+	}
+
+	@Test
+	public void testOpenUploadsPerOwnerAreLimited() throws Exception {
+		for (int i = 0; i < ChunkedUploadManager.MAX_UPLOADS_PER_OWNER; i++) {
+			manager.createUpload("erin", "a.jpg", 150);
+		}
+		try {
+			manager.createUpload("erin", "a.jpg", 150);
+			assertTrue("upload should have been rejected", false);
+		} catch (TooManyUploadsException e) {
+			// expected
+		}
+		assertNotNull(manager.createUpload("frank", "a.jpg", 150));
+	}
+
+	@Test(expected = UploadSizeLimitExceededException.class)
+	public void testTooLargeUploadIsRejected() throws Exception {
+		manager.createUpload("alice", "a.jpg", 1001);
+	}
+
+	protected boolean writeChunk(ChunkedUploadManager manager, ChunkedUpload upload, int index) throws Exception {
+		int from = index * CHUNK_SIZE;
+		int to = Math.min(from + CHUNK_SIZE, data.length);
+		return manager.writeChunk(upload, index, new ByteArrayInputStream(Arrays.copyOfRange(data, from, to)));
+	}
+}
@@ -28,7 +28,7 @@ public class ClientManagerTest {
 
 	@Test
 	public void testNameGeneration() {
-		int clientId = ClientManager.lastClientId.intValue();
+		int clientId = UserManager.getInstance().getLastClientId().intValue();
 		assertNewGuestHasId(++clientId);
 		assertNewGuestHasId(++clientId);
 		// creation of user should not consume a next id
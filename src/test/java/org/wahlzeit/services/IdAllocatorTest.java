@@ -0,0 +1,89 @@
+package org.wahlzeit.services;
+
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.Work;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.RuleChain;
+import org.wahlzeit.model.Globals;
+import org.wahlzeit.testEnvironmentProvider.LocalDatastoreServiceTestConfigProvider;
+import org.wahlzeit.testEnvironmentProvider.RegisteredOfyEnvironmentProvider;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test class for {@link IdAllocator}.
+ */
+public class IdAllocatorTest {
+
+	@ClassRule
+	public static RuleChain ruleChain = RuleChain.
+			outerRule(new LocalDatastoreServiceTestConfigProvider()).
+			around(new RegisteredOfyEnvironmentProvider());
+
+	@Test
+	public void testLocalAllocator() {
+		IdAllocator allocator = new IdAllocator(41);
+
+		assertEquals(41, allocator.getLastId());
+		assertEquals(42, allocator.getNextId());
+		assertEquals(43, allocator.getNextId());
+		assertEquals(43, allocator.getLastId());
+	}
+
+	@Test
+	public void testReservingAllocatorsDoNotOverlap() {
+		IdAllocator first = new IdAllocator(Globals.Counter.CASE, 10);
+		IdAllocator second = new IdAllocator(Globals.Counter.CASE, 10);
+
+		Set<Long> ids = new HashSet<Long>();
+		for (int i = 0; i < 25; i++) {
+			assertTrue(ids.add(first.getNextId()));
+			assertTrue(ids.add(second.getNextId()));
+		}
+
+		// 3 blocks of 10 per allocator
+		assertEquals(60, readLastId(Globals.Counter.CASE));
+	}
+
+	@Test
+	public void testConcurrentAllocation() throws InterruptedException {
+		final IdAllocator allocator = new IdAllocator(0);
+		final Set<Long> ids = new HashSet<Long>();
+
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int j = 0; j < 1000; j++) {
+						long id = allocator.getNextId();
+						synchronized (ids) {
+							ids.add(id);
+						}
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals(4000, ids.size());
+		assertEquals(4000, allocator.getLastId());
+	}
+
+	protected long readLastId(final Globals.Counter counter) {
+		return ObjectifyService.run(new Work<Long>() {
+			@Override
+			public Long run() {
+				return OfyService.ofy().load().type(Globals.class).id(Globals.DEAULT_ID).now().getLastId(counter);
+			}
+		});
+	}
+}
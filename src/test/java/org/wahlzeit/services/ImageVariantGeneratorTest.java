@@ -0,0 +1,107 @@
+package org.wahlzeit.services;
+
+import com.google.appengine.api.images.Image;
+import com.google.appengine.api.images.ImagesServiceFactory;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.VoidWork;
+import com.googlecode.objectify.Work;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.RuleChain;
+import org.wahlzeit.model.Photo;
+import org.wahlzeit.model.PhotoId;
+import org.wahlzeit.model.enums.PhotoSize;
+import org.wahlzeit.model.persistence.DatastoreAdapter;
+import org.wahlzeit.model.persistence.ImageStorage;
+import org.wahlzeit.testEnvironmentProvider.LocalDatastoreServiceTestConfigProvider;
+import org.wahlzeit.testEnvironmentProvider.RegisteredOfyEnvironmentProvider;
+import org.wahlzeit.utils.ImageScalingPipeline;
+import org.wahlzeit.utils.Java2DImageScaler;
+import org.wahlzeit.utils.PhotoUtil;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test class for {@link ImageVariantGenerator}.
+ */
+public class ImageVariantGeneratorTest {
+
+	@ClassRule
+	public static RuleChain ruleChain = RuleChain.
+			outerRule(new LocalDatastoreServiceTestConfigProvider()).
+			around(new RegisteredOfyEnvironmentProvider());
+
+	private ImageVariantGenerator generator;
+
+	@Before
+	public void setUp() {
+		ImageStorage.setInstance(new DatastoreAdapter());
+		ImageScalingPipeline.setInstance(new ImageScalingPipeline(new Java2DImageScaler(), null));
+		generator = new ImageVariantGenerator();
+	}
+
+	@After
+	public void tearDown() {
+		ImageScalingPipeline.setInstance(null);
+	}
+
+	@Test
+	public void testMissingSizeIsCreatedFromLargestAndSaved() throws Exception {
+		Photo photo = createSavedPhoto(500, 700);
+
+		Image thumb = getImage(photo, PhotoSize.THUMB);
+
+		assertNotNull(thumb);
+		assertTrue(thumb.getWidth() <= PhotoSize.THUMB.getMaxPhotoWidth());
+		assertTrue(thumb.getHeight() <= PhotoSize.THUMB.getMaxPhotoHeight());
+		assertNotNull(photo.getImageETag(PhotoSize.THUMB));
+		assertTrue(ImageStorage.getInstance().doesImageExist(photo.getIdAsString(), PhotoSize.THUMB.asInt()));
+	}
+
+	@Test
+	public void testNoImageForSizeLargerThanPhoto() throws Exception {
+		Photo photo = createSavedPhoto(500, 700);
+		PhotoSize largerSize = PhotoSize.getFromInt(photo.getMaxPhotoSize().asInt() + 1);
+
+		assertNull(getImage(photo, largerSize));
+	}
+
+	/**
+	 * Returns a photo of which only the largest image has been saved, as after an upload in on-demand mode.
+	 */
+	protected Photo createSavedPhoto(int width, int height) throws Exception {
+		final Image upload = createImage(width, height);
+		final Photo photo = PhotoUtil.createUnprocessedPhoto("upload.png", PhotoId.getNextId(), upload);
+		ObjectifyService.run(new VoidWork() {
+			@Override
+			public void vrun() {
+				photo.setImage(photo.getMaxPhotoSize(), upload);
+				PhotoManager.getInstance().savePhoto(photo);
+			}
+		});
+		return photo;
+	}
+
+	protected Image getImage(final Photo photo, final PhotoSize size) {
+		return ObjectifyService.run(new Work<Image>() {
+			@Override
+			public Image run() {
+				return generator.getImage(photo, size);
+			}
+		});
+	}
+
+	protected Image createImage(int width, int height) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB), "png", out);
+		return ImagesServiceFactory.makeImage(out.toByteArray());
+	}
+}
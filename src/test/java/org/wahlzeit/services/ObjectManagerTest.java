@@ -0,0 +1,149 @@
+package org.wahlzeit.services;
+
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.Work;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.RuleChain;
+import org.wahlzeit.model.Tag;
+import org.wahlzeit.model.persistence.DataObject;
+import org.wahlzeit.model.persistence.Persistent;
+import org.wahlzeit.testEnvironmentProvider.LocalDatastoreServiceTestConfigProvider;
+import org.wahlzeit.testEnvironmentProvider.RegisteredOfyEnvironmentProvider;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+/**
+ * Test class for the batch operations of {@link ObjectManager}.
+ */
+public class ObjectManagerTest {
+
+	@ClassRule
+	public static RuleChain ruleChain = RuleChain.
+			outerRule(new LocalDatastoreServiceTestConfigProvider()).
+			around(new RegisteredOfyEnvironmentProvider());
+
+	private ObjectManager objectManager;
+	private List<Persistent> updatedObjects;
+
+	@Before
+	public void setUp() {
+		updatedObjects = new ArrayList<Persistent>();
+		objectManager = new ObjectManager() {
+			@Override
+			protected void updateDependents(Persistent object, long writtenFields) {
+				updatedObjects.add(object);
+			}
+		};
+	}
+
+	@Test
+	public void testWriteAndDeleteObjectsInBatches() {
+		final List<Tag> tags = new ArrayList<Tag>();
+		for (int i = 0; i < 2 * ObjectManager.MAX_BATCH_SIZE + 1; i++) {
+			tags.add(new Tag("batch", "x" + i));
+		}
+
+		run(new Runnable() {
+			@Override
+			public void run() {
+				objectManager.writeObjects(tags);
+			}
+		});
+		for (Tag tag : tags) {
+			assertFalse(tag.isDirty());
+		}
+		assertEquals(tags.size(), countTags("batch"));
+
+		run(new Runnable() {
+			@Override
+			public void run() {
+				objectManager.deleteObjects(tags);
+			}
+		});
+		assertEquals(0, countTags("batch"));
+	}
+
+	@Test
+	public void testCleanObjectsAreNotWritten() {
+		final Tag tag = new Tag("clean", "x1");
+		tag.resetWriteCount();
+
+		run(new Runnable() {
+			@Override
+			public void run() {
+				List<Tag> tags = new ArrayList<Tag>();
+				tags.add(tag);
+				objectManager.writeObjects(tags);
+			}
+		});
+
+		assertEquals(0, countTags("clean"));
+	}
+
+	@Test
+	public void testFailedBatchDoesNotAbandonBatchesInFlight() {
+		final List<Persistent> objects = new ArrayList<Persistent>();
+		for (int i = 0; i < ObjectManager.MAX_BATCH_SIZE; i++) {
+			objects.add(new Tag("before failure", "x" + i));
+		}
+		// not registered with Objectify, so the second batch can not be saved
+		objects.add(new UnregisteredObject());
+		for (int i = 0; i < ObjectManager.MAX_BATCH_SIZE; i++) {
+			objects.add(new Tag("after failure", "x" + i));
+		}
+
+		try {
+			run(new Runnable() {
+				@Override
+				public void run() {
+					objectManager.writeObjects(objects);
+				}
+			});
+			fail("write should have failed");
+		} catch (RuntimeException expected) {
+			// expected
+		}
+
+		// the first batch was written and completed, the others keep their dirty masks
+		assertEquals(ObjectManager.MAX_BATCH_SIZE, countTags("before failure"));
+		assertEquals(objects.subList(0, ObjectManager.MAX_BATCH_SIZE), updatedObjects);
+		for (int i = 0; i < objects.size(); i++) {
+			assertEquals(i >= ObjectManager.MAX_BATCH_SIZE, objects.get(i).isDirty());
+		}
+	}
+
+	protected void run(final Runnable runnable) {
+		ObjectifyService.run(new Work<Void>() {
+			@Override
+			public Void run() {
+				runnable.run();
+				return null;
+			}
+		});
+	}
+
+	/**
+	 *
+	 */
+	protected static class UnregisteredObject extends DataObject {
+		{
+			incWriteCount();
+		}
+	}
+
+	protected int countTags(final String text) {
+		return ObjectifyService.run(new Work<Integer>() {
+			@Override
+			public Integer run() {
+				return OfyService.ofy().load().type(Tag.class).filter(Tag.TEXT, text).count();
+			}
+		});
+	}
+}
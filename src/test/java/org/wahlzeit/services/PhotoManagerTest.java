@@ -0,0 +1,283 @@
+package org.wahlzeit.services;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.Work;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.RuleChain;
+import org.wahlzeit.model.LandscapePhoto;
+import org.wahlzeit.model.Photo;
+import org.wahlzeit.model.PhotoId;
+import org.wahlzeit.model.Tag;
+import org.wahlzeit.model.Tags;
+import org.wahlzeit.model.enums.PhotoChange;
+import org.wahlzeit.model.enums.PhotoStatus;
+import org.wahlzeit.model.persistence.DatastoreAdapter;
+import org.wahlzeit.model.persistence.ImageStorage;
+import org.wahlzeit.testEnvironmentProvider.LocalDatastoreServiceTestConfigProvider;
+import org.wahlzeit.testEnvironmentProvider.RegisteredOfyEnvironmentProvider;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test class for the photo cache of {@link PhotoManager}.
+ */
+public class PhotoManagerTest {
+
+	@ClassRule
+	public static RuleChain ruleChain = RuleChain.
+			outerRule(new LocalDatastoreServiceTestConfigProvider()).
+			around(new RegisteredOfyEnvironmentProvider());
+
+	private PhotoManager photoManager;
+
+	@Before
+	public void setUp() {
+		ImageStorage.setInstance(new DatastoreAdapter());
+		photoManager = new PhotoManager();
+		photoManager.photoCache = photoManager.createPhotoCache(2);
+	}
+
+	@Test
+	public void testCacheIsBounded() {
+		for (int i = 0; i < 5; i++) {
+			photoManager.doAddPhoto(createSavedPhoto());
+		}
+
+		assertTrue(photoManager.getPhotoCache().size() <= 2);
+		assertTrue(photoManager.getPhotoCacheStats().evictionCount() >= 3);
+		assertEquals(5, photoManager.getPhotoIds().size());
+	}
+
+	@Test
+	public void testEvictedPhotoIsReloaded() {
+		Photo first = createSavedPhoto();
+		photoManager.doAddPhoto(first);
+		photoManager.doAddPhoto(createSavedPhoto());
+		photoManager.doAddPhoto(createSavedPhoto());
+		photoManager.getPhotoCache().remove(first.getId());
+
+		Photo reloaded = photoManager.getPhotoFromId(first.getId());
+
+		assertNotNull(reloaded);
+		assertNotSame(first, reloaded);
+		assertEquals(first.getId(), reloaded.getId());
+		assertTrue(photoManager.getPhotoCacheStats().missCount() >= 1);
+	}
+
+	@Test
+	public void testEvictedQueuedPhotoKeepsItsChanges() {
+		WriteBehindQueue queue = new WriteBehindQueue(60 * 60 * 1000, Executors.defaultThreadFactory());
+		ObjectManager.setWriteBehindQueue(queue);
+		Photo first = createSavedPhoto();
+		try {
+			photoManager.doAddPhoto(first);
+			first.setTags(new Tags("sunset"));
+			photoManager.doAddPhoto(createSavedPhoto());
+			photoManager.doAddPhoto(createSavedPhoto());
+			assertNull(photoManager.doGetPhotoFromId(first.getId()));
+
+			// the evicted photo has only been queued, reloading it must not read the stale datastore copy
+			Photo reloaded = photoManager.getPhotoFromId(first.getId());
+			reloaded.setStatus(PhotoStatus.FLAGGED);
+			photoManager.savePhoto(reloaded);
+			queue.flush();
+		} finally {
+			ObjectManager.setWriteBehindQueue(null);
+		}
+
+		Photo saved = readPhoto(first.getId());
+		assertEquals(new Tags("sunset"), saved.getTags());
+		assertEquals(PhotoStatus.FLAGGED, saved.getStatus());
+	}
+
+	@Test
+	public void testEvictedPhotoIsWrittenAfterTheCacheOperation() {
+		Photo first = createSavedPhoto();
+		photoManager.doAddPhoto(first);
+		photoManager.getPhotoCache().remove(first.getId());
+		first.setTags(new Tags("sunset"));
+
+		// the removal listener only keeps the photo, it does not write it
+		photoManager.handleEvictedPhoto(first);
+		assertEquals(Tags.EMPTY_TAGS, readPhoto(first.getId()).getTags());
+
+		// reloading takes the kept photo, it is written once it has been added to the cache again
+		assertSame(first, photoManager.getPhotoFromId(first.getId()));
+		assertEquals(new Tags("sunset"), readPhoto(first.getId()).getTags());
+		assertTrue(photoManager.evictedPhotos.isEmpty());
+	}
+
+	@Test
+	public void testLoadPhotosCachesOnlyTheFirstPhotos() {
+		List<Photo> photos = new ArrayList<Photo>();
+		for (int i = 0; i < 5; i++) {
+			photos.add(createSavedPhoto());
+		}
+
+		photoManager.loadPhotos(2, null);
+
+		assertEquals(2, photoManager.getPhotoCache().size());
+		assertEquals(0, photoManager.getPhotoCacheStats().evictionCount());
+		assertTrue(photoManager.isIndexComplete);
+		for (Photo photo : photos) {
+			assertTrue(photoManager.getPhotoTagIndex().isIndexed(photo.getId().asInt()));
+			assertNotNull(photoManager.getPhotoFromId(photo.getId()));
+		}
+	}
+
+	@Test
+	public void testHoldersGetTheReloadedPhoto() {
+		Photo first = createSavedPhoto();
+		photoManager.doAddPhoto(first);
+		photoManager.getPhotoCache().remove(first.getId());
+
+		Photo current = photoManager.getCurrentPhoto(first);
+		assertNotSame(first, current);
+		assertSame(current, photoManager.getCurrentPhoto(first));
+		assertSame(current, photoManager.getPhotoFromId(first.getId()));
+	}
+
+	@Test
+	public void testKeyFollowsFromPhotoId() {
+		Photo photo = createSavedPhoto();
+
+		assertEquals(Key.create(photo), photoManager.getPhotoKey(photo.getId()));
+		assertTrue(photoManager.legacyPhotoKeys.isEmpty());
+	}
+
+	@Test
+	public void testCacheHit() {
+		Photo photo = createSavedPhoto();
+		photoManager.doAddPhoto(photo);
+
+		assertEquals(photo, photoManager.getPhotoFromId(photo.getId()));
+		assertEquals(1, photoManager.getPhotoCacheStats().hitCount());
+	}
+
+	@Test
+	public void testUpdateTagsWritesOnlyChanges() {
+		final Photo photo = createSavedPhoto();
+		photo.setTags(new Tags("sunset, sea"));
+		updateTags(photo);
+		assertEquals(new HashSet<String>(Arrays.asList("tg:sunset", "tg:sea")), readTagTexts(photo));
+		Set<Long> unchangedIds = readTagIds(photo);
+
+		// unchanged tags cause no writes, the entities keep their IDs
+		updateTags(photo);
+		assertEquals(unchangedIds, readTagIds(photo));
+
+		photo.setTags(new Tags("sea, beach"));
+		updateTags(photo);
+		assertEquals(new HashSet<String>(Arrays.asList("tg:sea", "tg:beach")), readTagTexts(photo));
+		assertEquals(2, photoManager.persistedTags.get(photo.getId()).size());
+	}
+
+	@Test
+	public void testUpdateTagsBypassesWriteBehindQueue() {
+		Photo photo = createSavedPhoto();
+		photo.setTags(new Tags("sunset"));
+		ObjectManager.setWriteBehindQueue(new WriteBehindQueue(60 * 60 * 1000, Executors.defaultThreadFactory()));
+		try {
+			updateTags(photo);
+		} finally {
+			ObjectManager.setWriteBehindQueue(null);
+		}
+
+		// the tags are recorded as persisted only once their entities have been written
+		assertEquals(new HashSet<String>(Arrays.asList("tg:sunset")), readTagTexts(photo));
+		assertEquals(1, photoManager.persistedTags.get(photo.getId()).size());
+	}
+
+	@Test
+	public void testPraiseDoesNotWriteTags() {
+		final Photo photo = createSavedPhoto();
+		photo.setTags(new Tags("sunset"));
+		photo.takeDirtyFields();
+
+		photo.addToPraise(5);
+		final long writtenFields = photo.takeDirtyFields();
+		assertEquals(EnumSet.of(PhotoChange.OWNER_FIELDS), photo.getChanges(writtenFields));
+
+		ObjectifyService.run(new Work<Void>() {
+			@Override
+			public Void run() {
+				photoManager.updateDependents(photo, writtenFields);
+				return null;
+			}
+		});
+		assertTrue(readTags(photo).isEmpty());
+	}
+
+	protected void updateTags(final Photo photo) {
+		ObjectifyService.run(new Work<Void>() {
+			@Override
+			public Void run() {
+				photoManager.updateTags(photo);
+				return null;
+			}
+		});
+	}
+
+	protected List<Tag> readTags(final Photo photo) {
+		return ObjectifyService.run(new Work<List<Tag>>() {
+			@Override
+			public List<Tag> run() {
+				return OfyService.ofy().load().type(Tag.class).filter(Tag.PHOTO_ID, photo.getId().asString()).list();
+			}
+		});
+	}
+
+	protected Set<String> readTagTexts(Photo photo) {
+		Set<String> result = new HashSet<String>();
+		for (Tag tag : readTags(photo)) {
+			result.add(tag.getText());
+		}
+		return result;
+	}
+
+	protected Set<Long> readTagIds(Photo photo) {
+		Set<Long> result = new HashSet<Long>();
+		for (Tag tag : readTags(photo)) {
+			result.add(tag.getId());
+		}
+		return result;
+	}
+
+	protected Photo readPhoto(final PhotoId id) {
+		return ObjectifyService.run(new Work<Photo>() {
+			@Override
+			public Photo run() {
+				return OfyService.ofy().load().key(photoManager.getPhotoKey(id)).now();
+			}
+		});
+	}
+
+	protected Photo createSavedPhoto() {
+		final LandscapePhoto photo = new LandscapePhoto(PhotoId.getNextId());
+		ObjectifyService.run(new Work<Void>() {
+			@Override
+			public Void run() {
+				OfyService.ofy().save().entity(photo).now();
+				return null;
+			}
+		});
+		photo.resetWriteCount();
+		return photo;
+	}
+}
@@ -0,0 +1,113 @@
+package org.wahlzeit.services;
+
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.RuleChain;
+import org.wahlzeit.model.LandscapePhoto;
+import org.wahlzeit.model.Photo;
+import org.wahlzeit.model.PhotoId;
+import org.wahlzeit.model.Tags;
+import org.wahlzeit.utils.PhotoTagCollector;
+import org.wahlzeit.testEnvironmentProvider.LocalDatastoreServiceTestConfigProvider;
+import org.wahlzeit.testEnvironmentProvider.RegisteredOfyEnvironmentProvider;
+
+import java.util.BitSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test class for {@link PhotoQuery}.
+ */
+public class PhotoQueryTest {
+
+	@ClassRule
+	public static RuleChain ruleChain = RuleChain.
+			outerRule(new LocalDatastoreServiceTestConfigProvider()).
+			around(new RegisteredOfyEnvironmentProvider());
+
+	private PhotoTagIndex index;
+	private Photo sunset;
+	private Photo beach;
+	private Photo rain;
+
+	@Before
+	public void setUp() {
+		index = new PhotoTagIndex(new PhotoTagCollector());
+		sunset = createPhoto("alice", "sunset, sea");
+		beach = createPhoto("bob", "beach, sea");
+		rain = createPhoto("bob", "rain, beach");
+		index.updatePhoto(sunset);
+		index.updatePhoto(beach);
+		index.updatePhoto(rain);
+	}
+
+	@Test
+	public void testIsQuery() {
+		assertFalse(PhotoQuery.isQuery("sunset, sea"));
+		assertFalse(PhotoQuery.isQuery("captain america"));
+		assertFalse(PhotoQuery.isQuery("and or not"));
+		assertTrue(PhotoQuery.isQuery("sunset AND sea"));
+		assertTrue(PhotoQuery.isQuery("NOT rain"));
+		assertTrue(PhotoQuery.isQuery("(sea)"));
+		assertTrue(PhotoQuery.isQuery("un:bob"));
+	}
+
+	@Test
+	public void testParse() {
+		assertEquals("(tg:sunset OR (tg:sea AND NOT tg:rain))", PhotoQuery.parse("sunset OR sea AND NOT rain").toString());
+		assertEquals("((tg:sunset OR tg:beach) AND tg:sea)", PhotoQuery.parse("(sunset, beach) sea").toString());
+		assertEquals("(un:bob AND tg:captainamerica)", PhotoQuery.parse("un:Bob AND captain america").toString());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testMissingParenthesis() {
+		PhotoQuery.parse("(sunset AND sea");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testDanglingOperator() {
+		PhotoQuery.parse("sunset AND");
+	}
+
+	@Test
+	public void testAnd() {
+		BitSet result = index.getVisiblePhotoIds(PhotoQuery.parse("sea AND beach"));
+		assertEquals(1, result.cardinality());
+		assertTrue(result.get(beach.getId().asInt()));
+
+		assertTrue(index.getVisiblePhotoIds(PhotoQuery.parse("sea AND unknown")).isEmpty());
+	}
+
+	@Test
+	public void testOr() {
+		assertEquals(3, index.getVisiblePhotoIds(PhotoQuery.parse("sea OR rain")).cardinality());
+		assertEquals(3, index.getVisiblePhotoIds(PhotoQuery.parse("sea, rain")).cardinality());
+	}
+
+	@Test
+	public void testNot() {
+		BitSet result = index.getVisiblePhotoIds(PhotoQuery.parse("NOT un:bob"));
+		assertEquals(1, result.cardinality());
+		assertTrue(result.get(sunset.getId().asInt()));
+
+		result = index.getVisiblePhotoIds(PhotoQuery.parse("beach NOT rain"));
+		assertEquals(1, result.cardinality());
+		assertTrue(result.get(beach.getId().asInt()));
+	}
+
+	@Test
+	public void testOrWithCondition() {
+		PhotoQuery query = PhotoQuery.parse("sunset AND NOT sea").or("un:bob");
+		assertEquals(2, index.getVisiblePhotoIds(query).cardinality());
+	}
+
+	protected Photo createPhoto(String owner, String tags) {
+		Photo photo = new LandscapePhoto(PhotoId.getNextId());
+		photo.setOwnerId(owner);
+		photo.setTags(new Tags(tags));
+		return photo;
+	}
+}
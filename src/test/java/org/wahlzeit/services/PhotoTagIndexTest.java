@@ -0,0 +1,90 @@
+package org.wahlzeit.services;
+
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.RuleChain;
+import org.wahlzeit.model.LandscapePhoto;
+import org.wahlzeit.model.Photo;
+import org.wahlzeit.model.PhotoId;
+import org.wahlzeit.model.Tags;
+import org.wahlzeit.model.enums.PhotoStatus;
+import org.wahlzeit.utils.PhotoTagCollector;
+import org.wahlzeit.testEnvironmentProvider.LocalDatastoreServiceTestConfigProvider;
+import org.wahlzeit.testEnvironmentProvider.RegisteredOfyEnvironmentProvider;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test class for {@link PhotoTagIndex}.
+ */
+public class PhotoTagIndexTest {
+
+	@ClassRule
+	public static RuleChain ruleChain = RuleChain.
+			outerRule(new LocalDatastoreServiceTestConfigProvider()).
+			around(new RegisteredOfyEnvironmentProvider());
+
+	private PhotoTagIndex index;
+	private Photo sunset;
+	private Photo beach;
+
+	@Before
+	public void setUp() {
+		index = new PhotoTagIndex(new PhotoTagCollector());
+		sunset = createPhoto("alice", "sunset, sea");
+		beach = createPhoto("bob", "beach, sea");
+		index.updatePhoto(sunset);
+		index.updatePhoto(beach);
+	}
+
+	@Test
+	public void testSingleCondition() {
+		BitSet result = index.getVisiblePhotoIds(Collections.singletonList("tg:sunset"));
+		assertEquals(1, result.cardinality());
+		assertTrue(result.get(sunset.getId().asInt()));
+	}
+
+	@Test
+	public void testConditionsAreUnited() {
+		BitSet result = index.getVisiblePhotoIds(Arrays.asList("tg:sunset", "un:bob"));
+		assertEquals(2, result.cardinality());
+	}
+
+	@Test
+	public void testNoConditionsReturnsAllVisible() {
+		assertEquals(2, index.getVisiblePhotoIds(Collections.<String>emptyList()).cardinality());
+	}
+
+	@Test
+	public void testTagChangeRemovesStalePosting() {
+		sunset.setTags(new Tags("mountain"));
+		index.updatePhoto(sunset);
+
+		assertTrue(index.getVisiblePhotoIds(Collections.singletonList("tg:sunset")).isEmpty());
+		assertEquals(1, index.getVisiblePhotoIds(Collections.singletonList("tg:mountain")).cardinality());
+		assertEquals(1, index.getVisiblePhotoIds(Collections.singletonList("tg:sea")).cardinality());
+	}
+
+	@Test
+	public void testInvisiblePhotosAreFiltered() {
+		beach.setStatus(PhotoStatus.FLAGGED);
+		index.updatePhoto(beach);
+
+		assertFalse(index.isVisible(beach.getId().asInt()));
+		assertTrue(index.getVisiblePhotoIds(Collections.singletonList("tg:beach")).isEmpty());
+	}
+
+	protected Photo createPhoto(String owner, String tags) {
+		Photo photo = new LandscapePhoto(PhotoId.getNextId());
+		photo.setOwnerId(owner);
+		photo.setTags(new Tags(tags));
+		return photo;
+	}
+}
@@ -0,0 +1,100 @@
+package org.wahlzeit.services;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.wahlzeit.model.persistence.DataObject;
+import org.wahlzeit.model.persistence.Persistent;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test class for {@link UnitOfWork}.
+ */
+public class UnitOfWorkTest {
+
+	private List<Persistent> writtenObjects;
+	private ObjectManager objectManager;
+
+	@Before
+	public void setUp() {
+		writtenObjects = new ArrayList<Persistent>();
+		objectManager = new ObjectManager() {
+			@Override
+			protected void updateObject(Persistent object) {
+				writtenObjects.add(object);
+			}
+		};
+	}
+
+	@After
+	public void tearDown() {
+		UnitOfWork.current.remove();
+	}
+
+	@Test
+	public void testDeferredWritesAreCoalesced() {
+		Persistent owner = createPersistent();
+
+		UnitOfWork.begin();
+		for (int i = 0; i < 10; i++) {
+			objectManager.updateObjectDeferred(owner);
+		}
+		assertTrue(writtenObjects.isEmpty());
+		UnitOfWork.end();
+
+		assertEquals(1, writtenObjects.size());
+	}
+
+	@Test
+	public void testNestedUnitsWriteAtOutermostEnd() {
+		UnitOfWork.begin();
+		UnitOfWork.begin();
+		objectManager.updateObjectDeferred(createPersistent());
+		UnitOfWork.end();
+		assertTrue(writtenObjects.isEmpty());
+		UnitOfWork.end();
+
+		assertEquals(1, writtenObjects.size());
+	}
+
+	@Test
+	public void testWriteWithoutUnitOfWorkIsImmediate() {
+		assertFalse(UnitOfWork.defer(objectManager, createPersistent()));
+
+		objectManager.updateObjectDeferred(createPersistent());
+
+		assertEquals(1, writtenObjects.size());
+	}
+
+	protected Persistent createPersistent() {
+		return new Persistent() {
+			@Override
+			public boolean isDirty() {
+				return true;
+			}
+
+			@Override
+			public void incWriteCount() {
+			}
+
+			@Override
+			public void resetWriteCount() {
+			}
+
+			@Override
+			public void markDirty(long fieldMask) {
+			}
+
+			@Override
+			public long takeDirtyFields() {
+				return DataObject.UNSPECIFIED_FIELD;
+			}
+		};
+	}
+}
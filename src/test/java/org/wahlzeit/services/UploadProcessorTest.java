@@ -0,0 +1,109 @@
+package org.wahlzeit.services;
+
+import com.google.appengine.api.images.Image;
+import com.google.appengine.api.images.ImagesServiceFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.RuleChain;
+import org.wahlzeit.model.Photo;
+import org.wahlzeit.model.PhotoId;
+import org.wahlzeit.model.enums.PhotoSize;
+import org.wahlzeit.model.persistence.DatastoreAdapter;
+import org.wahlzeit.model.persistence.ImageStorage;
+import org.wahlzeit.testEnvironmentProvider.LocalDatastoreServiceTestConfigProvider;
+import org.wahlzeit.testEnvironmentProvider.RegisteredOfyEnvironmentProvider;
+import org.wahlzeit.utils.ImageScalingPipeline;
+import org.wahlzeit.utils.Java2DImageScaler;
+import org.wahlzeit.utils.PhotoUtil;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test class for {@link UploadProcessor}; photos are processed on the calling thread, as the test datastore is only
+ * available there.
+ */
+public class UploadProcessorTest {
+
+	@ClassRule
+	public static RuleChain ruleChain = RuleChain.
+			outerRule(new LocalDatastoreServiceTestConfigProvider()).
+			around(new RegisteredOfyEnvironmentProvider());
+
+	private UploadProcessor uploadProcessor;
+
+	@Before
+	public void setUp() {
+		ImageStorage.setInstance(new DatastoreAdapter());
+		ImageScalingPipeline.setInstance(new ImageScalingPipeline(new Java2DImageScaler(), null));
+		uploadProcessor = new UploadProcessor(null);
+	}
+
+	@After
+	public void tearDown() {
+		ImageScalingPipeline.setInstance(null);
+	}
+
+	@Test
+	public void testProcessCreatesImagesAndClearsStatus() throws Exception {
+		Image upload = createImage(500, 700);
+		Photo photo = PhotoUtil.createUnprocessedPhoto("upload.png", PhotoId.getNextId(), upload);
+
+		uploadProcessor.process(photo, upload);
+
+		assertFalse(photo.getStatus().isProcessing());
+		assertTrue(photo.getStatus().isDisplayable());
+		assertNotNull(photo.getImage(PhotoSize.THUMB));
+		assertNotNull(photo.getImageETag(PhotoSize.MEDIUM));
+	}
+
+	@Test
+	public void testUndecodableUploadIsGivenUp() throws Exception {
+		Image upload = createImage(500, 700);
+		Photo photo = PhotoUtil.createUnprocessedPhoto("upload.png", PhotoId.getNextId(), upload);
+
+		uploadProcessor.process(photo, ImagesServiceFactory.makeImage(new byte[]{1, 2, 3}));
+
+		assertFalse(photo.getStatus().isProcessing());
+		assertTrue(photo.getStatus().isDeleted());
+	}
+
+	@Test
+	public void testProcessOnCallingThreadWithoutBackgroundThreads() throws Exception {
+		ThreadFactory failingFactory = new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				throw new IllegalStateException("no background threads");
+			}
+		};
+		UploadProcessor processor = new UploadProcessor(Executors.newFixedThreadPool(1, failingFactory));
+		try {
+			for (int i = 0; i < 2; i++) {
+				Image upload = createImage(500, 700);
+				Photo photo = PhotoUtil.createUnprocessedPhoto("upload.png", PhotoId.getNextId(), upload);
+
+				processor.process(photo, upload);
+
+				assertFalse(photo.getStatus().isProcessing());
+				assertNotNull(photo.getImage(PhotoSize.THUMB));
+			}
+		} finally {
+			processor.shutDown();
+		}
+	}
+
+	protected Image createImage(int width, int height) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB), "png", out);
+		return ImagesServiceFactory.makeImage(out.toByteArray());
+	}
+}
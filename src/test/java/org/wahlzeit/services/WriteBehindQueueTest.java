@@ -0,0 +1,95 @@
+package org.wahlzeit.services;
+
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.Work;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.RuleChain;
+import org.wahlzeit.model.Tag;
+import org.wahlzeit.testEnvironmentProvider.LocalDatastoreServiceTestConfigProvider;
+import org.wahlzeit.testEnvironmentProvider.RegisteredOfyEnvironmentProvider;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Test class for {@link WriteBehindQueue}.
+ */
+public class WriteBehindQueueTest {
+
+	@ClassRule
+	public static RuleChain ruleChain = RuleChain.
+			outerRule(new LocalDatastoreServiceTestConfigProvider()).
+			around(new RegisteredOfyEnvironmentProvider());
+
+	private WriteBehindQueue queue;
+	private ObjectManager objectManager;
+
+	@Before
+	public void setUp() {
+		// the flusher thread has no datastore environment in tests, so flushes are triggered explicitly
+		queue = new WriteBehindQueue(60 * 60 * 1000, Executors.defaultThreadFactory());
+		ObjectManager.setWriteBehindQueue(queue);
+		objectManager = new ObjectManager() {
+		};
+	}
+
+	@After
+	public void tearDown() {
+		ObjectManager.setWriteBehindQueue(null);
+	}
+
+	@Test
+	public void testWritesAreDeferred() {
+		objectManager.writeObject(new Tag("deferred", "x1"));
+
+		assertEquals(1, queue.getSize());
+		assertEquals(0, readTags("deferred").size());
+
+		queue.flush();
+
+		assertEquals(0, queue.getSize());
+		assertEquals(1, readTags("deferred").size());
+	}
+
+	@Test
+	public void testWritesAreCoalesced() {
+		Tag tag = new Tag("coalesced", "x2");
+		queue.flush();
+		objectManager.writeObject(tag);
+		queue.flush();
+
+		for (int i = 0; i < 10; i++) {
+			tag.incWriteCount();
+			objectManager.writeObject(tag);
+		}
+
+		assertEquals(1, queue.getSize());
+		queue.flush();
+		assertFalse(tag.isDirty());
+		assertEquals(1, readTags("coalesced").size());
+	}
+
+	@Test
+	public void testShutDownFlushes() {
+		objectManager.writeObject(new Tag("shutdown", "x3"));
+
+		queue.shutDown();
+
+		assertEquals(1, readTags("shutdown").size());
+	}
+
+	protected List<Tag> readTags(final String text) {
+		return ObjectifyService.run(new Work<List<Tag>>() {
+			@Override
+			public List<Tag> run() {
+				return OfyService.ofy().load().type(Tag.class).filter(Tag.TEXT, text).list();
+			}
+		});
+	}
+}
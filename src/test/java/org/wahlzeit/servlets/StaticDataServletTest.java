@@ -0,0 +1,55 @@
+package org.wahlzeit.servlets;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test class for the header handling of {@link StaticDataServlet}
+ */
+public class StaticDataServletTest {
+
+	private StaticDataServlet servlet;
+
+	@Before
+	public void setUp() {
+		servlet = new StaticDataServlet();
+	}
+
+	@Test
+	public void testParseRange() {
+		assertArrayEquals(new int[]{0, 99}, servlet.parseRange("bytes=0-99", 1000));
+		assertArrayEquals(new int[]{500, 999}, servlet.parseRange("bytes=500-", 1000));
+		assertArrayEquals(new int[]{900, 999}, servlet.parseRange("bytes=-100", 1000));
+		assertArrayEquals(new int[]{0, 999}, servlet.parseRange("bytes=-2000", 1000));
+		assertArrayEquals(new int[]{990, 999}, servlet.parseRange("bytes=990-2000", 1000));
+	}
+
+	@Test
+	public void testParseRangeSendsWholeImage() {
+		assertNull(servlet.parseRange(null, 1000));
+		assertNull(servlet.parseRange("items=0-99", 1000));
+		assertNull(servlet.parseRange("bytes=0-9,20-29", 1000));
+		assertNull(servlet.parseRange("bytes=99-0", 1000));
+		assertNull(servlet.parseRange("bytes=a-b", 1000));
+	}
+
+	@Test
+	public void testParseUnsatisfiableRange() {
+		assertSame(StaticDataServlet.UNSATISFIABLE_RANGE, servlet.parseRange("bytes=1000-", 1000));
+		assertSame(StaticDataServlet.UNSATISFIABLE_RANGE, servlet.parseRange("bytes=-0", 1000));
+	}
+
+	@Test
+	public void testMatchesETag() {
+		assertTrue(servlet.matchesETag("\"abc\"", "abc"));
+		assertTrue(servlet.matchesETag("\"xyz\", W/\"abc\"", "abc"));
+		assertTrue(servlet.matchesETag("*", "abc"));
+		assertFalse(servlet.matchesETag("\"abcd\"", "abc"));
+	}
+}
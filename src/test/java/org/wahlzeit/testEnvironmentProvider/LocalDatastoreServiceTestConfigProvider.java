@@ -12,8 +12,20 @@ import org.junit.rules.ExternalResource;
  */
 public class LocalDatastoreServiceTestConfigProvider extends ExternalResource {
 
-	private final LocalServiceTestHelper helper =
-			new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+	private final LocalServiceTestHelper helper;
+
+	public LocalDatastoreServiceTestConfigProvider() {
+		helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+	}
+
+	/**
+	 * Simulates the eventual consistency of the High Replication Datastore: the given percentage of writes is not yet
+	 * visible to non-ancestor queries.
+	 */
+	public LocalDatastoreServiceTestConfigProvider(float unappliedJobPercentage) {
+		helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig().
+				setDefaultHighRepJobPolicyUnappliedJobPercentage(unappliedJobPercentage));
+	}
 
 	@Override
 	protected void before() throws Throwable {
@@ -0,0 +1,48 @@
+package org.wahlzeit.utils;
+
+import org.junit.Test;
+
+import java.util.BitSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Test class for {@link FeistelPermutation}.
+ */
+public class FeistelPermutationTest {
+
+	@Test
+	public void testIsPermutation() {
+		int[] sizes = {1, 2, 3, 7, 64, 1000, 4097};
+		for (int size : sizes) {
+			FeistelPermutation permutation = new FeistelPermutation(42, size);
+			BitSet values = new BitSet(size);
+			for (int i = 0; i < size; i++) {
+				int value = permutation.get(i);
+				assertFalse(values.get(value));
+				values.set(value);
+			}
+			assertEquals(size, values.cardinality());
+			assertEquals(size, values.length());
+		}
+	}
+
+	@Test
+	public void testSeedChangesOrder() {
+		FeistelPermutation first = new FeistelPermutation(1, 1000);
+		FeistelPermutation second = new FeistelPermutation(2, 1000);
+		int samePositions = 0;
+		for (int i = 0; i < 1000; i++) {
+			if (first.get(i) == second.get(i)) {
+				samePositions++;
+			}
+		}
+		assertFalse(samePositions > 100);
+	}
+
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void testPositionOutOfRange() {
+		new FeistelPermutation(1, 10).get(10);
+	}
+}
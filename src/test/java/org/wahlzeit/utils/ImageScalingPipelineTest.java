@@ -0,0 +1,98 @@
+package org.wahlzeit.utils;
+
+import com.google.appengine.api.images.Image;
+import com.google.appengine.api.images.ImagesService;
+import com.google.appengine.api.images.ImagesServiceFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.wahlzeit.model.enums.PhotoSize;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test class for {@link ImageScalingPipeline} with the {@link Java2DImageScaler}
+ */
+public class ImageScalingPipelineTest {
+
+	private ExecutorService executor;
+	private ImageScalingPipeline pipeline;
+
+	@Before
+	public void setUp() {
+		executor = Executors.newFixedThreadPool(2);
+		pipeline = new ImageScalingPipeline(new Java2DImageScaler(), executor);
+	}
+
+	@After
+	public void tearDown() {
+		pipeline.shutDown();
+	}
+
+	@Test
+	public void testScaleToAllSizes() throws Exception {
+		Map<PhotoSize, Image> images = pipeline.scale(createImage(1000, 1400), ImagesService.OutputEncoding.JPEG);
+
+		assertEquals(PhotoSize.values().length, images.size());
+		for (PhotoSize size : PhotoSize.values()) {
+			BufferedImage image = decode(images.get(size));
+			assertEquals(size.calcAdjustedWidth(1000, 1400), image.getWidth());
+			assertEquals(size.calcAdjustedHeight(1000, 1400), image.getHeight());
+		}
+	}
+
+	@Test
+	public void testSkipLargerSizes() throws Exception {
+		Map<PhotoSize, Image> images = pipeline.scale(createImage(300, 420), ImagesService.OutputEncoding.PNG);
+
+		assertTrue(images.containsKey(PhotoSize.THUMB));
+		assertTrue(images.containsKey(PhotoSize.SMALL));
+		assertFalse(images.containsKey(PhotoSize.MEDIUM));
+		assertEquals(size(PhotoSize.SMALL, 300, 420), size(decode(images.get(PhotoSize.SMALL))));
+	}
+
+	@Test
+	public void testScaleOnCallingThread() throws Exception {
+		ImageScalingPipeline sequentialPipeline = new ImageScalingPipeline(new Java2DImageScaler(), null);
+		Map<PhotoSize, Image> images = sequentialPipeline.scale(createImage(500, 700), ImagesService.OutputEncoding.JPEG);
+
+		assertEquals(4, images.size());
+		assertEquals(size(PhotoSize.MEDIUM, 500, 700), size(decode(images.get(PhotoSize.MEDIUM))));
+	}
+
+	protected Image createImage(int width, int height) throws Exception {
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		Graphics2D graphics = image.createGraphics();
+		graphics.setColor(Color.BLUE);
+		graphics.fillRect(0, 0, width / 2, height / 2);
+		graphics.dispose();
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(image, "png", out);
+		return ImagesServiceFactory.makeImage(out.toByteArray());
+	}
+
+	protected BufferedImage decode(Image image) throws Exception {
+		return ImageIO.read(new ByteArrayInputStream(image.getImageData()));
+	}
+
+	protected String size(PhotoSize size, int sourceWidth, int sourceHeight) {
+		return size.calcAdjustedWidth(sourceWidth, sourceHeight) + "x" + size.calcAdjustedHeight(sourceWidth, sourceHeight);
+	}
+
+	protected String size(BufferedImage image) {
+		return image.getWidth() + "x" + image.getHeight();
+	}
+}
@@ -0,0 +1,73 @@
+package org.wahlzeit.utils;
+
+import com.google.appengine.api.images.Image;
+import com.google.appengine.api.images.ImagesService;
+import com.google.appengine.api.images.ImagesServiceFactory;
+import com.google.appengine.tools.development.testing.LocalImagesServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.wahlzeit.model.enums.PhotoSize;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+
+/**
+ * Test class for {@link ImageScalingPipeline} with the {@link ImagesServiceScaler}, against the local images service
+ */
+public class ImagesServiceScalerTest {
+
+	private final LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalImagesServiceTestConfig());
+
+	private ImageScalingPipeline pipeline;
+
+	@Before
+	public void setUp() {
+		helper.setUp();
+		pipeline = new ImageScalingPipeline(new ImagesServiceScaler(), null);
+	}
+
+	@After
+	public void tearDown() {
+		helper.tearDown();
+	}
+
+	@Test
+	public void testEachSizeIsItsOwnImage() throws Exception {
+		Image source = createImage(1600, 1200);
+		Map<PhotoSize, Image> images = pipeline.scale(source, ImagesService.OutputEncoding.JPEG);
+
+		assertEquals(PhotoSize.values().length, images.size());
+		for (PhotoSize size : PhotoSize.values()) {
+			Image image = images.get(size);
+			assertNotSame(source, image);
+			// the images service keeps the aspect ratio, so it may round differently
+			assertEquals(size.calcAdjustedWidth(1600, 1200), image.getWidth(), 1);
+			assertEquals(size.calcAdjustedHeight(1600, 1200), image.getHeight(), 1);
+		}
+	}
+
+	@Test
+	public void testSourceIsNotChanged() throws Exception {
+		Image source = createImage(1600, 1200);
+		byte[] sourceData = source.getImageData().clone();
+
+		pipeline.scale(source, ImagesService.OutputEncoding.JPEG);
+
+		assertEquals(1600, source.getWidth());
+		assertEquals(1200, source.getHeight());
+		assertEquals(sourceData.length, source.getImageData().length);
+	}
+
+	protected Image createImage(int width, int height) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB), "jpg", out);
+		return ImagesServiceFactory.makeImage(out.toByteArray());
+	}
+}
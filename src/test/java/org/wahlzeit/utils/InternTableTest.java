@@ -0,0 +1,93 @@
+package org.wahlzeit.utils;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Test class for {@link InternTable}.
+ */
+public class InternTableTest {
+
+	private InternTable<Object> table;
+
+	@Before
+	public void setUp() {
+		table = new InternTable<Object>() {
+			@Override
+			protected Object create(int key) {
+				return new Integer(key);
+			}
+		};
+	}
+
+	@Test
+	public void testIntern() {
+		assertNull(table.get(5));
+
+		Object value = table.intern(5);
+		assertEquals(5, value);
+		assertSame(value, table.intern(5));
+		assertSame(value, table.get(5));
+	}
+
+	@Test
+	public void testKeysAcrossPagesAndDirectories() {
+		int[] keys = {0, InternTable.PAGE_SIZE - 1, InternTable.PAGE_SIZE,
+				InternTable.PAGE_SIZE * InternTable.DIRECTORY_SIZE, Integer.MAX_VALUE};
+		for (int key : keys) {
+			assertEquals(key, table.intern(key));
+		}
+		for (int key : keys) {
+			assertSame(table.intern(key), table.get(key));
+		}
+		assertNull(table.get(InternTable.PAGE_SIZE + 1));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNegativeKey() {
+		table.intern(-1);
+	}
+
+	@Test
+	public void testConcurrentInterningAgreesOnOneValue() throws InterruptedException {
+		final int threadCount = 4;
+		final int keyCount = 10000;
+		final Object[][] results = new Object[threadCount][keyCount];
+		final CountDownLatch start = new CountDownLatch(1);
+
+		Thread[] threads = new Thread[threadCount];
+		for (int i = 0; i < threadCount; i++) {
+			final int thread = i;
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException ex) {
+						return;
+					}
+					for (int key = 0; key < keyCount; key++) {
+						results[thread][key] = table.intern(key);
+					}
+				}
+			});
+			threads[i].start();
+		}
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		for (int key = 0; key < keyCount; key++) {
+			for (int thread = 1; thread < threadCount; thread++) {
+				assertSame(results[0][key], results[thread][key]);
+			}
+		}
+	}
+}
@@ -0,0 +1,48 @@
+package org.wahlzeit.utils;
+
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test class for {@link PhotoUtil}.
+ */
+public class PhotoUtilTest {
+
+	@Test
+	public void testMimeTypeIsReadFromImageBytes() throws Exception {
+		// a photo uploaded as .jpg whose scaled images were stored as PNG
+		assertEquals("image/png", PhotoUtil.getMimeType(encode("png"), "jpg"));
+		assertEquals("image/jpeg", PhotoUtil.getMimeType(encode("jpg"), "png"));
+		assertEquals("image/gif", PhotoUtil.getMimeType(encode("gif"), "jpg"));
+
+		byte[] webp = "RIFF\0\0\0\0WEBPVP8 ".getBytes("US-ASCII");
+		assertEquals("image/webp", PhotoUtil.getMimeType(ByteBuffer.wrap(webp), "jpg"));
+	}
+
+	@Test
+	public void testMimeTypeOfUnknownBytesIsTakenFromEnding() {
+		ByteBuffer unknown = ByteBuffer.wrap(new byte[]{1, 2});
+		assertEquals("image/png", PhotoUtil.getMimeType(unknown, "PNG"));
+		assertEquals("image/jpeg", PhotoUtil.getMimeType(unknown, null));
+	}
+
+	@Test
+	public void testMimeTypeLeavesBufferPosition() throws Exception {
+		ByteBuffer image = encode("png");
+		image.position(1);
+		assertEquals("image/jpeg", PhotoUtil.getMimeType(image, "jpg"));
+		assertEquals(1, image.position());
+	}
+
+	protected ByteBuffer encode(String format) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(new BufferedImage(10, 10, BufferedImage.TYPE_INT_RGB), format, out);
+		return ByteBuffer.wrap(out.toByteArray());
+	}
+}
@@ -0,0 +1,101 @@
+package org.wahlzeit.utils;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test class for {@link SlabByteStore}.
+ */
+public class SlabByteStoreTest {
+
+	private SlabByteStore<String> store;
+
+	@Before
+	public void setUp() {
+		store = new SlabByteStore<String>(4 * 4096, 4096);
+	}
+
+	@Test
+	public void testPutAndGet() {
+		byte[] value = createValue(1000, 7);
+		assertTrue(store.put("a", value));
+
+		assertArrayEquals(value, store.get("a"));
+		assertNull(store.get("b"));
+		assertEquals(1, store.getHitCount());
+		assertEquals(1, store.getMissCount());
+		assertEquals(1000, store.getUsedBytes());
+		assertEquals(4096, store.getAllocatedBytes());
+	}
+
+	@Test
+	public void testReplace() {
+		store.put("a", createValue(1000, 1));
+		store.put("a", createValue(300, 2));
+
+		assertArrayEquals(createValue(300, 2), store.get("a"));
+		assertEquals(300, store.getUsedBytes());
+	}
+
+	@Test
+	public void testTooLarge() {
+		assertFalse(store.put("large", new byte[4097]));
+		assertFalse(store.contains("large"));
+	}
+
+	@Test
+	public void testLeastRecentlyUsedIsEvicted() {
+		for (int i = 0; i < 12; i++) {
+			assertTrue(store.put("k" + i, createValue(3000, i)));
+		}
+		assertEquals(4 * 4096, store.getAllocatedBytes());
+
+		store.get("k8");
+		store.put("k12", createValue(3000, 12));
+
+		assertFalse(store.contains("k9"));
+		assertArrayEquals(createValue(3000, 8), store.get("k8"));
+		assertArrayEquals(createValue(3000, 12), store.get("k12"));
+	}
+
+	@Test
+	public void testSlabIsTakenOverByOtherSizeClass() {
+		for (int i = 0; i < 4; i++) {
+			store.put("large" + i, createValue(4000, i));
+		}
+		assertTrue(store.put("small", createValue(100, 1)));
+
+		assertEquals(1, store.getEvictionCount());
+		assertArrayEquals(createValue(100, 1), store.get("small"));
+	}
+
+	@Test
+	public void testHeldChunkIsNotReused() {
+		for (int i = 0; i < 4; i++) {
+			store.put("k" + i, createValue(4000, i));
+		}
+		BufferHandle handle = store.acquire("k0");
+
+		store.remove("k0");
+		store.put("k4", createValue(4000, 4));
+
+		assertArrayEquals(createValue(4000, 0), handle.toByteArray());
+		handle.release();
+		assertTrue(store.put("k5", createValue(4000, 5)));
+		assertArrayEquals(createValue(4000, 4), store.get("k4"));
+	}
+
+	protected byte[] createValue(int length, int seed) {
+		byte[] result = new byte[length];
+		for (int i = 0; i < length; i++) {
+			result[i] = (byte) (seed * 31 + i);
+		}
+		return result;
+	}
+}
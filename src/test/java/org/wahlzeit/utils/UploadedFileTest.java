@@ -0,0 +1,109 @@
+package org.wahlzeit.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test class for {@link UploadedFile}.
+ */
+public class UploadedFileTest {
+
+	private Path spillDir;
+
+	@Before
+	public void setUp() throws Exception {
+		spillDir = Files.createTempDirectory("wahlzeit-uploads");
+	}
+
+	@After
+	public void tearDown() {
+		File[] files = spillDir.toFile().listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		spillDir.toFile().delete();
+	}
+
+	@Test
+	public void testSmallUploadIsHeldInMemory() throws Exception {
+		byte[] data = createData(3 * UploadedFile.CHUNK_SIZE + 17);
+		UploadedFile upload = read(data, 1024 * 1024, 1024 * 1024);
+
+		assertFalse(upload.isSpilled());
+		assertEquals(data.length, upload.getLength());
+		assertArrayEquals(data, upload.toByteArray());
+		upload.release();
+	}
+
+	@Test
+	public void testLargeUploadIsSpilled() throws Exception {
+		byte[] data = createData(5 * UploadedFile.CHUNK_SIZE + 3);
+		UploadedFile upload = read(data, 1024 * 1024, 2 * UploadedFile.CHUNK_SIZE);
+
+		assertTrue(upload.isSpilled());
+		assertEquals(1, spillDir.toFile().list().length);
+		assertArrayEquals(data, upload.toByteArray());
+
+		upload.release();
+		assertEquals(0, spillDir.toFile().list().length);
+	}
+
+	@Test
+	public void testUploadStaysInMemoryIfSpillFails() throws Exception {
+		Path notADir = Files.createTempFile(spillDir, "file", ".tmp");
+		byte[] data = createData(3 * UploadedFile.CHUNK_SIZE + 5);
+		UploadedFile upload = UploadedFile.read("test.jpg", new ByteArrayInputStream(data), 1024 * 1024,
+				UploadedFile.CHUNK_SIZE, notADir);
+
+		assertFalse(upload.isSpilled());
+		assertArrayEquals(data, upload.toByteArray());
+		upload.release();
+	}
+
+	@Test
+	public void testTooLargeUploadIsRejected() throws Exception {
+		byte[] data = createData(4 * UploadedFile.CHUNK_SIZE);
+		try {
+			read(data, 3 * UploadedFile.CHUNK_SIZE, UploadedFile.CHUNK_SIZE);
+			fail("upload should have been rejected");
+		} catch (UploadSizeLimitExceededException e) {
+			// expected
+		}
+		assertEquals(0, spillDir.toFile().list().length);
+	}
+
+	@Test
+	public void testEmptyUpload() throws Exception {
+		UploadedFile upload = read(new byte[0], 1024, 1024);
+
+		assertEquals(0, upload.getLength());
+		assertEquals(0, upload.toByteArray().length);
+		upload.release();
+	}
+
+	protected UploadedFile read(byte[] data, long maxSize, long spillThreshold) throws Exception {
+		return UploadedFile.read("test.jpg", new ByteArrayInputStream(data), maxSize, spillThreshold, spillDir);
+	}
+
+	protected byte[] createData(int length) {
+		byte[] result = new byte[length];
+		for (int i = 0; i < length; i++) {
+			result[i] = (byte) (i * 31);
+		}
+		return result;
+	}
+}